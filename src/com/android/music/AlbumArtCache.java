@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.Size;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads album art scaled down to the size it is shown at, and keeps it in an LRU cache
+ * that is bounded by bytes rather than by entries. Art is never decoded at full size:
+ * the bounds are read first and the image is subsampled to the smallest power of two
+ * that still covers the requested size. Decoding runs on a small fixed pool, and
+ * requests for art that is already being decoded just wait for that decode.
+ *
+ * Must be used on the main thread; callbacks are delivered there too.
+ */
+class AlbumArtCache {
+    private static final String TAG = "AlbumArtCache";
+
+    /** Album art as MediaStore serves it to other apps, including art embedded in tracks. */
+    static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+
+    private static final int DECODE_THREADS = 2;
+    // Share of the heap the cache may use.
+    private static final int HEAP_FRACTION = 8;
+    // Albums remembered as having no art, so they aren't looked up over and over.
+    private static final int MAX_MISSING = 256;
+
+    interface Callback {
+        /** Called with the art, or with null if there is none. */
+        void onArtLoaded(Bitmap art);
+    }
+
+    private static AlbumArtCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mDecoder = Executors.newFixedThreadPool(DECODE_THREADS);
+    private final LruCache<Long, Bitmap> mCache;
+    private final LruCache<Long, Boolean> mMissing = new LruCache<Long, Boolean>(MAX_MISSING);
+    // Callbacks waiting for a decode that is in progress, by key.
+    private final HashMap<Long, List<Callback>> mPending = new HashMap<Long, List<Callback>>();
+
+    static AlbumArtCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AlbumArtCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AlbumArtCache(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        long budget = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+        mCache = new LruCache<Long, Bitmap>((int) Math.min(budget, Integer.MAX_VALUE)) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+    }
+
+    // Sizes are well below 64k pixels, which leaves the upper 48 bits for the album id.
+    private static long key(long albumId, int size) {
+        return (albumId << 16) | (size & 0xffff);
+    }
+
+    /** Returns the art for the album at the given size if it is cached, or null. */
+    Bitmap getCached(long albumId, int size) {
+        return mCache.get(key(albumId, size));
+    }
+
+    /**
+     * Loads the art for the album, scaled to roughly size pixels square. The callback
+     * runs right away if the art is cached or known to be missing, and otherwise once
+     * it has been decoded.
+     */
+    void load(final long albumId, final int size, Callback callback) {
+        final Long key = key(albumId, size);
+        Bitmap art = mCache.get(key);
+        if (art != null || mMissing.get(key) != null) {
+            callback.onArtLoaded(art);
+            return;
+        }
+        List<Callback> waiting = mPending.get(key);
+        if (waiting != null) {
+            waiting.add(callback);
+            return;
+        }
+        waiting = new ArrayList<Callback>(2);
+        waiting.add(callback);
+        mPending.put(key, waiting);
+        mDecoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap art = decodeAlbumArt(albumId, size);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (art != null) {
+                            mCache.put(key, art);
+                        } else {
+                            mMissing.put(key, Boolean.TRUE);
+                        }
+                        List<Callback> callbacks = mPending.remove(key);
+                        if (callbacks != null) {
+                            for (Callback c : callbacks) {
+                                c.onArtLoaded(art);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Loads the picture embedded in the file at uri, for media that is not in MediaStore.
+     * It is not cached, since there is no album to key it by.
+     */
+    void loadEmbedded(final Uri uri, final int size, final Callback callback) {
+        mDecoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap art = decodeEmbeddedArt(uri, size);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onArtLoaded(art);
+                    }
+                });
+            }
+        });
+    }
+
+    /** Stops callback from being called for any load it is waiting on. */
+    void cancel(Callback callback) {
+        for (List<Callback> callbacks : mPending.values()) {
+            callbacks.remove(callback);
+        }
+    }
+
+    void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+
+    private Bitmap decodeAlbumArt(long albumId, int size) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // The provider scales the art itself and caches the result.
+            try {
+                return mResolver.loadThumbnail(
+                        ContentUris.withAppendedId(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                                albumId),
+                        new Size(size, size), null);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = mResolver.openFileDescriptor(
+                    ContentUris.withAppendedId(ALBUM_ART_URI, albumId), "r");
+            if (pfd == null) {
+                return null;
+            }
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, opts);
+            if (!prepareOptions(opts, size)) {
+                return null;
+            }
+            return BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, opts);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Couldn't decode art for album " + albumId, e);
+            return null;
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private Bitmap decodeEmbeddedArt(Uri uri, int size) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(mContext, uri);
+            byte[] picture = retriever.getEmbeddedPicture();
+            if (picture == null) {
+                return null;
+            }
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(picture, 0, picture.length, opts);
+            if (!prepareOptions(opts, size)) {
+                return null;
+            }
+            return BitmapFactory.decodeByteArray(picture, 0, picture.length, opts);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Couldn't read embedded art from " + uri, e);
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Turns options that hold the bounds of an image into options that decode it
+     * subsampled to cover size. Returns false if the bounds could not be read.
+     */
+    private static boolean prepareOptions(BitmapFactory.Options opts, int size) {
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return false;
+        }
+        int sampleSize = 1;
+        while (opts.outWidth / (sampleSize * 2) >= size
+                && opts.outHeight / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        // Album art has no alpha, so half the memory of ARGB_8888 is enough.
+        opts.inPreferredConfig = Bitmap.Config.RGB_565;
+        return true;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFocusRequest;
+import android.media.AudioManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Audio focus state machine shared by {@link AudioPreview} and
+ * {@link MediaPlaybackService}. Focus is only requested when the app doesn't hold it
+ * already, so resuming after a pause costs nothing. A loss that allows ducking lowers the
+ * volume with a short ramp and keeps playing, rather than pausing, which for a stream
+ * would mean rebuffering afterwards. A transient loss pauses, and playback resumes when
+ * focus comes back if it was playing. If focus can only be granted later, e.g. during a
+ * call, playback starts once it is.
+ *
+ * Must be used on the main thread.
+ */
+final class AudioFocusHelper implements AudioManager.OnAudioFocusChangeListener {
+    /** Controls the playback the focus is for. */
+    interface Listener {
+        boolean isPlaying();
+
+        /** Starts playback, which will call {@link #requestFocus} and find it held. */
+        void play();
+
+        void pause();
+
+        /** Sets the volume of the player(s), 0 to 1. */
+        void setVolume(float volume);
+    }
+
+    private static final int STATE_NONE = 0;
+    private static final int STATE_DELAYED = 1;
+    private static final int STATE_GAINED = 2;
+    private static final int STATE_DUCKED = 3;
+    private static final int STATE_LOST_TRANSIENT = 4;
+
+    private static final float DUCK_VOLUME = 0.2f;
+    private static final long RAMP_MS = 300;
+    private static final long RAMP_STEP_MS = 20;
+
+    private final AudioManager mAudioManager;
+    private final int mGainType;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private AudioFocusRequest mRequest;
+
+    private int mState = STATE_NONE;
+    // Whether to start playing when focus is gained: it was paused by a transient loss,
+    // or asked to play while focus was delayed.
+    private boolean mPlayOnGain;
+
+    private float mVolume = 1f;
+    private float mRampFrom;
+    private float mRampTo = 1f;
+    private long mRampStart;
+
+    /** gainType is one of the AudioManager.AUDIOFOCUS_GAIN* constants. */
+    AudioFocusHelper(Context context, int gainType, Listener listener) {
+        mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mGainType = gainType;
+        mListener = listener;
+    }
+
+    /**
+     * Returns true if playback may start now. If focus is granted later instead, this
+     * returns false and {@link Listener#play} is called then.
+     */
+    boolean requestFocus() {
+        if (mState == STATE_GAINED || mState == STATE_DUCKED) {
+            return true;
+        }
+        if (mState == STATE_DELAYED) {
+            mPlayOnGain = true;
+            return false;
+        }
+        int result;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            if (mRequest == null) {
+                AudioAttributes attributes = new AudioAttributes.Builder()
+                                                     .setUsage(AudioAttributes.USAGE_MEDIA)
+                                                     .setContentType(
+                                                             AudioAttributes.CONTENT_TYPE_MUSIC)
+                                                     .build();
+                mRequest = new AudioFocusRequest.Builder(mGainType)
+                                   .setAudioAttributes(attributes)
+                                   .setAcceptsDelayedFocusGain(true)
+                                   // Playback doesn't pause; this turns off the system's
+                                   // own ducking, so that the ramp below is used instead.
+                                   .setWillPauseWhenDucked(true)
+                                   .setOnAudioFocusChangeListener(this, mHandler)
+                                   .build();
+            }
+            result = mAudioManager.requestAudioFocus(mRequest);
+        } else {
+            result = mAudioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, mGainType);
+        }
+        switch (result) {
+            case AudioManager.AUDIOFOCUS_REQUEST_GRANTED:
+                mState = STATE_GAINED;
+                mPlayOnGain = false;
+                rampTo(1f);
+                return true;
+            case AudioManager.AUDIOFOCUS_REQUEST_DELAYED:
+                mState = STATE_DELAYED;
+                mPlayOnGain = true;
+                return false;
+            default:
+                mState = STATE_NONE;
+                return false;
+        }
+    }
+
+    void abandonFocus() {
+        mPlayOnGain = false;
+        if (mState == STATE_NONE) {
+            return;
+        }
+        mState = STATE_NONE;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mAudioManager.abandonAudioFocusRequest(mRequest);
+        } else {
+            mAudioManager.abandonAudioFocus(this);
+        }
+        setVolumeNow(1f);
+    }
+
+    /** Playback was paused by the user, so it mustn't start again when focus returns. */
+    void onPlaybackPaused() {
+        mPlayOnGain = false;
+    }
+
+    /** The volume a newly started player should be set to. */
+    float getVolume() {
+        return mVolume;
+    }
+
+    @Override
+    public void onAudioFocusChange(int focusChange) {
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                mState = STATE_GAINED;
+                rampTo(1f);
+                if (mPlayOnGain) {
+                    mPlayOnGain = false;
+                    mListener.play();
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                if (mState == STATE_GAINED || mState == STATE_DUCKED) {
+                    mState = STATE_DUCKED;
+                    rampTo(DUCK_VOLUME);
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT: {
+                mState = STATE_LOST_TRANSIENT;
+                boolean wasPlaying = mListener.isPlaying();
+                mListener.pause();
+                // After pause(), which calls onPlaybackPaused().
+                mPlayOnGain = wasPlaying;
+                break;
+            }
+            case AudioManager.AUDIOFOCUS_LOSS:
+                // Gone for good; playing again has to ask for it again.
+                mState = STATE_NONE;
+                mListener.pause();
+                mPlayOnGain = false;
+                setVolumeNow(1f);
+                break;
+        }
+    }
+
+    private void rampTo(float volume) {
+        mHandler.removeCallbacks(mRampStep);
+        if (volume == mVolume) {
+            mRampTo = volume;
+            return;
+        }
+        mRampFrom = mVolume;
+        mRampTo = volume;
+        mRampStart = SystemClock.uptimeMillis();
+        mRampStep.run();
+    }
+
+    private void setVolumeNow(float volume) {
+        mHandler.removeCallbacks(mRampStep);
+        mRampTo = volume;
+        if (volume != mVolume) {
+            mVolume = volume;
+            mListener.setVolume(volume);
+        }
+    }
+
+    private final Runnable mRampStep = new Runnable() {
+        @Override
+        public void run() {
+            float progress = Math.min(1f, (SystemClock.uptimeMillis() - mRampStart)
+                    / (float) RAMP_MS);
+            mVolume = mRampFrom + (mRampTo - mRampFrom) * progress;
+            mListener.setVolume(mVolume);
+            if (progress < 1f) {
+                mHandler.postDelayed(this, RAMP_STEP_MS);
+            }
+        }
+    };
+}
@@ -18,23 +18,28 @@ package com.android.music;
 
 import android.app.Activity;
 import android.content.AsyncQueryHandler;
+import android.content.ClipData;
 import android.content.ContentResolver;
-import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
-import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnPreparedListener;
+import android.media.MediaPlayer.OnSeekCompleteListener;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.Parcelable;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -42,102 +47,114 @@ import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Dialog that comes up in response to various music-related VIEW intents.
+ * Dialog that comes up in response to various music-related VIEW intents. When given
+ * several items, through ClipData or EXTRA_STREAM, it plays them one after another, with
+ * the next one prepared while the current one plays.
  */
 public class AudioPreview
         extends Activity implements OnPreparedListener, OnErrorListener, OnCompletionListener {
     private final static String TAG = "AudioPreview";
     private PreviewPlayer mPlayer;
+    // The items to play; mUri is the one mPlayer is playing.
+    private List<Uri> mUris;
+    private AsyncQueryHandler mQueryHandler;
     private TextView mTextLine1;
     private TextView mTextLine2;
     private TextView mLoadingText;
-    private SeekBar mSeekBar;
-    private Handler mProgressRefresher;
+    private ImageView mAlbumArt;
+    private WaveformSeekBar mSeekBar;
+    private WaveformLoader mWaveformLoader;
+    private Choreographer mChoreographer;
+    private boolean mProgressRunning;
     private boolean mSeeking = false;
     private boolean mUiPaused = true;
     private int mDuration;
     private Uri mUri;
     private long mMediaId = -1;
+    private long mAlbumId = -1;
+    private long mQueryStart;
+    // For the current item's art; replaced per item so late art for another is dropped.
+    private AlbumArtCache.Callback mArtCallback;
     private static final int OPEN_IN_MUSIC = 1;
-    private AudioManager mAudioManager;
-    private boolean mPausedByTransientLossOfFocus;
+    // PREVIOUS restarts the current item rather than going back once this far in.
+    private static final int RESTART_THRESHOLD_MS = 3000;
+    private AudioFocusHelper mFocus;
 
     @Override
     public void onCreate(Bundle icicle) {
+        long createTime = SystemClock.uptimeMillis();
         super.onCreate(icicle);
 
         Intent intent = getIntent();
-        if (intent == null) {
-            finish();
-            return;
-        }
-        mUri = intent.getData();
-        if (mUri == null) {
+        mUris = intent == null ? null : getPreviewUris(intent);
+        if (mUris == null || mUris.isEmpty()) {
             finish();
             return;
         }
+        PreviewPlayer player = (PreviewPlayer) getLastNonConfigurationInstance();
+        mUri = mUris.get(player == null ? 0 : player.mIndex);
         String scheme = mUri.getScheme();
 
         setVolumeControlStream(AudioManager.STREAM_MUSIC);
         requestWindowFeature(Window.FEATURE_NO_TITLE);
+        long inflateStart = SystemClock.uptimeMillis();
+        PreviewTimings.beginSection(PreviewTimings.STAGE_INFLATE);
         setContentView(R.layout.audiopreview);
+        PreviewTimings.endSection();
+        PreviewTimings.record(scheme, PreviewTimings.STAGE_INFLATE,
+                SystemClock.uptimeMillis() - inflateStart);
 
         mTextLine1 = (TextView) findViewById(R.id.line1);
         mTextLine2 = (TextView) findViewById(R.id.line2);
         mLoadingText = (TextView) findViewById(R.id.loading);
-        if (scheme.equals("http")) {
-            String msg = getString(R.string.streamloadingtext, mUri.getHost());
-            mLoadingText.setText(msg);
-        } else {
-            mLoadingText.setVisibility(View.GONE);
-        }
-        mSeekBar = (SeekBar) findViewById(R.id.progress);
-        mProgressRefresher = new Handler();
-        mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-
-        PreviewPlayer player = (PreviewPlayer) getLastNonConfigurationInstance();
-        if (player == null) {
-            mPlayer = new PreviewPlayer();
-            mPlayer.setActivity(this);
-            try {
-                mPlayer.setDataSourceAndPrepare(mUri);
-            } catch (Exception ex) {
-                // catch generic Exception, since we may be called with a media
-                // content URI, another content provider's URI, a file URI,
-                // an http URI, and there are different exceptions associated
-                // with failure to open each of those.
-                Log.d(TAG, "Failed to open file: " + ex);
-                Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
-                finish();
-                return;
-            }
-        } else {
-            mPlayer = player;
-            mPlayer.setActivity(this);
-            // onResume will update the UI
-        }
+        mAlbumArt = (ImageView) findViewById(R.id.albumart);
+        mSeekBar = (WaveformSeekBar) findViewById(R.id.progress);
+        mChoreographer = Choreographer.getInstance();
+        mFocus = new AudioFocusHelper(this, AudioManager.AUDIOFOCUS_GAIN_TRANSIENT, mFocusListener);
 
-        AsyncQueryHandler mAsyncQueryHandler = new AsyncQueryHandler(getContentResolver()) {
+        mQueryHandler = new AsyncQueryHandler(getContentResolver()) {
             @Override
             protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+                if (cookie != mUri) {
+                    // The item was skipped before its query came back.
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    return;
+                }
+                PreviewTimings.endAsyncSection(PreviewTimings.STAGE_QUERY,
+                        System.identityHashCode(AudioPreview.this));
+                PreviewTimings.record(mUri.getScheme(), PreviewTimings.STAGE_QUERY,
+                        SystemClock.uptimeMillis() - mQueryStart);
                 if (cursor != null && cursor.moveToFirst()) {
                     int titleIdx = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
                     int artistIdx = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
                     int idIdx = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+                    int albumIdIdx = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
                     int displaynameIdx = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
 
                     if (idIdx >= 0) {
                         mMediaId = cursor.getLong(idIdx);
                     }
+                    if (albumIdIdx >= 0) {
+                        mAlbumId = cursor.getLong(albumIdIdx);
+                    }
 
                     if (titleIdx >= 0) {
                         String title = cursor.getString(titleIdx);
@@ -146,7 +163,9 @@ public class AudioPreview
                             String artist = cursor.getString(artistIdx);
                             mTextLine2.setText(artist);
                         }
-                    } else if (displaynameIdx >= 0) {
+                    } else if (displaynameIdx >= 0
+                            && TextUtils.isEmpty(mTextLine1.getText())) {
+                        // Unless the tags were read already.
                         String name = cursor.getString(displaynameIdx);
                         mTextLine1.setText(name);
                     } else {
@@ -161,32 +180,161 @@ public class AudioPreview
                     cursor.close();
                 }
                 setNames();
+                loadAlbumArt();
+                if (mUri.getScheme().equals("file") && mMediaId < 0) {
+                    loadTags();
+                }
             }
         };
 
+        if (player == null) {
+            if (!openItem(0, createTime)) {
+                return;
+            }
+        } else {
+            mPlayer = player;
+            mPlayer.setActivity(this);
+            PreviewPlayer next = mPlayer.mNext;
+            if (next != null && next.isPrepared() && mPlayer.isPrepared()) {
+                // It may have become ready while no activity was there to chain it.
+                mPlayer.setNextMediaPlayer(next);
+            }
+            // onResume will update the UI
+        }
+        loadItemInfo();
+    }
+
+    /**
+     * Returns the items an intent asks to preview: its data, then any ClipData items and
+     * EXTRA_STREAM URIs, without repeats.
+     */
+    private static List<Uri> getPreviewUris(Intent intent) {
+        List<Uri> uris = new ArrayList<Uri>();
+        addPreviewUri(uris, intent.getData());
+        ClipData clip = intent.getClipData();
+        if (clip != null) {
+            for (int i = 0; i < clip.getItemCount(); i++) {
+                addPreviewUri(uris, clip.getItemAt(i).getUri());
+            }
+        }
+        if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+            ArrayList<Parcelable> streams =
+                    intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+            if (streams != null) {
+                for (Parcelable stream : streams) {
+                    if (stream instanceof Uri) {
+                        addPreviewUri(uris, (Uri) stream);
+                    }
+                }
+            }
+        } else {
+            Parcelable stream = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+            if (stream instanceof Uri) {
+                addPreviewUri(uris, (Uri) stream);
+            }
+        }
+        return uris;
+    }
+
+    private static void addPreviewUri(List<Uri> uris, Uri uri) {
+        if (uri != null && uri.getScheme() != null && !uris.contains(uri)) {
+            uris.add(uri);
+        }
+    }
+
+    /**
+     * Opens item index in a new player and starts preparing it. Items that can't be opened
+     * are skipped; if none from index on can be, the preview is finished and this returns
+     * false.
+     */
+    private boolean openItem(int index, long openTime) {
+        for (; index < mUris.size(); index++) {
+            Uri uri = mUris.get(index);
+            PreviewPlayer player = PreviewPlayer.obtain();
+            player.mIndex = index;
+            player.setActivity(this);
+            player.mOpenTime = openTime;
+            long setDataSourceStart = SystemClock.uptimeMillis();
+            PreviewTimings.beginSection(PreviewTimings.STAGE_SET_DATA_SOURCE);
+            try {
+                player.setDataSourceAndPrepare(uri);
+                PreviewTimings.record(uri.getScheme(), PreviewTimings.STAGE_SET_DATA_SOURCE,
+                        SystemClock.uptimeMillis() - setDataSourceStart);
+                mPlayer = player;
+                mUri = uri;
+                return true;
+            } catch (Exception ex) {
+                // catch generic Exception, since we may be called with a media
+                // content URI, another content provider's URI, a file URI,
+                // an http URI, and there are different exceptions associated
+                // with failure to open each of those.
+                Log.d(TAG, "Failed to open file: " + ex);
+                PlayerPool.getInstance().recycle(player);
+            } finally {
+                PreviewTimings.endSection();
+            }
+        }
+        Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
+        finish();
+        return false;
+    }
+
+    /** Clears what was shown for the previous item and starts looking up mUri's names. */
+    private void loadItemInfo() {
+        String scheme = mUri.getScheme();
+        mMediaId = -1;
+        mAlbumId = -1;
+        mTextLine1.setText(null);
+        mTextLine2.setText(null);
+        mAlbumArt.setVisibility(View.GONE);
+        if (mArtCallback != null) {
+            AlbumArtCache.getInstance(this).cancel(mArtCallback);
+            mArtCallback = null;
+        }
+        if (mWaveformLoader != null) {
+            mWaveformLoader.cancel();
+            mWaveformLoader = null;
+        }
+        mSeekBar.setPeaks(null);
+        if (scheme.equals("http") && !mPlayer.isPrepared()) {
+            String msg = getString(R.string.streamloadingtext, mUri.getHost());
+            mLoadingText.setText(msg);
+            mLoadingText.setVisibility(View.VISIBLE);
+        } else {
+            mLoadingText.setVisibility(View.GONE);
+        }
+
+        mQueryStart = SystemClock.uptimeMillis();
+        if (scheme.equals(ContentResolver.SCHEME_CONTENT) || scheme.equals("file")) {
+            PreviewTimings.beginAsyncSection(PreviewTimings.STAGE_QUERY,
+                    System.identityHashCode(this));
+        }
         if (scheme.equals(ContentResolver.SCHEME_CONTENT)) {
-            if (mUri.getAuthority() == MediaStore.AUTHORITY) {
+            if (MediaStore.AUTHORITY.equals(mUri.getAuthority())) {
                 // try to get title and artist from the media content provider
-                mAsyncQueryHandler.startQuery(0, null, mUri,
-                        new String[] {MediaStore.Audio.Media.TITLE, MediaStore.Audio.Media.ARTIST},
+                mQueryHandler.startQuery(0, mUri, mUri,
+                        new String[] {MediaStore.Audio.Media._ID, MediaStore.Audio.Media.TITLE,
+                                MediaStore.Audio.Media.ARTIST, MediaStore.Audio.Media.ALBUM_ID},
                         null, null, null);
             } else {
                 // Try to get the display name from another content provider.
                 // Don't specifically ask for the display name though, since the
                 // provider might not actually support that column.
-                mAsyncQueryHandler.startQuery(0, null, mUri, null, null, null, null);
+                mQueryHandler.startQuery(0, mUri, mUri, null, null, null, null);
+                loadTags();
             }
         } else if (scheme.equals("file")) {
             // check if this file is in the media database (clicking on a download
             // in the download manager might follow this path
             String path = mUri.getPath();
-            mAsyncQueryHandler.startQuery(0, null, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+            mQueryHandler.startQuery(0, mUri, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
                     new String[] {MediaStore.Audio.Media._ID, MediaStore.Audio.Media.TITLE,
-                            MediaStore.Audio.Media.ARTIST},
+                            MediaStore.Audio.Media.ARTIST, MediaStore.Audio.Media.ALBUM_ID},
                     MediaStore.Audio.Media.DATA + "=?", new String[] {path}, null);
         } else {
-            // We can't get metadata from the file/stream itself yet, because
-            // that API is hidden, so instead we display the URI being played
+            // Read the tags while the stream prepares, and show the URI being played
+            // until then.
+            loadTags();
             if (mPlayer.isPrepared()) {
                 setNames();
             }
@@ -197,9 +345,7 @@ public class AudioPreview
     public void onPause() {
         super.onPause();
         mUiPaused = true;
-        if (mProgressRefresher != null) {
-            mProgressRefresher.removeCallbacksAndMessages(null);
-        }
+        stopProgressUpdates();
     }
 
     @Override
@@ -220,18 +366,25 @@ public class AudioPreview
 
     @Override
     public void onDestroy() {
+        if (mWaveformLoader != null) {
+            mWaveformLoader.cancel();
+        }
+        if (mArtCallback != null) {
+            AlbumArtCache.getInstance(this).cancel(mArtCallback);
+        }
         stopPlayback();
         super.onDestroy();
     }
 
     private void stopPlayback() {
-        if (mProgressRefresher != null) {
-            mProgressRefresher.removeCallbacksAndMessages(null);
-        }
+        stopProgressUpdates();
+        releaseNext();
         if (mPlayer != null) {
-            mPlayer.release();
+            PlayerPool.getInstance().recycle(mPlayer);
             mPlayer = null;
-            mAudioManager.abandonAudioFocus(mAudioFocusListener);
+        }
+        if (mFocus != null) {
+            mFocus.abandonFocus();
         }
     }
 
@@ -242,12 +395,101 @@ public class AudioPreview
         super.onUserLeaveHint();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        PreviewTimings.dump(prefix, writer);
+        PlayerPool.getInstance().dump(prefix, writer);
+    }
+
     public void onPrepared(MediaPlayer mp) {
         if (isFinishing()) return;
-        mPlayer = (PreviewPlayer) mp;
+        PreviewPlayer player = (PreviewPlayer) mp;
+        PreviewTimings.endAsyncSection(PreviewTimings.STAGE_PREPARE,
+                System.identityHashCode(player));
+        PreviewTimings.record(mUris.get(player.mIndex).getScheme(),
+                PreviewTimings.STAGE_PREPARE, SystemClock.uptimeMillis() - player.mPrepareStart);
+        if (mPlayer != null && player == mPlayer.mNext) {
+            // The following item is ready; have it start the moment this one ends.
+            if (mPlayer.isPrepared()) {
+                mPlayer.setNextMediaPlayer(player);
+            }
+            return;
+        }
+        mPlayer = player;
+        startItem();
+    }
+
+    private void startItem() {
         setNames();
-        mPlayer.start();
+        start();
+        mPlayer.mStartTime = SystemClock.uptimeMillis();
+        mPlayer.mAwaitingFirstAudio = true;
         showPostPrepareUI();
+        prepareNext();
+    }
+
+    /** Starts preparing the item after the current one, if there is one. */
+    private void prepareNext() {
+        int index = mPlayer.mIndex + 1;
+        if (mPlayer.mNext != null || index >= mUris.size()) {
+            return;
+        }
+        PreviewPlayer next = PreviewPlayer.obtain();
+        next.setVolume(mFocus.getVolume(), mFocus.getVolume());
+        next.mIndex = index;
+        next.setActivity(this);
+        next.mOpenTime = SystemClock.uptimeMillis();
+        try {
+            next.setDataSourceAndPrepare(mUris.get(index));
+            mPlayer.mNext = next;
+        } catch (Exception ex) {
+            // It gets another chance, and the error, when it is skipped to.
+            Log.d(TAG, "Failed to open next file: " + ex);
+            PlayerPool.getInstance().recycle(next);
+        }
+    }
+
+    private void releaseNext() {
+        if (mPlayer != null && mPlayer.mNext != null) {
+            mPlayer.setNextMediaPlayer(null);
+            PlayerPool.getInstance().recycle(mPlayer.mNext);
+            mPlayer.mNext = null;
+        }
+    }
+
+    /**
+     * Makes item index the current one. The pre-prepared next player is used if it is that
+     * item; otherwise the item is opened afresh.
+     */
+    private void skipTo(int index) {
+        if (mPlayer == null || index < 0 || index >= mUris.size()) {
+            return;
+        }
+        stopProgressUpdates();
+        mPlayer.mSeeks.reset();
+        PreviewPlayer next = mPlayer.mNext;
+        if (next != null && next.mIndex == index) {
+            mPlayer.mNext = null;
+            mPlayer.setNextMediaPlayer(null);
+            PlayerPool.getInstance().recycle(mPlayer);
+            mPlayer = next;
+            mUri = mUris.get(index);
+        } else {
+            releaseNext();
+            PlayerPool.getInstance().recycle(mPlayer);
+            mPlayer = null;
+            if (!openItem(index, SystemClock.uptimeMillis())) {
+                return;
+            }
+        }
+        loadItemInfo();
+        if (mPlayer.isPrepared()) {
+            startItem();
+        } else {
+            // onPrepared takes it from here.
+            findViewById(R.id.spinner).setVisibility(View.VISIBLE);
+        }
     }
 
     private void showPostPrepareUI() {
@@ -262,54 +504,72 @@ public class AudioPreview
             }
         }
         mSeekBar.setOnSeekBarChangeListener(mSeekListener);
+        loadWaveform();
         mLoadingText.setVisibility(View.GONE);
         View v = findViewById(R.id.titleandbuttons);
         v.setVisibility(View.VISIBLE);
-        mAudioManager.requestAudioFocus(mAudioFocusListener, AudioManager.STREAM_MUSIC,
-                AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
-        if (mProgressRefresher != null) {
-            mProgressRefresher.removeCallbacksAndMessages(null);
-            mProgressRefresher.postDelayed(new ProgressRefresher(), 200);
+        if (mPlayer.isPlaying()) {
+            // e.g. after a configuration change, which left focus with the old activity.
+            mFocus.requestFocus();
         }
+        startProgressUpdates();
         updatePlayPause();
     }
 
-    private OnAudioFocusChangeListener mAudioFocusListener = new OnAudioFocusChangeListener() {
-        public void onAudioFocusChange(int focusChange) {
-            if (mPlayer == null) {
-                // this activity has handed its MediaPlayer off to the next activity
-                // (e.g. portrait/landscape switch) and should abandon its focus
-                mAudioManager.abandonAudioFocus(this);
-                return;
+    private final AudioFocusHelper.Listener mFocusListener = new AudioFocusHelper.Listener() {
+        @Override
+        public boolean isPlaying() {
+            return mPlayer != null && mPlayer.isPlaying();
+        }
+
+        @Override
+        public void play() {
+            if (mPlayer != null && mPlayer.isPrepared()) {
+                start();
+                updatePlayPause();
             }
-            switch (focusChange) {
-                case AudioManager.AUDIOFOCUS_LOSS:
-                    mPausedByTransientLossOfFocus = false;
-                    mPlayer.pause();
-                    break;
-                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                    if (mPlayer.isPlaying()) {
-                        mPausedByTransientLossOfFocus = true;
-                        mPlayer.pause();
-                    }
-                    break;
-                case AudioManager.AUDIOFOCUS_GAIN:
-                    if (mPausedByTransientLossOfFocus) {
-                        mPausedByTransientLossOfFocus = false;
-                        start();
-                    }
-                    break;
+        }
+
+        @Override
+        public void pause() {
+            if (mPlayer != null) {
+                AudioPreview.this.pause();
+                updatePlayPause();
+            }
+        }
+
+        @Override
+        public void setVolume(float volume) {
+            if (mPlayer != null) {
+                mPlayer.setVolume(volume, volume);
+                if (mPlayer.mNext != null) {
+                    mPlayer.mNext.setVolume(volume, volume);
+                }
             }
-            updatePlayPause();
         }
     };
 
+    // Focus is only asked for if it isn't held already, so this is cheap after a pause.
     private void start() {
-        mAudioManager.requestAudioFocus(mAudioFocusListener, AudioManager.STREAM_MUSIC,
-                AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
+        if (!mFocus.requestFocus()) {
+            // Refused, or granted later, when the focus listener starts playback.
+            return;
+        }
+        mPlayer.setVolume(mFocus.getVolume(), mFocus.getVolume());
         mPlayer.start();
-        mProgressRefresher.postDelayed(new ProgressRefresher(), 200);
+        startProgressUpdates();
+    }
+
+    private void pause() {
+        if (mPlayer.isPlaying()) {
+            mPlayer.pause();
+        }
+        mFocus.onPlaybackPaused();
+        // Leaves the seek bar where playback stopped, rather than extrapolating past it.
+        stopProgressUpdates();
+        if (mPlayer.isPrepared() && !mSeeking && mDuration != 0) {
+            mSeekBar.setProgress(mPlayer.getCurrentPosition());
+        }
     }
 
     public void setNames() {
@@ -323,19 +583,182 @@ public class AudioPreview
         }
     }
 
-    class ProgressRefresher implements Runnable {
-        @Override
-        public void run() {
-            if (mPlayer != null && !mSeeking && mDuration != 0) {
-                mSeekBar.setProgress(mPlayer.getCurrentPosition());
+    /**
+     * Reads the title and artist from the file's own tags, for media that isn't in the
+     * media database. Runs alongside prepare, reading only the tag headers.
+     */
+    private void loadTags() {
+        final Uri uri = mUri;
+        final ContentResolver resolver = getContentResolver();
+        final HttpCacheDataSource httpSource = mPlayer == null ? null : mPlayer.mHttpSource;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final TagParser.Tags tags = readTags(resolver, uri, httpSource);
+                if (tags != null) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (uri == mUri) {
+                                showTags(tags);
+                            }
+                        }
+                    });
+                }
+            }
+        }, "AudioPreview tags").start();
+    }
+
+    private static TagParser.Tags readTags(
+            ContentResolver resolver, Uri uri, HttpCacheDataSource httpSource) {
+        try {
+            if (httpSource != null) {
+                // Shares the cache with the player, so no byte is downloaded twice.
+                return TagParser.parse(httpSource);
+            }
+            String scheme = uri.getScheme();
+            if (!ContentResolver.SCHEME_CONTENT.equals(scheme)
+                    && !ContentResolver.SCHEME_FILE.equals(scheme)) {
+                return null;
+            }
+            ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return null;
+            }
+            FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            try {
+                return TagParser.parse(TagParser.fromChannel(in.getChannel()));
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "Couldn't read tags: " + e);
+            return null;
+        }
+    }
+
+    private void showTags(TagParser.Tags tags) {
+        if (isFinishing()) {
+            return;
+        }
+        if (tags.title != null) {
+            mTextLine1.setText(tags.title);
+            if (mPlayer != null && !mPlayer.isPrepared()) {
+                // Say what is loading while the spinner is still up.
+                mLoadingText.setText(tags.title);
+                mLoadingText.setVisibility(View.VISIBLE);
+            }
+        }
+        if (tags.artist != null) {
+            mTextLine2.setText(tags.artist);
+        }
+        setNames();
+    }
+
+    // Only for local files: a stream would have to be downloaded first.
+    private void loadWaveform() {
+        String scheme = mUri.getScheme();
+        if (mWaveformLoader != null || mDuration == 0
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+                || !(ContentResolver.SCHEME_CONTENT.equals(scheme)
+                        || ContentResolver.SCHEME_FILE.equals(scheme))) {
+            return;
+        }
+        mWaveformLoader = new WaveformLoader(this, mUri, new WaveformLoader.Listener() {
+            @Override
+            public void onPeaksLoaded(byte[] peaks, boolean done) {
+                mSeekBar.setPeaks(peaks);
             }
-            mProgressRefresher.removeCallbacksAndMessages(null);
-            if (!mUiPaused) {
-                mProgressRefresher.postDelayed(new ProgressRefresher(), 200);
+        });
+        mWaveformLoader.start();
+    }
+
+    private void loadAlbumArt() {
+        AlbumArtCache cache = AlbumArtCache.getInstance(this);
+        int size = getResources().getDimensionPixelSize(R.dimen.audiopreview_art_size);
+        mArtCallback = new AlbumArtCache.Callback() {
+            @Override
+            public void onArtLoaded(Bitmap art) {
+                if (art != null && this == mArtCallback && !isFinishing()) {
+                    mAlbumArt.setImageBitmap(art);
+                    mAlbumArt.setVisibility(View.VISIBLE);
+                }
+            }
+        };
+        if (mAlbumId >= 0) {
+            cache.load(mAlbumId, size, mArtCallback);
+        } else {
+            // Not in the media database, so look for a picture in the file itself.
+            cache.loadEmbedded(mUri, size, mArtCallback);
+        }
+    }
+
+    /**
+     * Moves the seek bar along with playback on every frame until stopped or paused. Call
+     * it whenever playback starts, so that it starts from where the player really is.
+     */
+    private void startProgressUpdates() {
+        if (mPlayer == null || mUiPaused || mDuration == 0) {
+            return;
+        }
+        int position = mPlayer.mProgress.sync(System.nanoTime());
+        if (!mPlayer.isPlaying()) {
+            // Nothing moves while paused, so no frames are needed; just show where it is.
+            stopProgressUpdates();
+            if (!mSeeking) {
+                mSeekBar.setProgress(position);
             }
+            return;
+        }
+        if (!mProgressRunning) {
+            mProgressRunning = true;
+            mChoreographer.postFrameCallback(mProgressDriver);
+        }
+    }
+
+    private void stopProgressUpdates() {
+        if (mProgressRunning) {
+            mProgressRunning = false;
+            mChoreographer.removeFrameCallback(mProgressDriver);
         }
     }
 
+    private void recordFirstAudio() {
+        mPlayer.mAwaitingFirstAudio = false;
+        long now = SystemClock.uptimeMillis();
+        String scheme = mUri.getScheme();
+        PreviewTimings.record(scheme, PreviewTimings.STAGE_FIRST_AUDIO, now - mPlayer.mStartTime);
+        PreviewTimings.record(scheme, PreviewTimings.STAGE_TOTAL, now - mPlayer.mOpenTime);
+    }
+
+    private final Choreographer.FrameCallback mProgressDriver = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mProgressRunning || mPlayer == null) {
+                mProgressRunning = false;
+                return;
+            }
+            ProgressClock clock = mPlayer.mProgress;
+            // Until the position first moves, ask every frame to time the first audio.
+            if (mPlayer.mAwaitingFirstAudio && clock.sync(frameTimeNanos) > 0) {
+                recordFirstAudio();
+            }
+            int position = clock.positionAt(frameTimeNanos);
+            if (position < 0) {
+                // Paused or ended without going through pause(), e.g. completion.
+                mProgressRunning = false;
+                if (!mSeeking) {
+                    mSeekBar.setProgress(clock.getLastPosition());
+                }
+                return;
+            }
+            if (!mSeeking) {
+                mSeekBar.setProgress(Math.min(position, mDuration));
+            }
+            mChoreographer.postFrameCallback(this);
+        }
+    };
+
     private void updatePlayPause() {
         ImageButton b = (ImageButton) findViewById(R.id.playpause);
         if (b != null && mPlayer != null) {
@@ -343,7 +766,7 @@ public class AudioPreview
                 b.setImageResource(R.drawable.btn_playback_ic_pause_small);
             } else {
                 b.setImageResource(R.drawable.btn_playback_ic_play_small);
-                mProgressRefresher.removeCallbacksAndMessages(null);
+                stopProgressUpdates();
             }
         }
     }
@@ -360,20 +783,57 @@ public class AudioPreview
             if (mPlayer == null) {
                 return;
             }
-            mPlayer.seekTo(progress);
+            // While dragging, land anywhere near the thumb quickly.
+            mPlayer.mSeeks.seekTo(progress, mSeeking);
+            mPlayer.mProgress.set(progress, System.nanoTime());
         }
         public void onStopTrackingTouch(SeekBar bar) {
             mSeeking = false;
+            if (mPlayer != null) {
+                // One exact seek to where the thumb was let go.
+                mPlayer.mSeeks.seekTo(bar.getProgress(), false);
+            }
         }
     };
 
     public boolean onError(MediaPlayer mp, int what, int extra) {
+        if (mPlayer != null && mp == mPlayer.mNext) {
+            // Found out early; skipping to it will try again.
+            releaseNext();
+            return true;
+        }
+        ((PreviewPlayer) mp).mSeeks.reset();
+        if (mPlayer != null && mp == mPlayer && mPlayer.mIndex + 1 < mUris.size()) {
+            skipTo(mPlayer.mIndex + 1);
+            return true;
+        }
         Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
         finish();
         return true;
     }
 
     public void onCompletion(MediaPlayer mp) {
+        if (mp != mPlayer) {
+            return;
+        }
+        PreviewPlayer next = mPlayer.mNext;
+        if (next != null && next.isPrepared()) {
+            // The framework has already started the next player, without a gap.
+            mPlayer.mNext = null;
+            PlayerPool.getInstance().recycle(mPlayer);
+            mPlayer = next;
+            mUri = mUris.get(next.mIndex);
+            mPlayer.mStartTime = SystemClock.uptimeMillis();
+            mPlayer.mAwaitingFirstAudio = true;
+            loadItemInfo();
+            showPostPrepareUI();
+            prepareNext();
+            return;
+        }
+        if (mPlayer.mIndex + 1 < mUris.size()) {
+            skipTo(mPlayer.mIndex + 1);
+            return;
+        }
         mSeekBar.setProgress(mDuration);
         updatePlayPause();
     }
@@ -384,7 +844,7 @@ public class AudioPreview
             return;
         }
         if (mPlayer.isPlaying()) {
-            mPlayer.pause();
+            pause();
         } else {
             start();
         }
@@ -394,10 +854,8 @@ public class AudioPreview
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
-        // TODO: if mMediaId != -1, then the playing file has an entry in the media
-        // database, and we could open it in the full music app instead.
-        // Ideally, we would hand off the currently running mediaplayer
-        // to the music UI, which can probably be done via a public static
+        // If the playing file has an entry in the media database, it can carry on
+        // playing in the full music app.
         menu.add(0, OPEN_IN_MUSIC, 0, "open in music");
         return true;
     }
@@ -413,13 +871,46 @@ public class AudioPreview
         return false;
     }
 
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == OPEN_IN_MUSIC) {
+            openInMusic();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Hands the running player to the playback service, which plays on from where the
+     * preview is without opening or preparing the file again, and shows the music app.
+     */
+    private void openInMusic() {
+        if (mPlayer == null || !mPlayer.isPrepared() || mMediaId < 0) {
+            return;
+        }
+        stopProgressUpdates();
+        releaseNext();
+        // Also puts the volume back if ducked, before the service takes over the player.
+        mFocus.abandonFocus();
+        PreviewPlayer player = mPlayer;
+        mPlayer = null;
+        player.mActivity = null;
+        MediaPlaybackService.handOffPlayer(this, player, mMediaId);
+        startActivity(new Intent(this, MusicBrowserActivity.class));
+        finish();
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (mPlayer == null) {
+            // No item could be opened, and the activity is finishing.
+            return super.onKeyDown(keyCode, event);
+        }
         switch (keyCode) {
             case KeyEvent.KEYCODE_HEADSETHOOK:
             case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
                 if (mPlayer.isPlaying()) {
-                    mPlayer.pause();
+                    pause();
                 } else {
                     start();
                 }
@@ -430,14 +921,29 @@ public class AudioPreview
                 updatePlayPause();
                 return true;
             case KeyEvent.KEYCODE_MEDIA_PAUSE:
-                if (mPlayer.isPlaying()) {
-                    mPlayer.pause();
-                }
+                pause();
                 updatePlayPause();
                 return true;
-            case KeyEvent.KEYCODE_MEDIA_FAST_FORWARD:
             case KeyEvent.KEYCODE_MEDIA_NEXT:
+                skipTo(mPlayer.mIndex + 1);
+                return true;
             case KeyEvent.KEYCODE_MEDIA_PREVIOUS:
+                if (mPlayer.isPrepared()
+                        && (mPlayer.mIndex == 0
+                                || mPlayer.getCurrentPosition() > RESTART_THRESHOLD_MS)) {
+                    mPlayer.mSeeks.seekTo(0, false);
+                    if (mPlayer.isPlaying()) {
+                        startProgressUpdates();
+                    } else if (!mSeeking) {
+                        mSeekBar.setProgress(0);
+                    }
+                    // The seek may not have landed yet, so anchor to where it goes.
+                    mPlayer.mProgress.set(0, System.nanoTime());
+                } else {
+                    skipTo(mPlayer.mIndex - 1);
+                }
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_FAST_FORWARD:
             case KeyEvent.KEYCODE_MEDIA_REWIND:
                 return true;
             case KeyEvent.KEYCODE_MEDIA_STOP:
@@ -453,21 +959,88 @@ public class AudioPreview
      * Wrapper class to help with handing off the MediaPlayer to the next instance
      * of the activity in case of orientation change, without losing any state.
      */
-    private static class PreviewPlayer extends MediaPlayer implements OnPreparedListener {
+    private static class PreviewPlayer extends MediaPlayer
+            implements OnPreparedListener, OnSeekCompleteListener, SeekScheduler.Seeker,
+            ProgressClock.Player {
+        // A preview left paused this long without being closed has probably leaked.
+        private static final long LEAK_TIMEOUT_MS = 10 * 60 * 1000;
+
+        private static final PlayerPool.Factory<PreviewPlayer> FACTORY =
+                new PlayerPool.Factory<PreviewPlayer>() {
+            @Override
+            public PreviewPlayer create() {
+                return new PreviewPlayer();
+            }
+        };
+
         AudioPreview mActivity;
         boolean mIsPrepared = false;
+        final SeekScheduler mSeeks = new SeekScheduler(this);
+        final ProgressClock mProgress = new ProgressClock(this);
+        // For PreviewTimings, in uptime: when the preview was opened, when prepare and
+        // playback were started, and whether playback has been heard yet.
+        long mOpenTime;
+        long mPrepareStart;
+        long mStartTime;
+        boolean mAwaitingFirstAudio;
+        // The cache an http stream plays through, or null.
+        HttpCacheDataSource mHttpSource;
+        // Which of the activity's items this plays, and the player preparing the one after.
+        int mIndex;
+        PreviewPlayer mNext;
+
+        /** Returns a player from the pool, which must go back with PlayerPool.recycle. */
+        static PreviewPlayer obtain() {
+            return PlayerPool.getInstance().acquire(FACTORY, LEAK_TIMEOUT_MS);
+        }
+
+        // Called by the pool before the player is reused, so it starts out like a new one.
+        @Override
+        public void reset() {
+            super.reset();
+            if (mHttpSource != null) {
+                mHttpSource.close();
+                mHttpSource = null;
+            }
+            mActivity = null;
+            mIsPrepared = false;
+            mSeeks.reset();
+            mOpenTime = 0;
+            mPrepareStart = 0;
+            mStartTime = 0;
+            mAwaitingFirstAudio = false;
+            mIndex = 0;
+            mNext = null;
+        }
 
         public void setActivity(AudioPreview activity) {
             mActivity = activity;
             setOnPreparedListener(this);
             setOnErrorListener(mActivity);
             setOnCompletionListener(mActivity);
+            setOnSeekCompleteListener(this);
+            if (mNext != null) {
+                mNext.setActivity(activity);
+            }
         }
 
         public void setDataSourceAndPrepare(Uri uri) throws IllegalArgumentException,
                                                             SecurityException,
                                                             IllegalStateException, IOException {
-            setDataSource(mActivity, uri);
+            String scheme = uri.getScheme();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                    && ("http".equals(scheme) || "https".equals(scheme))) {
+                // Stream through a local cache, so seeking back and previewing the same
+                // stream again don't download it again. The player closes it on release.
+                mHttpSource = new HttpCacheDataSource(
+                        new File(mActivity.getCacheDir(), "preview"), uri.toString());
+                setDataSource(mHttpSource);
+            } else {
+                setDataSource(mActivity, uri);
+            }
+            mPrepareStart = SystemClock.uptimeMillis();
+            PreviewTimings.beginAsyncSection(PreviewTimings.STAGE_PREPARE,
+                    System.identityHashCode(this));
             prepareAsync();
         }
 
@@ -477,11 +1050,27 @@ public class AudioPreview
         @Override
         public void onPrepared(MediaPlayer mp) {
             mIsPrepared = true;
-            mActivity.onPrepared(mp);
+            if (mActivity != null) {
+                mActivity.onPrepared(mp);
+            }
         }
 
         boolean isPrepared() {
             return mIsPrepared;
         }
+
+        @Override
+        public void seek(long position, boolean fast) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                seekTo(position, fast ? SEEK_CLOSEST_SYNC : SEEK_CLOSEST);
+            } else {
+                seekTo((int) position);
+            }
+        }
+
+        @Override
+        public void onSeekComplete(MediaPlayer mp) {
+            mSeeks.onSeekComplete();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.media.MediaDataSource;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plays an http stream through a local cache. The stream is downloaded in blocks by a
+ * background thread using Range requests, and every block is written to a file in the
+ * cache directory, so seeking back is instant and playing the same URL again starts
+ * from disk. The most recently read blocks are also kept in a small in-memory ring.
+ * Seeking ahead of the download restarts it at the seek position.
+ *
+ * Cached blocks are checked against the server's ETag, or failing that its Last-Modified
+ * date, with If-Range when the download resumes, and are not read until the server has
+ * answered; if the resource has changed they are thrown away. A partial download with
+ * neither validator can't be checked, so it isn't resumed. The cache directory is
+ * trimmed to {@link #MAX_CACHE_BYTES}, oldest streams first, leaving alone streams that
+ * are open.
+ */
+class HttpCacheDataSource extends MediaDataSource implements TagParser.Source {
+    private static final String TAG = "HttpCacheDataSource";
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // Blocks kept in memory, at block number modulo the ring size.
+    private static final int RING_BLOCKS = 16;
+    // A read this many blocks ahead of the download waits for it instead of restarting it.
+    private static final int MAX_WAIT_BLOCKS = 4;
+    private static final int MAX_RETRIES = 3;
+    private static final int TIMEOUT_MS = 15000;
+    private static final int INFO_VERSION = 2;
+
+    static final long MAX_CACHE_BYTES = 64L * 1024 * 1024;
+
+    // How many sources have each cache file name open. Guarded by itself.
+    private static final Map<String, Integer> sOpen = new HashMap<String, Integer>();
+
+    private final URL mUrl;
+    private final File mCacheDir;
+    private final String mName;
+    private final File mDataFile;
+    private final File mInfoFile;
+    private final RandomAccessFile mData;
+    private final Thread mDownloader;
+
+    // All guarded by this.
+    private long mLength = -1;
+    private String mETag;
+    private String mLastModified;
+    private final BitSet mPresent = new BitSet();
+    private final byte[][] mRing = new byte[RING_BLOCKS][];
+    private final int[] mRingBlock = new int[RING_BLOCKS];
+    private final int[] mRingLength = new int[RING_BLOCKS];
+    // Set once the server has answered, or the whole stream was found cached. Until then
+    // cached blocks may be stale, so none are read.
+    private boolean mResponded;
+    private boolean mRangeSupported = true;
+    private int mDownloadBlock;
+    private int mRestartBlock = -1;
+    private IOException mError;
+    private boolean mClosed;
+    private HttpURLConnection mConnection;
+
+    HttpCacheDataSource(File cacheDir, String url) throws IOException {
+        mUrl = new URL(url);
+        mCacheDir = cacheDir;
+        mCacheDir.mkdirs();
+        String name = hashKey(url);
+        mName = name;
+        mDataFile = new File(cacheDir, name + ".data");
+        mInfoFile = new File(cacheDir, name + ".info");
+        synchronized (sOpen) {
+            Integer count = sOpen.get(name);
+            sOpen.put(name, count == null ? 1 : count + 1);
+        }
+        Arrays.fill(mRingBlock, -1);
+        readInfo(url);
+        try {
+            mData = new RandomAccessFile(mDataFile, "rw");
+        } catch (IOException e) {
+            // e.g. the cache directory is full or unwritable; don't keep it marked open.
+            unregister(name);
+            throw e;
+        }
+        long now = System.currentTimeMillis();
+        mDataFile.setLastModified(now);
+        mInfoFile.setLastModified(now);
+        mDownloader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                trimCache();
+                download();
+            }
+        }, TAG);
+        mDownloader.start();
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        int block = (int) (position / BLOCK_SIZE);
+        int blockOffset = (int) (position % BLOCK_SIZE);
+        synchronized (this) {
+            while (true) {
+                if (mClosed) {
+                    throw new IOException("closed");
+                }
+                if (mLength >= 0 && position >= mLength) {
+                    return -1;
+                }
+                int slot = block % RING_BLOCKS;
+                if (mRingBlock[slot] != block && mPresent.get(block) && mResponded) {
+                    loadBlock(block, slot);
+                }
+                if (mRingBlock[slot] == block) {
+                    int n = Math.min(size, mRingLength[slot] - blockOffset);
+                    System.arraycopy(mRing[slot], blockOffset, buffer, offset, n);
+                    return n;
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+                // A cached block only waits for the server to answer.
+                if (mRangeSupported && !mPresent.get(block)
+                        && (block < mDownloadBlock || block > mDownloadBlock + MAX_WAIT_BLOCKS)) {
+                    mRestartBlock = block;
+                    disconnect();
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getSize() throws IOException {
+        // The player asks before reading anything, so wait for the server to tell us.
+        while (!mResponded && mError == null && !mClosed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        return mLength;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return getSize();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            disconnect();
+            notifyAll();
+            writeInfo();
+            try {
+                mData.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        unregister(mName);
+        mDownloader.interrupt();
+    }
+
+    private static void unregister(String name) {
+        synchronized (sOpen) {
+            int count = sOpen.get(name);
+            if (count > 1) {
+                sOpen.put(name, count - 1);
+            } else {
+                sOpen.remove(name);
+            }
+        }
+    }
+
+    private void download() {
+        int block;
+        synchronized (this) {
+            block = nextMissingBlock(0);
+            if (block < 0) {
+                // Fully cached, so there is nothing to ask the server.
+                mResponded = true;
+                notifyAll();
+            }
+        }
+        int retries = 0;
+        while (block >= 0) {
+            try {
+                block = downloadFrom(block);
+                retries = 0;
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    if (mRestartBlock >= 0) {
+                        // Disconnected on purpose to move the download.
+                        block = mRestartBlock;
+                        mRestartBlock = -1;
+                        continue;
+                    }
+                    // Retry the rest of the range, not what did arrive.
+                    int missing = nextMissingBlock(block);
+                    if (missing < 0) {
+                        break;
+                    }
+                    block = missing;
+                    if (++retries > MAX_RETRIES) {
+                        Log.w(TAG, "Giving up on " + mUrl, e);
+                        mError = e;
+                        notifyAll();
+                        return;
+                    }
+                }
+                try {
+                    Thread.sleep(retries * 1000L);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+        synchronized (this) {
+            if (!mClosed) {
+                writeInfo();
+            }
+        }
+    }
+
+    /**
+     * Downloads blocks from block on, and returns where to continue: the next block
+     * that is still missing, or -1 when the whole stream is cached.
+     */
+    private int downloadFrom(int block) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) mUrl.openConnection();
+        conn.setConnectTimeout(TIMEOUT_MS);
+        conn.setReadTimeout(TIMEOUT_MS);
+        long start = (long) block * BLOCK_SIZE;
+        synchronized (this) {
+            if (mClosed) {
+                return -1;
+            }
+            if (start > 0 || mPresent.cardinality() > 0) {
+                conn.setRequestProperty("Range", "bytes=" + start + "-");
+                String validator = mETag != null ? mETag : mLastModified;
+                if (validator != null) {
+                    conn.setRequestProperty("If-Range", validator);
+                }
+            }
+            mConnection = conn;
+            mDownloadBlock = block;
+        }
+        try {
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("HTTP " + code);
+            }
+            String etag = conn.getHeaderField("ETag");
+            String lastModified = conn.getHeaderField("Last-Modified");
+            long length = -1;
+            synchronized (this) {
+                if (code == HttpURLConnection.HTTP_OK) {
+                    // The whole resource: either it changed, or ranges aren't supported.
+                    if (!isSameResource(etag, lastModified)) {
+                        invalidate();
+                    }
+                    mRangeSupported = "bytes".equals(conn.getHeaderField("Accept-Ranges"));
+                    length = conn.getContentLengthLong();
+                    block = 0;
+                    mDownloadBlock = 0;
+                } else {
+                    length = parseTotalLength(conn.getHeaderField("Content-Range"));
+                }
+                mETag = etag;
+                mLastModified = lastModified;
+                if (length >= 0) {
+                    mLength = length;
+                }
+                mResponded = true;
+                notifyAll();
+            }
+            return readBlocks(conn.getInputStream(), block);
+        } finally {
+            synchronized (this) {
+                mConnection = null;
+            }
+            conn.disconnect();
+        }
+    }
+
+    private int readBlocks(InputStream in, int block) throws IOException {
+        byte[] buffer = new byte[BLOCK_SIZE];
+        while (true) {
+            int filled = 0;
+            int n = 0;
+            while (filled < BLOCK_SIZE && (n = in.read(buffer, filled, BLOCK_SIZE - filled)) > 0) {
+                filled += n;
+            }
+            synchronized (this) {
+                if (mClosed) {
+                    return -1;
+                }
+                long end = (long) block * BLOCK_SIZE + filled;
+                if (n < 0 && mLength >= 0 && end < mLength) {
+                    // The connection dropped early. The partial block isn't kept, since
+                    // it would be taken for a complete one.
+                    throw new IOException("Stream ended at " + end + " of " + mLength);
+                }
+                if (filled > 0 && !mPresent.get(block)) {
+                    mData.seek((long) block * BLOCK_SIZE);
+                    mData.write(buffer, 0, filled);
+                    mPresent.set(block);
+                    storeInRing(block, buffer, filled);
+                }
+                if (n < 0) {
+                    if (mLength < 0) {
+                        // The server didn't say how long it is; now we know.
+                        mLength = end;
+                    }
+                    mResponded = true;
+                    notifyAll();
+                    return nextMissingBlock(0);
+                }
+                block++;
+                mDownloadBlock = block;
+                notifyAll();
+                if (mRestartBlock >= 0) {
+                    int restart = mRestartBlock;
+                    mRestartBlock = -1;
+                    return restart;
+                }
+                if (mRangeSupported && mPresent.get(block)) {
+                    // Skip over what was cached before.
+                    return nextMissingBlock(block);
+                }
+            }
+        }
+    }
+
+    /** Returns the first block from block on that isn't cached, or -1 if there is none. */
+    private int nextMissingBlock(int block) {
+        int missing = mPresent.nextClearBit(block);
+        if (mLength >= 0 && (long) missing * BLOCK_SIZE >= mLength) {
+            missing = mPresent.nextClearBit(0);
+            if ((long) missing * BLOCK_SIZE >= mLength) {
+                return -1;
+            }
+        }
+        return missing;
+    }
+
+    private void loadBlock(int block, int slot) throws IOException {
+        if (mRing[slot] == null) {
+            mRing[slot] = new byte[BLOCK_SIZE];
+        }
+        long start = (long) block * BLOCK_SIZE;
+        int length = (int) (mLength >= 0 ? Math.min(BLOCK_SIZE, mLength - start) : BLOCK_SIZE);
+        mData.seek(start);
+        mData.readFully(mRing[slot], 0, length);
+        mRingBlock[slot] = block;
+        mRingLength[slot] = length;
+    }
+
+    private void storeInRing(int block, byte[] data, int length) {
+        int slot = block % RING_BLOCKS;
+        if (mRing[slot] == null) {
+            mRing[slot] = new byte[BLOCK_SIZE];
+        }
+        System.arraycopy(data, 0, mRing[slot], 0, length);
+        mRingBlock[slot] = block;
+        mRingLength[slot] = length;
+    }
+
+    // True if the validators of a response match those the cached blocks were stored with.
+    private boolean isSameResource(String etag, String lastModified) {
+        if (etag != null || mETag != null) {
+            return etag != null && etag.equals(mETag);
+        }
+        return lastModified != null && lastModified.equals(mLastModified);
+    }
+
+    private void invalidate() {
+        mPresent.clear();
+        Arrays.fill(mRingBlock, -1);
+        mLength = -1;
+    }
+
+    private void disconnect() {
+        if (mConnection != null) {
+            mConnection.disconnect();
+        }
+    }
+
+    // e.g. "bytes 65536-1048575/1048576", where the total may be "*"
+    private static long parseTotalLength(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void readInfo(String url) {
+        if (!mInfoFile.exists() || !mDataFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mInfoFile));
+            if (in.readInt() != INFO_VERSION || !url.equals(in.readUTF())) {
+                return;
+            }
+            String etag = in.readUTF();
+            mETag = etag.isEmpty() ? null : etag;
+            String lastModified = in.readUTF();
+            mLastModified = lastModified.isEmpty() ? null : lastModified;
+            mLength = in.readLong();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            mPresent.or(BitSet.valueOf(words));
+            if (mETag == null && mLastModified == null && nextMissingBlock(0) >= 0) {
+                // Resuming would splice whatever the server has now onto the old blocks.
+                invalidate();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring cache info for " + url, e);
+            mETag = null;
+            mLastModified = null;
+            invalidate();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void writeInfo() {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(mInfoFile));
+            out.writeInt(INFO_VERSION);
+            out.writeUTF(mUrl.toString());
+            out.writeUTF(mETag != null ? mETag : "");
+            out.writeUTF(mLastModified != null ? mLastModified : "");
+            out.writeLong(mLength);
+            long[] words = mPresent.toLongArray();
+            out.writeInt(words.length);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write cache info for " + mUrl, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /** Deletes the least recently opened streams until the cache fits its budget. */
+    private void trimCache() {
+        File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= MAX_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : files) {
+            if (total <= MAX_CACHE_BYTES) {
+                break;
+            }
+            if (isOpen(f)) {
+                continue;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    // True if f belongs to a stream that a source has open, this one included.
+    static boolean isOpen(File f) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        synchronized (sOpen) {
+            return sOpen.containsKey(dot < 0 ? name : name.substring(0, dot));
+        }
+    }
+
+    /** Returns a hex digest of key that can be used as a cache file name. */
+    static String hashKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads the {@link MusicLibrary} and keeps it in step with MediaStore. Change
+ * notifications are debounced, since the media scanner sends one for every file it
+ * touches, and each burst then costs a single {@link MusicLibrary#sync} pass that only
+ * fetches the rows that actually changed. The library is only reloaded from scratch if
+ * loading failed before or the provider's database was replaced.
+ *
+ * Loading and syncing run on the given executor, which must run one task at a time.
+ */
+class LibrarySync {
+    private static final String TAG = "LibrarySync";
+
+    // Quiet time after the last change notification before syncing.
+    private static final long DEBOUNCE_MS = 1000;
+    // Longest a continuous stream of notifications can hold off a sync.
+    private static final long MAX_DELAY_MS = 10000;
+
+    interface Listener {
+        /**
+         * Called on the executor when the library was loaded or changed. changed holds
+         * the ids of the nodes whose children changed, or is null if library is a newly
+         * loaded instance.
+         */
+        void onLibraryChanged(MusicLibrary library, List<String> changed);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Executor mExecutor;
+    private final Listener mListener;
+    // Only touched on the executor.
+    private MusicLibrary mLibrary;
+
+    // Uptime of the first notification since the last sync was scheduled, or -1.
+    private long mFirstPendingChange = -1;
+
+    // Guarded by this, written on the executor and read for metrics.
+    private int mNotifications;
+    private int mNodesChanged;
+    private final TimingStats mSyncStats = new TimingStats();
+
+    private final ContentObserver mObserver;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFirstPendingChange = -1;
+            mExecutor.execute(mSyncPass);
+        }
+    };
+
+    private final Runnable mSyncPass = new Runnable() {
+        @Override
+        public void run() {
+            syncNow();
+        }
+    };
+
+    /** handler is where change notifications are received and debounced. */
+    LibrarySync(Context context, Handler handler, Executor executor, Listener listener) {
+        mContext = context.getApplicationContext();
+        mHandler = handler;
+        mExecutor = executor;
+        mListener = listener;
+        mObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                notifyChanged();
+            }
+        };
+    }
+
+    /** Starts loading the library and listening for changes. */
+    void start() {
+        mContext.getContentResolver().registerContentObserver(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+        mExecutor.execute(mSyncPass);
+    }
+
+    void stop() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mHandler.removeCallbacks(mSyncRunnable);
+    }
+
+    /**
+     * Schedules a sync after the debounce delay. Called on the handler for every change
+     * notification, and directly by tests.
+     */
+    void notifyChanged() {
+        synchronized (this) {
+            mNotifications++;
+        }
+        scheduleSync();
+    }
+
+    private void scheduleSync() {
+        long now = SystemClock.uptimeMillis();
+        if (mFirstPendingChange < 0) {
+            mFirstPendingChange = now;
+        }
+        mHandler.removeCallbacks(mSyncRunnable);
+        mHandler.postAtTime(
+                mSyncRunnable, Math.min(now + DEBOUNCE_MS, mFirstPendingChange + MAX_DELAY_MS));
+    }
+
+    private void syncNow() {
+        long start = SystemClock.elapsedRealtime();
+        List<String> changed = null;
+        try {
+            if (mLibrary != null) {
+                changed = mLibrary.sync();
+            }
+            if (changed == null) {
+                mLibrary = MusicLibrary.load(mContext);
+                mListener.onLibraryChanged(mLibrary, null);
+            } else if (!changed.isEmpty()) {
+                mListener.onLibraryChanged(mLibrary, changed);
+            }
+        } catch (RuntimeException e) {
+            // e.g. no storage permission yet, browse requests get no children
+            Log.w(TAG, "Failed to load music library", e);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            mSyncStats.add(elapsed);
+            if (changed != null) {
+                mNodesChanged += changed.size();
+            }
+        }
+        if (MusicLibrary.DBG) {
+            Log.d(TAG, (changed == null ? "load" : "sync") + " took " + elapsed + "ms");
+        }
+    }
+
+    /**
+     * Adds the number of change notifications, changed nodes, and load and sync pass
+     * times to b.
+     */
+    synchronized void writeMetrics(Bundle b) {
+        b.putInt("library_notifications", mNotifications);
+        b.putInt("library_nodes_changed", mNodesChanged);
+        mSyncStats.writeTo(b, "library_sync_ms");
+    }
+}
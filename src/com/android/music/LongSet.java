@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Arrays;
+
+/**
+ * Set of longs, e.g. track ids, without boxing. The values are kept in the order they
+ * were added, in one long[], with an open addressing hash table of indexes into it for
+ * lookups. Removing is linear, which is fine for sets a user builds by hand.
+ *
+ * Not thread safe.
+ */
+final class LongSet {
+    private long[] mValues = new long[16];
+    private int mSize;
+    // Index + 1 into mValues of the value hashed to each slot, 0 for an empty slot. Never
+    // more than half full.
+    private int[] mTable = new int[32];
+
+    int size() {
+        return mSize;
+    }
+
+    /** Returns the value added index'th of those still in the set. */
+    long get(int index) {
+        return mValues[index];
+    }
+
+    boolean contains(long value) {
+        return mTable[slot(value)] != 0;
+    }
+
+    /** Adds value, returning false if it was in the set already. */
+    boolean add(long value) {
+        int slot = slot(value);
+        if (mTable[slot] != 0) {
+            return false;
+        }
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+        mValues[mSize++] = value;
+        if (mSize * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        } else {
+            mTable[slot] = mSize;
+        }
+        return true;
+    }
+
+    /** Adds each of values. */
+    void addAll(long[] values) {
+        for (long value : values) {
+            add(value);
+        }
+    }
+
+    /** Removes value, returning false if it wasn't in the set. */
+    boolean remove(long value) {
+        int slot = slot(value);
+        int index = mTable[slot] - 1;
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        mSize--;
+        // Both the indexes after it and the probe sequences through its slot changed.
+        rehash(mTable.length);
+        return true;
+    }
+
+    void clear() {
+        mSize = 0;
+        Arrays.fill(mTable, 0);
+    }
+
+    /** Returns the values in the order they were added. */
+    long[] toArray() {
+        return Arrays.copyOf(mValues, mSize);
+    }
+
+    // Returns the slot holding value, or the empty slot where it would go.
+    private int slot(long value) {
+        int mask = mTable.length - 1;
+        int slot = hash(value) & mask;
+        while (mTable[slot] != 0 && mValues[mTable[slot] - 1] != value) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int tableSize) {
+        mTable = new int[tableSize];
+        int mask = tableSize - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = hash(mValues[i]) & mask;
+            while (mTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mTable[slot] = i + 1;
+        }
+    }
+
+    // Ids are mostly sequential, so mix the bits before masking off the low ones.
+    private static int hash(long value) {
+        long h = value * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -17,23 +17,135 @@
 package com.android.music;
 
 import android.app.PendingIntent;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.media.AudioManager;
+import android.media.MediaDescription;
+import android.media.MediaMetadata;
+import android.media.MediaPlayer;
+import android.media.browse.MediaBrowser;
 import android.media.browse.MediaBrowser.MediaItem;
 import android.media.session.MediaSession;
+import android.media.session.MediaSessionManager.RemoteUserInfo;
 import android.media.session.PlaybackState;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
 import android.service.media.MediaBrowserService;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Provides "background" audio playback capabilities, allowing the
  * user to switch between activities without stopping playback.
  */
 public class MediaPlaybackService extends MediaBrowserService {
+    private static final String TAG = "MediaPlaybackService";
+
+    /**
+     * Custom action that makes the service reply with a {@link #SESSION_EVENT_METRICS}
+     * session event carrying the player's prepare time and transition gap statistics,
+     * along with the library sync counters.
+     */
+    static final String CUSTOM_ACTION_GET_METRICS = "com.android.music.GET_PLAYBACK_METRICS";
+    static final String SESSION_EVENT_METRICS = "com.android.music.PLAYBACK_METRICS";
+    static final String CUSTOM_ACTION_SHUFFLE = "com.android.music.SHUFFLE";
+    static final String CUSTOM_ACTION_REPEAT = "com.android.music.REPEAT";
+    static final String CUSTOM_ACTION_PARTY_SHUFFLE = "com.android.music.PARTY_SHUFFLE";
+
+    // Start intent action telling the service to take the player given to handOffPlayer.
+    private static final String ACTION_ADOPT_PLAYER = "com.android.music.ADOPT_PLAYER";
+    // A handed off player the service hasn't taken within this long, e.g. because it
+    // couldn't be started, goes back to the pool.
+    private static final long HANDOFF_TIMEOUT_MS = 10 * 1000;
+
+    private static final long PLAYBACK_ACTIONS = PlaybackState.ACTION_PLAY
+            | PlaybackState.ACTION_PAUSE | PlaybackState.ACTION_PLAY_PAUSE
+            | PlaybackState.ACTION_STOP | PlaybackState.ACTION_SEEK_TO
+            | PlaybackState.ACTION_SKIP_TO_NEXT | PlaybackState.ACTION_SKIP_TO_PREVIOUS
+            | PlaybackState.ACTION_SKIP_TO_QUEUE_ITEM | PlaybackState.ACTION_PLAY_FROM_MEDIA_ID
+            | PlaybackState.ACTION_PLAY_FROM_SEARCH;
+
+    // Skipping back within this many milliseconds of the start goes to the previous track,
+    // later it restarts the current one.
+    private static final long PREVIOUS_RESTART_THRESHOLD = 3000;
+
+    // Only this many QueueItems around the current position are published to the session,
+    // starting this many items before it.
+    private static final int QUEUE_WINDOW_SIZE = 50;
+    private static final int QUEUE_WINDOW_BEHIND = 10;
+
+    // In party shuffle mode the queue is kept topped up to this many upcoming tracks,
+    // and at most this many already played tracks are kept before the current one.
+    private static final int PARTY_SHUFFLE_UPCOMING = 10;
+    private static final int PARTY_SHUFFLE_PLAYED = 10;
+
+    // A voice search queues at most this many of the best matching tracks, and paging
+    // through a search node ends there too.
+    private static final int MAX_SEARCH_TRACKS = 500;
+
+    // Results for a search node loaded without paging options.
+    private static final int DEFAULT_SEARCH_RESULTS = 50;
+
+    // EXTRA_MEDIA_FOCUS of an unstructured search, "play some music".
+    private static final String FOCUS_ANY = "vnd.android.cursor.item/*";
+
+    // Size in pixels of the album art published with the session metadata.
+    private static final int METADATA_ART_SIZE = 512;
+
     private MediaSession mSession;
+    private MultiPlayer mPlayer;
+    private AudioFocusHelper mFocus;
+    private int mState = PlaybackState.STATE_NONE;
+    private final PlayQueue mQueue = new PlayQueue();
+    private QueueJournal mJournal;
+    // Playback position restored from the journal, applied when the track is opened.
+    private long mRestoredSeekPosition;
+    // Tracks skipped in a row because they failed to play, since one was picked or
+    // played through.
+    private int mErrorSkips;
+    // The queue generation and window last handed to MediaSession.setQueue.
+    private int mPublishedGeneration = -1;
+    private int mPublishedFrom = -1;
+    private final PartyShuffle mPartyShuffle = new PartyShuffle();
+    private final long[] mPartyShuffleBuffer = new long[PARTY_SHUFFLE_UPCOMING];
+    private boolean mPartyShuffleEnabled;
+    private boolean mServiceStarted;
+    private final Handler mHandler = new Handler();
+    // Player given to handOffPlayer until the service takes it or it times out. Main
+    // thread only.
+    private static MediaPlayer sHandedOffPlayer;
+    private static long sHandedOffTrackId;
+    private static final Handler sHandoffHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable sHandoffTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (sHandedOffPlayer != null) {
+                Log.w(TAG, "Handed off player wasn't taken, returning it to the pool");
+                recycleHandedOffPlayer();
+            }
+        }
+    };
+    private AlbumArtCache mArtCache;
+    // Loads and syncs the library and serves browse requests, in submission order.
+    private ExecutorService mLibraryExecutor;
+    private LibrarySync mLibrarySync;
+    private volatile MusicLibrary mLibrary;
+    // The search node each browser client asked for last, so that its queued searches
+    // for other nodes can be skipped. Keyed by package and uid, so it stays as small as
+    // the set of apps that search. Guarded by itself.
+    private final Map<String, String> mLatestSearches = new HashMap<String, String>();
 
     public MediaPlaybackService() {}
 
@@ -57,56 +169,862 @@ public class MediaPlaybackService extends MediaBrowserService {
         PendingIntent pi = PendingIntent.getActivity(
                 context, 99 /*request code*/, intent, PendingIntent.FLAG_UPDATE_CURRENT);
         mSession.setSessionActivity(pi);
+        mSession.setCallback(new MediaSessionCallback());
+
+        mPlayer = new MultiPlayer(this, mPlayerCallback);
+        mFocus = new AudioFocusHelper(this, AudioManager.AUDIOFOCUS_GAIN, mFocusListener);
+        mArtCache = AlbumArtCache.getInstance(this);
+
+        // Restore the queue before returning, so a sticky restart resumes where it was.
+        mJournal = new QueueJournal(new File(getFilesDir(), "queue"), mQueue);
+        QueueJournal.State saved = mJournal.restore();
+        if (saved != null && mQueue.size() > 0) {
+            mRestoredSeekPosition = saved.seekPosition;
+            mPartyShuffleEnabled = saved.partyShuffle;
+            mState = PlaybackState.STATE_PAUSED;
+        }
+
+        mLibraryExecutor = Executors.newSingleThreadExecutor();
+        mLibrarySync = new LibrarySync(this, mHandler, mLibraryExecutor, mLibraryListener);
+        mLibrarySync.start();
+        if (mQueue.size() > 0) {
+            runWhenLibraryLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    updateMetadata();
+                    updatePlaybackState();
+                }
+            });
+        }
     }
 
     @Override
     public int onStartCommand(Intent startIntent, int flags, int startId) {
+        if (startIntent != null && ACTION_ADOPT_PLAYER.equals(startIntent.getAction())) {
+            adoptHandedOffPlayer();
+        }
         return START_STICKY;
     }
 
+    /**
+     * Gives a prepared player that is playing the given MediaStore track to the service,
+     * which makes it the current track of the full player without preparing the track
+     * again, so playback goes on without a gap. The caller must not touch the player
+     * afterwards. Must be called on the main thread.
+     */
+    static void handOffPlayer(Context context, MediaPlayer player, long trackId) {
+        recycleHandedOffPlayer();
+        sHandedOffPlayer = player;
+        sHandedOffTrackId = trackId;
+        sHandoffHandler.postDelayed(sHandoffTimeout, HANDOFF_TIMEOUT_MS);
+        try {
+            context.startService(new Intent(context, MediaPlaybackService.class)
+                                         .setAction(ACTION_ADOPT_PLAYER));
+        } catch (IllegalStateException e) {
+            // Not allowed to start a service from the background.
+            Log.w(TAG, "Couldn't start the service to take the player", e);
+            recycleHandedOffPlayer();
+        }
+    }
+
+    private static void recycleHandedOffPlayer() {
+        sHandoffHandler.removeCallbacks(sHandoffTimeout);
+        if (sHandedOffPlayer != null) {
+            PlayerPool.getInstance().recycle(sHandedOffPlayer);
+            sHandedOffPlayer = null;
+        }
+    }
+
+    private void adoptHandedOffPlayer() {
+        sHandoffHandler.removeCallbacks(sHandoffTimeout);
+        MediaPlayer player = sHandedOffPlayer;
+        sHandedOffPlayer = null;
+        if (player == null) {
+            return;
+        }
+        mServiceStarted = true;
+        setPartyShuffle(false);
+        mQueue.setList(new long[] {sHandedOffTrackId}, 0);
+        mJournal.saveAll();
+        mRestoredSeekPosition = 0;
+        mPlayer.adopt(player);
+        if (mPlayer.isPlaying() && !mFocus.requestFocus()) {
+            // If focus is only delayed, playback goes on once it is granted.
+            mPlayer.pause();
+        }
+        mJournal.savePosition(mPlayer.position());
+        mSession.setActive(true);
+        mState = mPlayer.isPlaying() ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED;
+        updateMetadata();
+        updatePlaybackState();
+        setNextTrack();
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacksAndMessages(null);
+        if (mPlayer.isInitialized()) {
+            mJournal.savePosition(mPlayer.position());
+        }
+        mJournal.close();
+        mArtCache.cancel(mArtCallback);
+        mFocus.abandonFocus();
+        mPlayer.release();
+        mLibrarySync.stop();
+        if (mLibraryExecutor != null) {
+            mLibraryExecutor.shutdownNow();
+        }
+        mSession.release();
+    }
+
     @Override
-    public void onDestroy() {}
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mArtCache.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            PlayerPool.getInstance().trim();
+        }
+    }
 
     @Override
     public BrowserRoot onGetRoot(String clientPackageName, int clientUid, Bundle rootHints) {
-        return null;
+        return new BrowserRoot(MusicLibrary.MEDIA_ID_ROOT, null);
     }
 
     @Override
     public void onLoadChildren(final String parentMediaId, final Result<List<MediaItem>> result) {
-        result.sendResult(null);
-        return;
+        loadChildren(parentMediaId, result, -1, -1);
+    }
+
+    @Override
+    public void onLoadChildren(final String parentMediaId, final Result<List<MediaItem>> result,
+            Bundle options) {
+        int page = -1;
+        int pageSize = -1;
+        if (options != null) {
+            page = options.getInt(MediaBrowser.EXTRA_PAGE, -1);
+            pageSize = options.getInt(MediaBrowser.EXTRA_PAGE_SIZE, -1);
+        }
+        loadChildren(parentMediaId, result, page, pageSize);
+    }
+
+    /**
+     * Builds the requested children on the library executor, which also guarantees
+     * that the library has finished loading. Only the MediaItems of the requested page
+     * are created, so a large node never has to be materialized in one go.
+     *
+     * Search nodes are answered the same way. A client that searches as the user types
+     * asks for one per keystroke, so a search that has been overtaken by one for another
+     * query from the same client by the time it would run is answered with an empty list
+     * without doing any work. Other clients' searches, and other pages of the same query,
+     * are never skipped.
+     */
+    private void loadChildren(final String parentMediaId, final Result<List<MediaItem>> result,
+            final int page, final int pageSize) {
+        result.detach();
+        final String query = MusicLibrary.extractSearchQuery(parentMediaId);
+        final String client = query != null ? getSearchClient() : null;
+        if (client != null) {
+            synchronized (mLatestSearches) {
+                mLatestSearches.put(client, parentMediaId);
+            }
+        }
+        mLibraryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<MediaItem> children;
+                if (query == null) {
+                    children = getChildren(parentMediaId, page, pageSize);
+                } else if (isLatestSearch(client, parentMediaId)) {
+                    children = getSearchResults(query, page, pageSize);
+                } else {
+                    children = Collections.<MediaItem>emptyList();
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.sendResult(children);
+                    }
+                });
+            }
+        });
+    }
+
+    private List<MediaItem> getChildren(
+            final String parentMediaId, int page, int pageSize) {
+        final MusicLibrary library = mLibrary;
+        if (library == null) {
+            return null;
+        }
+        return Paging.getPage(new Paging.Children<MediaItem>() {
+            @Override
+            public int getCount() {
+                return library.getChildCount(parentMediaId);
+            }
+
+            @Override
+            public List<MediaItem> get(int from, int to) {
+                return library.getChildren(parentMediaId, from, to);
+            }
+        }, page, pageSize);
+    }
+
+    /**
+     * Returns who is asking for the children being loaded, or null if the platform can't
+     * tell, in which case none of their searches are skipped.
+     */
+    private String getSearchClient() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+            return null;
+        }
+        RemoteUserInfo info = getCurrentBrowserInfo();
+        return info.getUid() + ":" + info.getPackageName();
+    }
+
+    // False if client has asked for another search node since asking for mediaId.
+    private boolean isLatestSearch(String client, String mediaId) {
+        if (client == null) {
+            return true;
+        }
+        synchronized (mLatestSearches) {
+            return mediaId.equals(mLatestSearches.get(client));
+        }
+    }
+
+    private List<MediaItem> getSearchResults(final String query, int page, int pageSize) {
+        final MusicLibrary library = mLibrary;
+        if (library == null) {
+            return null;
+        }
+        if (page < 0 || pageSize < 1) {
+            return library.search(query, 0, DEFAULT_SEARCH_RESULTS);
+        }
+        return Paging.getPage(new Paging.Children<MediaItem>() {
+            @Override
+            public int getCount() {
+                return MAX_SEARCH_TRACKS;
+            }
+
+            @Override
+            public List<MediaItem> get(int from, int to) {
+                return library.search(query, from, to);
+            }
+        }, page, pageSize);
+    }
+
+    /**
+     * Runs r on the main thread once the library has finished loading. The library may
+     * still be null when r runs if loading failed.
+     */
+    private void runWhenLibraryLoaded(final Runnable r) {
+        if (mLibrary != null) {
+            r.run();
+            return;
+        }
+        mLibraryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(r);
+            }
+        });
+    }
+
+    private void playFromMediaId(String mediaId) {
+        MusicLibrary library = mLibrary;
+        long trackId = MusicLibrary.extractTrackId(mediaId);
+        if (library == null || trackId < 0) {
+            return;
+        }
+        String parentId = MusicLibrary.extractParentId(mediaId);
+        long[] list = parentId == null ? null : library.getTrackList(parentId);
+        int position = -1;
+        if (list != null) {
+            for (int i = 0; i < list.length; i++) {
+                if (list[i] == trackId) {
+                    position = i;
+                    break;
+                }
+            }
+        }
+        if (position < 0) {
+            list = new long[] {trackId};
+            position = 0;
+        }
+        setPartyShuffle(false);
+        mQueue.setList(list, position);
+        mJournal.saveAll();
+        openCurrentAndNext(true);
+    }
+
+    /**
+     * Resolves a play-from-search request to the tracks to queue, best match first.
+     * Structured requests name the fields in MediaStore.EXTRA_MEDIA_* extras, as
+     * described for MediaStore.INTENT_ACTION_MEDIA_PLAY_FROM_SEARCH; otherwise every word
+     * of the query has to match in some field. Runs on the library executor.
+     */
+    private long[] searchTracks(String query, Bundle extras) {
+        MusicLibrary library = mLibrary;
+        if (library == null) {
+            return null;
+        }
+        String focus = extras == null ? null : extras.getString(MediaStore.EXTRA_MEDIA_FOCUS);
+        SearchIndex.Query q = new SearchIndex.Query();
+        if (MediaStore.Audio.Playlists.ENTRY_CONTENT_TYPE.equals(focus)) {
+            String playlist = extras.getString(MediaStore.EXTRA_MEDIA_PLAYLIST);
+            long[] tracks = library.findPlaylistTracks(playlist != null ? playlist : query);
+            if (tracks != null) {
+                return tracks;
+            }
+        } else if (MediaStore.Audio.Artists.ENTRY_CONTENT_TYPE.equals(focus)) {
+            q.add(extras.getString(MediaStore.EXTRA_MEDIA_ARTIST), SearchIndex.FIELD_ARTIST);
+        } else if (MediaStore.Audio.Albums.ENTRY_CONTENT_TYPE.equals(focus)) {
+            q.add(extras.getString(MediaStore.EXTRA_MEDIA_ALBUM), SearchIndex.FIELD_ALBUM);
+            q.add(extras.getString(MediaStore.EXTRA_MEDIA_ARTIST), SearchIndex.FIELD_ARTIST);
+        } else if (MediaStore.Audio.Genres.ENTRY_CONTENT_TYPE.equals(focus)) {
+            q.add(extras.getString(MediaStore.EXTRA_MEDIA_GENRE), SearchIndex.FIELD_GENRE);
+        } else if (MediaStore.Audio.Media.ENTRY_CONTENT_TYPE.equals(focus)) {
+            q.add(extras.getString(MediaStore.EXTRA_MEDIA_TITLE), SearchIndex.FIELD_TITLE);
+            q.add(extras.getString(MediaStore.EXTRA_MEDIA_ARTIST), SearchIndex.FIELD_ARTIST);
+            q.add(extras.getString(MediaStore.EXTRA_MEDIA_ALBUM), SearchIndex.FIELD_ALBUM);
+        }
+        if (q.isEmpty()) {
+            // Unstructured, or the extras didn't carry the focused field.
+            q.add(query, SearchIndex.FIELD_ALL);
+        }
+        return library.search(q, MAX_SEARCH_TRACKS);
+    }
+
+    private void playSearchResult(long[] tracks) {
+        if (tracks == null || tracks.length == 0) {
+            setErrorState(R.string.no_search_results);
+            return;
+        }
+        setPartyShuffle(false);
+        mQueue.setList(tracks, 0);
+        mJournal.saveAll();
+        openCurrentAndNext(true);
+    }
+
+    private void openCurrentAndNext(boolean play) {
+        mErrorSkips = 0;
+        long id = mQueue.getCurrentId();
+        if (id < 0) {
+            return;
+        }
+        if (play && !mFocus.requestFocus()) {
+            // Opened paused. If focus is only delayed, it plays once focus is granted.
+            play = false;
+        }
+        try {
+            mPlayer.setDataSource(getTrackUri(id), play);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Couldn't open track " + id, e);
+            setErrorState(R.string.error_loading_media);
+            return;
+        }
+        if (mRestoredSeekPosition > 0) {
+            mPlayer.seek(mRestoredSeekPosition);
+            mRestoredSeekPosition = 0;
+        }
+        mJournal.savePosition(mPlayer.position());
+        if (play) {
+            startPlaybackService();
+        }
+        mState = play ? PlaybackState.STATE_BUFFERING : PlaybackState.STATE_PAUSED;
+        updateMetadata();
+        updatePlaybackState();
+        setNextTrack();
+    }
+
+    private void setNextTrack() {
+        if (mPartyShuffleEnabled) {
+            topUpPartyShuffle();
+        }
+        int next = mQueue.getNextPosition(false);
+        mPlayer.setNextDataSource(next < 0 ? null : getTrackUri(mQueue.getIdAt(next)));
+    }
+
+    private static Uri getTrackUri(long id) {
+        return ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
+    }
+
+    private void play() {
+        if (mQueue.getPosition() < 0 && mPartyShuffleEnabled) {
+            topUpPartyShuffle();
+        }
+        if (mQueue.getPosition() < 0) {
+            MusicLibrary library = mLibrary;
+            long[] all =
+                    library == null ? null : library.getTrackList(MusicLibrary.MEDIA_ID_TRACKS);
+            if (all == null || all.length == 0) {
+                return;
+            }
+            mQueue.setList(all, 0);
+            mJournal.saveAll();
+            openCurrentAndNext(true);
+            return;
+        }
+        if (!mPlayer.isInitialized() && !mPlayer.isPreparing()) {
+            openCurrentAndNext(true);
+            return;
+        }
+        if (!mFocus.requestFocus()) {
+            return;
+        }
+        startPlaybackService();
+        mPlayer.start();
+        mState = mPlayer.isPlaying() ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_BUFFERING;
+        updatePlaybackState();
+    }
+
+    private void pause() {
+        mPlayer.pause();
+        mFocus.onPlaybackPaused();
+        mJournal.savePosition(mPlayer.position());
+        mState = PlaybackState.STATE_PAUSED;
+        updatePlaybackState();
+    }
+
+    private void stop() {
+        mJournal.savePosition(mPlayer.position());
+        mPlayer.stop();
+        mFocus.abandonFocus();
+        mState = PlaybackState.STATE_STOPPED;
+        updatePlaybackState();
+        mSession.setActive(false);
+        if (mServiceStarted) {
+            mServiceStarted = false;
+            stopSelf();
+        }
+    }
+
+    private void skipToNext() {
+        int next = mQueue.getNextPosition(true);
+        if (next < 0) {
+            return;
+        }
+        boolean play = mState == PlaybackState.STATE_PLAYING
+                || mState == PlaybackState.STATE_BUFFERING;
+        // The prepared next player only holds the forced next track if the two agree.
+        boolean preparedNext = next == mQueue.getNextPosition(false);
+        mQueue.setPosition(next);
+        if (preparedNext && mPlayer.skipToNext(play)) {
+            mJournal.savePosition(0);
+            mState = play ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED;
+            updateMetadata();
+            updatePlaybackState();
+            setNextTrack();
+        } else {
+            openCurrentAndNext(play);
+        }
+    }
+
+    private void skipToPrevious() {
+        int previous = mQueue.getPreviousPosition();
+        if (previous < 0 || mPlayer.position() > PREVIOUS_RESTART_THRESHOLD) {
+            mPlayer.seek(0);
+            updatePlaybackState();
+            return;
+        }
+        boolean play = mState == PlaybackState.STATE_PLAYING
+                || mState == PlaybackState.STATE_BUFFERING;
+        mQueue.setPosition(previous);
+        openCurrentAndNext(play);
     }
 
+    /**
+     * Turns party shuffle on or off. Turning it on keeps the current track and replaces
+     * the rest of the queue with randomly picked tracks.
+     */
+    private void setPartyShuffle(boolean enabled) {
+        if (enabled == mPartyShuffleEnabled) {
+            return;
+        }
+        mPartyShuffleEnabled = enabled;
+        mJournal.savePartyShuffle(enabled);
+        if (enabled) {
+            mQueue.setShuffle(false);
+            long current = mQueue.getCurrentId();
+            mQueue.setList(current < 0 ? new long[0] : new long[] {current}, 0);
+            mJournal.saveAll();
+            if (current >= 0) {
+                mPartyShuffle.remember(current);
+            }
+            setNextTrack();
+        }
+        mSession.setQueueTitle(getString(
+                enabled ? R.string.partyshuffle_title : R.string.nowplaying_title));
+        updatePlaybackState();
+    }
+
+    /** Drops old history from the front of the queue and refills the upcoming tracks. */
+    private void topUpPartyShuffle() {
+        MusicLibrary library = mLibrary;
+        if (library == null) {
+            return;
+        }
+        int played = mQueue.getPosition();
+        if (played > PARTY_SHUFFLE_PLAYED) {
+            mQueue.removeFirst(played - PARTY_SHUFFLE_PLAYED);
+            mJournal.saveRemoveFirst(played - PARTY_SHUFFLE_PLAYED);
+        }
+        int upcoming = mQueue.size() - Math.max(0, mQueue.getPosition() + 1);
+        int missing = PARTY_SHUFFLE_UPCOMING - upcoming;
+        if (missing > 0) {
+            int count = mPartyShuffle.fill(library, mPartyShuffleBuffer, missing);
+            mQueue.append(mPartyShuffleBuffer, count);
+            mJournal.saveAppend(mPartyShuffleBuffer, count);
+        }
+    }
+
+    private void startPlaybackService() {
+        // Keep the service running while playing, even after all clients unbind.
+        if (!mServiceStarted) {
+            mServiceStarted = true;
+            startService(new Intent(this, MediaPlaybackService.class));
+        }
+        mSession.setActive(true);
+    }
+
+    private void setErrorState(int messageRes) {
+        mState = PlaybackState.STATE_ERROR;
+        mSession.setPlaybackState(new PlaybackState.Builder()
+                                          .setActions(PLAYBACK_ACTIONS)
+                                          .setState(mState, 0, 0)
+                                          .setErrorMessage(getString(messageRes))
+                                          .build());
+    }
+
+    private void updatePlaybackState() {
+        PlaybackState.Builder builder =
+                new PlaybackState.Builder().setActions(PLAYBACK_ACTIONS).setState(mState,
+                        mPlayer.position(), mState == PlaybackState.STATE_PLAYING ? 1.0f : 0f);
+        int position = mQueue.getPosition();
+        if (position >= 0) {
+            builder.setActiveQueueItemId(mQueue.getQueueId(position));
+        }
+        boolean shuffled = mQueue.isShuffled();
+        builder.addCustomAction(
+                new PlaybackState.CustomAction
+                        .Builder(CUSTOM_ACTION_SHUFFLE,
+                                getString(shuffled ? R.string.shuffle_on_notif
+                                                   : R.string.shuffle_off_notif),
+                                shuffled ? R.drawable.ic_mp_shuffle_on_btn
+                                         : R.drawable.ic_mp_shuffle_off_btn)
+                        .build());
+        builder.addCustomAction(
+                new PlaybackState.CustomAction
+                        .Builder(CUSTOM_ACTION_REPEAT, getString(getRepeatDescription()),
+                                getRepeatIcon())
+                        .build());
+        builder.addCustomAction(
+                new PlaybackState.CustomAction
+                        .Builder(CUSTOM_ACTION_PARTY_SHUFFLE,
+                                getString(mPartyShuffleEnabled ? R.string.party_shuffle_off
+                                                               : R.string.party_shuffle),
+                                mPartyShuffleEnabled ? R.drawable.ic_mp_partyshuffle_on_btn
+                                                     : R.drawable.ic_menu_party_shuffle)
+                        .build());
+        mSession.setPlaybackState(builder.build());
+        publishQueueWindow();
+    }
+
+    private int getRepeatDescription() {
+        switch (mQueue.getRepeatMode()) {
+            case PlayQueue.REPEAT_CURRENT:
+                return R.string.repeat_current_notif;
+            case PlayQueue.REPEAT_ALL:
+                return R.string.repeat_all_notif;
+            default:
+                return R.string.repeat_off_notif;
+        }
+    }
+
+    private int getRepeatIcon() {
+        switch (mQueue.getRepeatMode()) {
+            case PlayQueue.REPEAT_CURRENT:
+                return R.drawable.ic_mp_repeat_once_btn;
+            case PlayQueue.REPEAT_ALL:
+                return R.drawable.ic_mp_repeat_all_btn;
+            default:
+                return R.drawable.ic_mp_repeat_off_btn;
+        }
+    }
+
+    /**
+     * Publishes the QueueItems in a window around the current position. Controllers
+     * only ever see a bounded number of items, and nothing is sent unless the queue or
+     * the window actually changed.
+     */
+    private void publishQueueWindow() {
+        MusicLibrary library = mLibrary;
+        int size = mQueue.size();
+        int from = Math.max(0, Math.min(mQueue.getPosition() - QUEUE_WINDOW_BEHIND,
+                                       size - QUEUE_WINDOW_SIZE));
+        if (library == null
+                || (from == mPublishedFrom && mQueue.getGeneration() == mPublishedGeneration)) {
+            return;
+        }
+        mPublishedFrom = from;
+        mPublishedGeneration = mQueue.getGeneration();
+        int to = Math.min(size, from + QUEUE_WINDOW_SIZE);
+        List<MediaSession.QueueItem> items = new ArrayList<MediaSession.QueueItem>(to - from);
+        for (int i = from; i < to; i++) {
+            MusicLibrary.Track t = library.getTrack(mQueue.getIdAt(i));
+            if (t == null) {
+                continue;
+            }
+            MediaDescription description = new MediaDescription.Builder()
+                                                   .setMediaId(String.valueOf(t.id))
+                                                   .setTitle(t.title)
+                                                   .setSubtitle(t.artist)
+                                                   .build();
+            items.add(new MediaSession.QueueItem(description, mQueue.getQueueId(i)));
+        }
+        mSession.setQueue(items);
+    }
+
+    private void updateMetadata() {
+        MusicLibrary library = mLibrary;
+        long id = mQueue.getCurrentId();
+        MusicLibrary.Track t = library == null || id < 0 ? null : library.getTrack(id);
+        if (t == null) {
+            mSession.setMetadata(null);
+            return;
+        }
+        MediaMetadata.Builder builder =
+                new MediaMetadata.Builder()
+                        .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, String.valueOf(t.id))
+                        .putString(MediaMetadata.METADATA_KEY_TITLE, t.title)
+                        .putString(MediaMetadata.METADATA_KEY_ARTIST, t.artist)
+                        .putString(MediaMetadata.METADATA_KEY_ALBUM, t.album)
+                        .putLong(MediaMetadata.METADATA_KEY_DURATION, t.duration);
+        Bitmap art = mArtCache.getCached(t.albumId, METADATA_ART_SIZE);
+        if (art != null) {
+            builder.putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, art);
+        }
+        mSession.setMetadata(builder.build());
+        if (art == null) {
+            // Publish the text right away, and again with the art once it's decoded.
+            mArtCache.load(t.albumId, METADATA_ART_SIZE, mArtCallback);
+        }
+    }
+
+    private final AlbumArtCache.Callback mArtCallback = new AlbumArtCache.Callback() {
+        @Override
+        public void onArtLoaded(Bitmap art) {
+            if (art != null) {
+                updateMetadata();
+            }
+        }
+    };
+
+    private final LibrarySync.Listener mLibraryListener = new LibrarySync.Listener() {
+        @Override
+        public void onLibraryChanged(MusicLibrary library, final List<String> changed) {
+            // Set here on the executor, so the browse requests queued behind see it.
+            mLibrary = library;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    List<String> nodes =
+                            changed != null ? changed : MusicLibrary.getTopLevelMediaIds();
+                    for (String node : nodes) {
+                        notifyChildrenChanged(node);
+                    }
+                    // Titles in the queue and the current track may have changed too.
+                    mPublishedGeneration = -1;
+                    updateMetadata();
+                    publishQueueWindow();
+                }
+            });
+        }
+    };
+
+    private final AudioFocusHelper.Listener mFocusListener = new AudioFocusHelper.Listener() {
+        @Override
+        public boolean isPlaying() {
+            return mState == PlaybackState.STATE_PLAYING
+                    || mState == PlaybackState.STATE_BUFFERING;
+        }
+
+        @Override
+        public void play() {
+            MediaPlaybackService.this.play();
+        }
+
+        @Override
+        public void pause() {
+            if (isPlaying()) {
+                MediaPlaybackService.this.pause();
+            }
+        }
+
+        @Override
+        public void setVolume(float volume) {
+            mPlayer.setVolume(volume);
+        }
+    };
+
+    private final MultiPlayer.Callback mPlayerCallback = new MultiPlayer.Callback() {
+        @Override
+        public void onPrepared() {
+            if (mPlayer.isPlaying()) {
+                mState = PlaybackState.STATE_PLAYING;
+            } else if (mState == PlaybackState.STATE_BUFFERING) {
+                mState = PlaybackState.STATE_PAUSED;
+            }
+            updatePlaybackState();
+        }
+
+        @Override
+        public void onWentToNext() {
+            mErrorSkips = 0;
+            mQueue.setPosition(mQueue.getNextPosition(false));
+            mJournal.savePosition(0);
+            mState = PlaybackState.STATE_PLAYING;
+            updateMetadata();
+            updatePlaybackState();
+            setNextTrack();
+        }
+
+        @Override
+        public void onCompletion() {
+            // The next track wasn't chained in time, e.g. it failed to open or was only
+            // just changed, so open it the slow way. Only the end of the queue stops.
+            int next = mQueue.getNextPosition(false);
+            if (next >= 0) {
+                mQueue.setPosition(next);
+                openCurrentAndNext(true);
+            } else {
+                stop();
+            }
+        }
+
+        @Override
+        public void onError(int what, int extra) {
+            int next = mQueue.getNextPosition(true);
+            // Under REPEAT_ALL the queue never ends, so give up once every track failed.
+            int skips = mErrorSkips + 1;
+            if (next >= 0 && next != mQueue.getPosition() && skips < mQueue.size()) {
+                // Skip the broken track, staying paused if it was opened paused.
+                boolean play = mState == PlaybackState.STATE_PLAYING
+                        || mState == PlaybackState.STATE_BUFFERING;
+                mQueue.setPosition(next);
+                openCurrentAndNext(play);
+                mErrorSkips = skips;
+            } else {
+                setErrorState(R.string.playback_failed);
+            }
+        }
+    };
+
     private final class MediaSessionCallback extends MediaSession.Callback {
         @Override
-        public void onPlay() {}
+        public void onPlay() {
+            runWhenLibraryLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    play();
+                }
+            });
+        }
 
         @Override
-        public void onSkipToQueueItem(long queueId) {}
+        public void onSkipToQueueItem(long queueId) {
+            int position = mQueue.getPositionForQueueId(queueId);
+            if (position < 0) {
+                return;
+            }
+            mQueue.setPosition(position);
+            openCurrentAndNext(true);
+        }
 
         @Override
-        public void onSeekTo(long position) {}
+        public void onSeekTo(long position) {
+            mPlayer.seek(position);
+            updatePlaybackState();
+        }
 
         @Override
-        public void onPlayFromMediaId(String mediaId, Bundle extras) {}
+        public void onPlayFromMediaId(final String mediaId, Bundle extras) {
+            runWhenLibraryLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    playFromMediaId(mediaId);
+                }
+            });
+        }
 
         @Override
-        public void onPause() {}
+        public void onPause() {
+            pause();
+        }
 
         @Override
-        public void onStop() {}
+        public void onStop() {
+            stop();
+        }
 
         @Override
-        public void onSkipToNext() {}
+        public void onSkipToNext() {
+            skipToNext();
+        }
 
         @Override
-        public void onSkipToPrevious() {}
+        public void onSkipToPrevious() {
+            skipToPrevious();
+        }
 
         @Override
-        public void onPlayFromSearch(String query, Bundle extras) {}
+        public void onPlayFromSearch(final String query, final Bundle extras) {
+            String focus = extras == null ? null : extras.getString(MediaStore.EXTRA_MEDIA_FOCUS);
+            if (TextUtils.isEmpty(query) && (focus == null || FOCUS_ANY.equals(focus))) {
+                // "Play music": resume, or start on the whole library.
+                onPlay();
+                return;
+            }
+            // Queued behind the library load, and off the main thread.
+            mLibraryExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long[] tracks = searchTracks(query, extras);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            playSearchResult(tracks);
+                        }
+                    });
+                }
+            });
+        }
 
         @Override
-        public void onCustomAction(String action, Bundle extras) {}
+        public void onCustomAction(String action, Bundle extras) {
+            if (CUSTOM_ACTION_GET_METRICS.equals(action)) {
+                Bundle metrics = mPlayer.getMetrics();
+                PlayerPool.getInstance().writeMetrics(metrics);
+                mLibrarySync.writeMetrics(metrics);
+                mSession.sendSessionEvent(SESSION_EVENT_METRICS, metrics);
+            } else if (CUSTOM_ACTION_SHUFFLE.equals(action)) {
+                setPartyShuffle(false);
+                mQueue.setShuffle(!mQueue.isShuffled());
+                mJournal.saveAll();
+                setNextTrack();
+                updatePlaybackState();
+            } else if (CUSTOM_ACTION_REPEAT.equals(action)) {
+                mQueue.setRepeatMode((mQueue.getRepeatMode() + 1) % 3);
+                mJournal.saveRepeatMode();
+                setNextTrack();
+                updatePlaybackState();
+            } else if (CUSTOM_ACTION_PARTY_SHUFFLE.equals(action)) {
+                runWhenLibraryLoaded(new Runnable() {
+                    @Override
+                    public void run() {
+                        setPartyShuffle(!mPartyShuffleEnabled);
+                    }
+                });
+            }
+        }
     }
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.media.MediaTimestamp;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Gapless playback engine. Besides the player for the current track it keeps a second
+ * player that is already prepared for the next track and chained to the current one with
+ * {@link MediaPlayer#setNextMediaPlayer}, so that both natural track transitions and
+ * skips start the next track without any prepare latency.
+ *
+ * All methods must be called on the thread the instance was created on.
+ */
+class MultiPlayer implements MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
+                             MediaPlayer.OnErrorListener {
+    private static final String TAG = "MultiPlayer";
+    // A new track's first audio is looked up this long after it starts, and again at
+    // the same interval until the player has a timestamp, up to GAP_CHECK_TRIES times.
+    private static final long GAP_CHECK_DELAY_MS = 200;
+    private static final int GAP_CHECK_TRIES = 10;
+    // The service can sit paused on a track for a long time, so only a player held far
+    // longer than any session is reported as leaked.
+    private static final long LEAK_TIMEOUT_MS = 24 * 60 * 60 * 1000L;
+
+    private static final PlayerPool.Factory<MediaPlayer> FACTORY =
+            new PlayerPool.Factory<MediaPlayer>() {
+        @Override
+        public MediaPlayer create() {
+            return new MediaPlayer();
+        }
+    };
+
+    interface Callback {
+        /** The current track finished preparing. */
+        void onPrepared();
+
+        /** Playback moved on to the track that was set with {@link #setNextDataSource}. */
+        void onWentToNext();
+
+        /** The current track ended and there was no next track to continue with. */
+        void onCompletion();
+
+        /** The current player failed and has been released. */
+        void onError(int what, int extra);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private final AudioAttributes mAudioAttributes;
+
+    private MediaPlayer mCurrent;
+    private boolean mCurrentPrepared;
+    private long mCurrentPrepareStart;
+    private boolean mPlayWhenPrepared;
+    // Seek requested while the current player was still preparing.
+    private long mPendingSeek;
+
+    private MediaPlayer mNext;
+    private boolean mNextPrepared;
+    private long mNextPrepareStart;
+    // Applied to every player, so one that starts while ducked starts ducked.
+    private float mVolume = 1f;
+
+    // System.nanoTime() when the track being prepared to play was asked for, or -1.
+    private long mTransitionStart = -1;
+    // For the transition being measured, System.nanoTime() when the previous track's
+    // audio ended, or -1, and the position the current track started playing from.
+    private long mGapStart = -1;
+    private long mGapStartPosition;
+    private int mGapChecks;
+
+    private final TimingStats mPrepareStats = new TimingStats();
+    private final TimingStats mGapStats = new TimingStats();
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mGapCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkGap();
+        }
+    };
+
+    MultiPlayer(Context context, Callback callback) {
+        mContext = context;
+        mCallback = callback;
+        mAudioAttributes = new AudioAttributes.Builder()
+                                   .setUsage(AudioAttributes.USAGE_MEDIA)
+                                   .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                                   .build();
+    }
+
+    /**
+     * Replaces the current track and starts preparing it. Any next track is dropped and
+     * has to be set again.
+     */
+    void setDataSource(Uri uri, boolean playWhenPrepared) throws IOException {
+        releaseNext();
+        releaseCurrent();
+        mTransitionStart = playWhenPrepared ? System.nanoTime() : -1;
+        mPlayWhenPrepared = playWhenPrepared;
+        mPendingSeek = 0;
+        mCurrent = createPlayer();
+        mCurrentPrepareStart = SystemClock.elapsedRealtime();
+        try {
+            mCurrent.setDataSource(mContext, uri);
+            mCurrent.prepareAsync();
+        } catch (IOException | RuntimeException e) {
+            releaseCurrent();
+            throw e;
+        }
+    }
+
+    /**
+     * Makes a player that is already prepared the current track, e.g. one handed over by
+     * {@link AudioPreview}. It carries on playing, or stays paused, where it is. Any next
+     * track is dropped and has to be set again.
+     */
+    void adopt(MediaPlayer mp) {
+        releaseNext();
+        releaseCurrent();
+        mTransitionStart = -1;
+        mPlayWhenPrepared = false;
+        mPendingSeek = 0;
+        // It was leased for a preview, which the pool expects back far sooner.
+        PlayerPool.getInstance().transfer(mp, LEAK_TIMEOUT_MS);
+        mp.setOnPreparedListener(this);
+        mp.setOnCompletionListener(this);
+        mp.setOnErrorListener(this);
+        mp.setVolume(mVolume, mVolume);
+        mCurrent = mp;
+        mCurrentPrepared = true;
+    }
+
+    /**
+     * Prepares the track that should follow the current one, or clears it if uri is null.
+     * Once both players are prepared they are chained for gapless playback.
+     */
+    void setNextDataSource(Uri uri) {
+        releaseNext();
+        if (mCurrent != null && mCurrentPrepared) {
+            mCurrent.setNextMediaPlayer(null);
+        }
+        if (uri == null) {
+            return;
+        }
+        mNext = createPlayer();
+        mNextPrepareStart = SystemClock.elapsedRealtime();
+        try {
+            mNext.setDataSource(mContext, uri);
+            mNext.prepareAsync();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Couldn't open next track " + uri, e);
+            releaseNext();
+        }
+    }
+
+    /**
+     * Switches to the pre-prepared next track right away. Returns false if there is no
+     * prepared next track, in which case the caller has to use {@link #setDataSource}.
+     */
+    boolean skipToNext(boolean play) {
+        if (mNext == null || !mNextPrepared) {
+            return false;
+        }
+        // The previous track falls silent as it is released.
+        long start = System.nanoTime();
+        MediaPlayer next = mNext;
+        mNext = null;
+        mNextPrepared = false;
+        releaseCurrent();
+        mCurrent = next;
+        mCurrentPrepared = true;
+        mPlayWhenPrepared = false;
+        if (play) {
+            mCurrent.start();
+            measureGap(start, 0);
+        }
+        return true;
+    }
+
+    boolean isInitialized() {
+        return mCurrent != null && mCurrentPrepared;
+    }
+
+    boolean isPreparing() {
+        return mCurrent != null && !mCurrentPrepared;
+    }
+
+    boolean isPlaying() {
+        return isInitialized() && mCurrent.isPlaying();
+    }
+
+    void start() {
+        if (isInitialized()) {
+            mCurrent.start();
+        } else if (mCurrent != null) {
+            mPlayWhenPrepared = true;
+        }
+    }
+
+    void pause() {
+        mPlayWhenPrepared = false;
+        if (isInitialized()) {
+            mCurrent.pause();
+        }
+    }
+
+    void stop() {
+        releaseNext();
+        releaseCurrent();
+    }
+
+    void release() {
+        stop();
+    }
+
+    long duration() {
+        return isInitialized() ? mCurrent.getDuration() : -1;
+    }
+
+    long position() {
+        return isInitialized() ? mCurrent.getCurrentPosition() : mPendingSeek;
+    }
+
+    /** Seeks the current track. While it is still preparing, seeks once it is prepared. */
+    void seek(long whereto) {
+        if (isInitialized()) {
+            // The timestamps would tell where the seek landed, not where playback began.
+            mGapStart = -1;
+            mHandler.removeCallbacks(mGapCheck);
+            mCurrent.seekTo((int) whereto);
+        } else if (mCurrent != null) {
+            mPendingSeek = whereto;
+        }
+    }
+
+    void setVolume(float vol) {
+        mVolume = vol;
+        if (mCurrent != null) {
+            mCurrent.setVolume(vol, vol);
+        }
+        if (mNext != null) {
+            mNext.setVolume(vol, vol);
+        }
+    }
+
+    /**
+     * Returns the prepare time and transition gap statistics, in milliseconds. The gap
+     * runs from the end of the previous track's audio, or the moment it was cut off by a
+     * skip, to the first audio of the next one.
+     */
+    Bundle getMetrics() {
+        Bundle b = new Bundle();
+        mPrepareStats.writeTo(b, "prepare_ms");
+        mGapStats.writeTo(b, "transition_gap_ms");
+        return b;
+    }
+
+    private MediaPlayer createPlayer() {
+        MediaPlayer mp = PlayerPool.getInstance().acquire(FACTORY, LEAK_TIMEOUT_MS);
+        mp.setAudioAttributes(mAudioAttributes);
+        mp.setVolume(mVolume, mVolume);
+        mp.setOnPreparedListener(this);
+        mp.setOnCompletionListener(this);
+        mp.setOnErrorListener(this);
+        return mp;
+    }
+
+    private void releaseCurrent() {
+        mGapStart = -1;
+        mHandler.removeCallbacks(mGapCheck);
+        if (mCurrent != null) {
+            PlayerPool.getInstance().recycle(mCurrent);
+            mCurrent = null;
+        }
+        mCurrentPrepared = false;
+    }
+
+    private void releaseNext() {
+        if (mNext != null) {
+            if (mCurrent != null && mCurrentPrepared) {
+                // The next player goes back to the pool, so it mustn't stay chained.
+                mCurrent.setNextMediaPlayer(null);
+            }
+            PlayerPool.getInstance().recycle(mNext);
+            mNext = null;
+        }
+        mNextPrepared = false;
+    }
+
+    /**
+     * Records the gap from start, a System.nanoTime(), to the first audio of the current
+     * track, which started playing from startPosition, once its player can tell when
+     * that was.
+     */
+    private void measureGap(long start, long startPosition) {
+        mHandler.removeCallbacks(mGapCheck);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            // No timestamps, so the nearest there is is when playback was started.
+            mGapStats.add((System.nanoTime() - start) / 1000000);
+            return;
+        }
+        mGapStart = start;
+        mGapStartPosition = startPosition;
+        mGapChecks = 0;
+        mHandler.postDelayed(mGapCheck, GAP_CHECK_DELAY_MS);
+    }
+
+    @SuppressWarnings("deprecation") // getAnchorSystemNanoTime() only exists from Q on
+    private void checkGap() {
+        if (mGapStart < 0 || !isPlaying()) {
+            // Paused or stopped before the player could tell.
+            mGapStart = -1;
+            return;
+        }
+        MediaTimestamp ts = mCurrent.getTimestamp();
+        if (ts == null || ts.getMediaClockRate() <= 0) {
+            if (++mGapChecks < GAP_CHECK_TRIES) {
+                mHandler.postDelayed(mGapCheck, GAP_CHECK_DELAY_MS);
+            } else {
+                mGapStart = -1;
+            }
+            return;
+        }
+        // When the media clock was at the position playback started from.
+        long played = ts.getAnchorMediaTimeUs() - mGapStartPosition * 1000;
+        long firstAudio =
+                ts.getAnchorSytemNanoTime() - (long) (played * 1000 / ts.getMediaClockRate());
+        mGapStats.add(Math.max(0, (firstAudio - mGapStart) / 1000000));
+        mGapStart = -1;
+    }
+
+    /**
+     * Returns the System.nanoTime() at which mp, which just completed, played its last
+     * audio, worked out from its last timestamp; or now if it has none.
+     */
+    @SuppressWarnings("deprecation") // getAnchorSystemNanoTime() only exists from Q on
+    private static long getEndOfAudio(MediaPlayer mp) {
+        long now = System.nanoTime();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return now;
+        }
+        MediaTimestamp ts = mp.getTimestamp();
+        if (ts == null) {
+            return now;
+        }
+        // A clock that stopped at the end has next to nothing left to play anyway.
+        float rate = ts.getMediaClockRate() > 0 ? ts.getMediaClockRate() : 1f;
+        long remaining = mp.getDuration() * 1000L - ts.getAnchorMediaTimeUs();
+        return Math.min(now, ts.getAnchorSytemNanoTime() + (long) (remaining * 1000 / rate));
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        long now = SystemClock.elapsedRealtime();
+        if (mp == mCurrent) {
+            mCurrentPrepared = true;
+            mPrepareStats.add(now - mCurrentPrepareStart);
+            long startPosition = mPendingSeek;
+            if (mPendingSeek > 0) {
+                mCurrent.seekTo((int) mPendingSeek);
+                mPendingSeek = 0;
+            }
+            if (mPlayWhenPrepared) {
+                mPlayWhenPrepared = false;
+                mCurrent.start();
+                if (mTransitionStart >= 0) {
+                    measureGap(mTransitionStart, startPosition);
+                    mTransitionStart = -1;
+                }
+            }
+            if (mNextPrepared) {
+                mCurrent.setNextMediaPlayer(mNext);
+            }
+            mCallback.onPrepared();
+        } else if (mp == mNext) {
+            mNextPrepared = true;
+            mPrepareStats.add(now - mNextPrepareStart);
+            if (mCurrentPrepared) {
+                mCurrent.setNextMediaPlayer(mNext);
+            }
+        }
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+        if (mp != mCurrent) {
+            return;
+        }
+        if (mNext != null && mNextPrepared) {
+            // The framework has already started, or is about to start, the next player.
+            long end = getEndOfAudio(mp);
+            MediaPlayer next = mNext;
+            mNext = null;
+            mNextPrepared = false;
+            releaseCurrent();
+            mCurrent = next;
+            mCurrentPrepared = true;
+            measureGap(end, 0);
+            mCallback.onWentToNext();
+        } else {
+            mCallback.onCompletion();
+        }
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        Log.w(TAG, "MediaPlayer error " + what + "," + extra);
+        if (mp == mNext) {
+            releaseNext();
+            return true;
+        }
+        if (mp == mCurrent) {
+            releaseNext();
+            releaseCurrent();
+            mCallback.onError(what, extra);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,890 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.media.MediaDescription;
+import android.media.browse.MediaBrowser.MediaItem;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory index of the audio library. It is built once from a MediaStore cursor,
+ * after which browse requests are answered from primitive-keyed maps without going
+ * back to the content provider.
+ *
+ * Media ids handed out to browser clients have the form {@code CATEGORY} for the
+ * top level nodes, {@code CATEGORY/groupId} for an artist, album, genre or playlist,
+ * and {@code parentId|trackId} for a playable track, so that playing a track can
+ * recover the list it was picked from. {@code __SEARCH__/query} is a node that is
+ * not listed anywhere, whose children are the tracks best matching the query.
+ *
+ * After loading, the library only changes through {@link #sync}, on the thread that
+ * loaded it. Everything else may be called from any thread.
+ */
+class MusicLibrary implements PartyShuffle.Library {
+    static final boolean DBG = false;
+    private static final String TAG = "MusicLibrary";
+
+    static final String MEDIA_ID_ROOT = "__ROOT__";
+    static final String MEDIA_ID_ARTISTS = "__ARTISTS__";
+    static final String MEDIA_ID_ALBUMS = "__ALBUMS__";
+    static final String MEDIA_ID_GENRES = "__GENRES__";
+    static final String MEDIA_ID_PLAYLISTS = "__PLAYLISTS__";
+    static final String MEDIA_ID_TRACKS = "__TRACKS__";
+    static final String MEDIA_ID_RECENT = "__RECENT__";
+    static final String MEDIA_ID_PODCASTS = "__PODCASTS__";
+    static final String MEDIA_ID_SEARCH = "__SEARCH__";
+
+    private static final char GROUP_SEPARATOR = '/';
+    private static final char TRACK_SEPARATOR = '|';
+
+    /** How far back the "recently added" node looks, same default as the old music app. */
+    private static final long RECENT_WINDOW_SECONDS = 2 * 7 * 24 * 3600;
+
+    private static final String[] TRACK_COLUMNS = new String[] {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ARTIST_ID,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.ALBUM_KEY,
+            MediaStore.Audio.Media.TRACK,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.DATE_ADDED,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+            MediaStore.Audio.Media.IS_PODCAST,
+    };
+    private static final String[] GENRE_COLUMNS = new String[] {
+            MediaStore.Audio.Media.GENRE_ID,
+            MediaStore.Audio.Media.GENRE,
+    };
+    private static final String TRACK_SELECTION = MediaStore.Audio.Media.IS_MUSIC + "!=0 OR "
+            + MediaStore.Audio.Media.IS_PODCAST + "!=0";
+    private static final String TRACK_SORT_ORDER = MediaStore.Audio.Media.ALBUM_KEY + ","
+            + MediaStore.Audio.Media.TRACK;
+
+    // Changed rows are fetched by id, this many per query.
+    private static final int SYNC_BATCH_SIZE = 500;
+
+    /** A single playable item. */
+    static final class Track {
+        final long id;
+        final String title;
+        final String artist;
+        final long artistId;
+        final String album;
+        final long albumId;
+        final String albumKey;
+        final long genreId;
+        final int trackNumber;
+        final long duration;
+        final long dateAdded;
+        final long dateModified;
+        final boolean isPodcast;
+
+        Track(long id, String title, String artist, long artistId, String album, long albumId,
+                String albumKey, long genreId, int trackNumber, long duration, long dateAdded,
+                long dateModified, boolean isPodcast) {
+            this.id = id;
+            this.title = title;
+            this.artist = artist;
+            this.artistId = artistId;
+            this.album = album;
+            this.albumId = albumId;
+            this.albumKey = albumKey;
+            this.genreId = genreId;
+            this.trackNumber = trackNumber;
+            this.duration = duration;
+            this.dateAdded = dateAdded;
+            this.dateModified = dateModified;
+            this.isPodcast = isPodcast;
+        }
+    }
+
+    /** An artist, album, genre or playlist and the ids of the tracks in it. */
+    static final class Group {
+        final long id;
+        // Updated if a sync finds the group was renamed.
+        String name;
+        long[] trackIds = new long[4];
+        int size;
+
+        Group(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        void add(long trackId) {
+            if (size == trackIds.length) {
+                trackIds = Arrays.copyOf(trackIds, size * 2);
+            }
+            trackIds[size++] = trackId;
+        }
+
+        /** Inserts trackId at index, moving the ids from there on back by one. */
+        void insert(int index, long trackId) {
+            add(trackId);
+            System.arraycopy(trackIds, index, trackIds, index + 1, size - index - 1);
+            trackIds[index] = trackId;
+        }
+
+        /** Removes trackId, keeping the order of the others. Returns false if absent. */
+        boolean remove(long trackId) {
+            for (int i = 0; i < size; i++) {
+                if (trackIds[i] == trackId) {
+                    System.arraycopy(trackIds, i + 1, trackIds, i, size - i - 1);
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Context mContext;
+    private final LongSparseArray<Track> mTracks;
+    private final LongSparseArray<Group> mArtists = new LongSparseArray<Group>();
+    private final LongSparseArray<Group> mAlbums = new LongSparseArray<Group>();
+    private final LongSparseArray<Group> mGenres = new LongSparseArray<Group>();
+    private final LongSparseArray<Group> mPlaylists = new LongSparseArray<Group>();
+    private final SearchIndex mSearchIndex = new SearchIndex();
+    // MediaStore version and generation the library is up to date with, on R and later.
+    private String mVersion;
+    private long mGeneration;
+
+    // Sorted views, computed on load and after each sync that changed something.
+    private Group[] mSortedArtists;
+    private Group[] mSortedAlbums;
+    private Group[] mSortedGenres;
+    private Group[] mSortedPlaylists;
+    private long[] mAllTracks;
+    private long[] mRecent;
+    private long[] mPodcasts;
+
+    private MusicLibrary(Context context, int capacity) {
+        mContext = context;
+        mTracks = new LongSparseArray<Track>(capacity);
+    }
+
+    /**
+     * Builds the library from a single query over the audio table, plus the playlist
+     * queries. Must not be called on the main thread.
+     */
+    static MusicLibrary load(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        boolean hasGenreColumns = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+        // Read the generation first, so that changes racing with the query are picked
+        // up by the next sync.
+        String version = null;
+        long generation = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            version = MediaStore.getVersion(context);
+            generation = MediaStore.getGeneration(context, MediaStore.VOLUME_EXTERNAL);
+        }
+
+        Cursor c = null;
+        MusicLibrary library;
+        try {
+            c = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    getTrackProjection(hasGenreColumns), TRACK_SELECTION, null,
+                    TRACK_SORT_ORDER);
+            int count = c == null ? 0 : c.getCount();
+            library = new MusicLibrary(context.getApplicationContext(), count);
+            if (c != null) {
+                List<Track> tracks = new ArrayList<Track>(count);
+                List<String> genres = new ArrayList<String>(count);
+                readTracks(c, hasGenreColumns, tracks, genres);
+                for (int i = 0; i < tracks.size(); i++) {
+                    library.addTrack(tracks.get(i), genres.get(i), false);
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        library.mVersion = version;
+        library.mGeneration = generation;
+        library.loadPlaylists(resolver);
+        library.buildSortedViews();
+        if (DBG) {
+            Log.d(TAG, "loaded " + library.mTracks.size() + " tracks");
+        }
+        return library;
+    }
+
+    private static String[] getTrackProjection(boolean hasGenreColumns) {
+        if (!hasGenreColumns) {
+            return TRACK_COLUMNS;
+        }
+        String[] projection =
+                Arrays.copyOf(TRACK_COLUMNS, TRACK_COLUMNS.length + GENRE_COLUMNS.length);
+        System.arraycopy(GENRE_COLUMNS, 0, projection, TRACK_COLUMNS.length, GENRE_COLUMNS.length);
+        return projection;
+    }
+
+    /** Reads all rows of c into tracks, and the name of each one's genre into genres. */
+    private static void readTracks(
+            Cursor c, boolean hasGenreColumns, List<Track> tracks, List<String> genres) {
+        final int idIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+        final int titleIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE);
+        final int artistIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
+        final int artistIdIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST_ID);
+        final int albumIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM);
+        final int albumIdIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID);
+        final int albumKeyIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_KEY);
+        final int trackIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.TRACK);
+        final int durationIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION);
+        final int addedIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_ADDED);
+        final int modifiedIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_MODIFIED);
+        final int podcastIdx = c.getColumnIndexOrThrow(MediaStore.Audio.Media.IS_PODCAST);
+        final int genreIdIdx = hasGenreColumns ? c.getColumnIndex(MediaStore.Audio.Media.GENRE_ID)
+                                               : -1;
+        final int genreIdx = hasGenreColumns ? c.getColumnIndex(MediaStore.Audio.Media.GENRE) : -1;
+
+        while (c.moveToNext()) {
+            long genreId = genreIdIdx >= 0 && !c.isNull(genreIdIdx) ? c.getLong(genreIdIdx) : -1;
+            tracks.add(new Track(c.getLong(idIdx), c.getString(titleIdx),
+                    c.getString(artistIdx), c.getLong(artistIdIdx), c.getString(albumIdx),
+                    c.getLong(albumIdIdx), c.getString(albumKeyIdx), genreId, c.getInt(trackIdx),
+                    c.getLong(durationIdx), c.getLong(addedIdx), c.getLong(modifiedIdx),
+                    c.getInt(podcastIdx) != 0));
+            genres.add(genreId >= 0 ? c.getString(genreIdx) : null);
+        }
+    }
+
+    /**
+     * Adds a track to the library and to its groups. Loading reads the tracks in
+     * TRACK_SORT_ORDER and appends each; a sync inserts each where a load would put it.
+     */
+    private void addTrack(Track t, String genre, boolean inOrder) {
+        mTracks.put(t.id, t);
+        addToGroup(group(mArtists, t.artistId, t.artist), t, inOrder);
+        addToGroup(group(mAlbums, t.albumId, t.album), t, inOrder);
+        if (t.genreId >= 0) {
+            addToGroup(group(mGenres, t.genreId, genre), t, inOrder);
+        }
+        mSearchIndex.add(t, genre);
+    }
+
+    private void addToGroup(Group g, Track t, boolean inOrder) {
+        if (!inOrder) {
+            g.add(t.id);
+            return;
+        }
+        // Binary search for the first track that sorts after t.
+        int low = 0;
+        int high = g.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareLoadOrder(mTracks.get(g.trackIds[mid]), t) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        g.insert(low, t.id);
+    }
+
+    // The order of TRACK_SORT_ORDER: by album, then by track number.
+    private static int compareLoadOrder(Track a, Track b) {
+        int c = nonNull(a.albumKey).compareTo(nonNull(b.albumKey));
+        return c != 0 ? c : Integer.compare(a.trackNumber, b.trackNumber);
+    }
+
+    /**
+     * Removes a track and adds the nodes that changed to changed. A track that is only
+     * being replaced by a newer version of itself stays in its playlists.
+     */
+    private void removeTrack(long id, boolean fromPlaylists, Set<String> changed) {
+        Track t = mTracks.get(id);
+        if (t == null) {
+            return;
+        }
+        Group genre = t.genreId >= 0 ? mGenres.get(t.genreId) : null;
+        mSearchIndex.remove(t, genre == null ? null : genre.name);
+        ungroup(mArtists, MEDIA_ID_ARTISTS, t.artistId, id, changed);
+        ungroup(mAlbums, MEDIA_ID_ALBUMS, t.albumId, id, changed);
+        if (t.genreId >= 0) {
+            ungroup(mGenres, MEDIA_ID_GENRES, t.genreId, id, changed);
+        }
+        if (fromPlaylists) {
+            for (int i = 0; i < mPlaylists.size(); i++) {
+                Group playlist = mPlaylists.valueAt(i);
+                if (playlist.remove(id)) {
+                    changed.add(createGroupMediaId(MEDIA_ID_PLAYLISTS, playlist.id));
+                }
+            }
+        }
+        mTracks.remove(id);
+    }
+
+    private static void ungroup(LongSparseArray<Group> groups, String categoryId, long groupId,
+            long trackId, Set<String> changed) {
+        Group g = groups.get(groupId);
+        if (g != null && g.remove(trackId)) {
+            changed.add(createGroupMediaId(categoryId, groupId));
+            if (g.size == 0) {
+                groups.remove(groupId);
+            }
+        }
+    }
+
+    /**
+     * Brings the library up to date with the provider without reloading it. A first
+     * pass reads just the id and modification stamps of every track and diffs them
+     * against the library, after which only the rows that were added or changed are
+     * fetched, in batches. Must be called on the thread that loaded the library.
+     *
+     * Returns the ids of the nodes whose children changed, or null if the provider's
+     * database was replaced and the library has to be loaded again.
+     */
+    List<String> sync() {
+        ContentResolver resolver = mContext.getContentResolver();
+        boolean hasGenreColumns = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+        boolean hasGenerations = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+        long generation = 0;
+        if (hasGenerations) {
+            if (!TextUtils.equals(mVersion, MediaStore.getVersion(mContext))) {
+                return null;
+            }
+            generation = MediaStore.getGeneration(mContext, MediaStore.VOLUME_EXTERNAL);
+            if (generation == mGeneration) {
+                return Collections.emptyList();
+            }
+        }
+
+        // Only this thread modifies the maps, so it can read them without the lock.
+        // The ids to remove and to fetch are collected in two scratch groups.
+        Group removed = new Group(-1, null);
+        Group fetch = new Group(-1, null);
+        String[] projection = hasGenerations
+                ? new String[] {MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED,
+                          MediaStore.Audio.Media.GENERATION_MODIFIED}
+                : new String[] {
+                          MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED};
+        Cursor c = null;
+        try {
+            c = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection,
+                    TRACK_SELECTION, null, MediaStore.Audio.Media._ID);
+            if (c == null) {
+                return Collections.emptyList();
+            }
+            // Both the cursor and the keys of mTracks are in id order, so merge them.
+            int known = 0;
+            int count = mTracks.size();
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                while (known < count && mTracks.keyAt(known) < id) {
+                    removed.add(mTracks.keyAt(known++));
+                }
+                if (known < count && mTracks.keyAt(known) == id) {
+                    Track t = mTracks.valueAt(known++);
+                    if (t.dateModified != c.getLong(1)
+                            || (hasGenerations && c.getLong(2) > mGeneration)) {
+                        fetch.add(id);
+                    }
+                } else {
+                    fetch.add(id);
+                }
+            }
+            while (known < count) {
+                removed.add(mTracks.keyAt(known++));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        List<Track> tracks = new ArrayList<Track>(fetch.size);
+        List<String> genres = new ArrayList<String>(fetch.size);
+        for (int from = 0; from < fetch.size; from += SYNC_BATCH_SIZE) {
+            int to = Math.min(fetch.size, from + SYNC_BATCH_SIZE);
+            StringBuilder selection = new StringBuilder();
+            selection.append('(').append(TRACK_SELECTION).append(") AND ");
+            selection.append(MediaStore.Audio.Media._ID).append(" IN (");
+            for (int i = from; i < to; i++) {
+                if (i > from) selection.append(',');
+                selection.append(fetch.trackIds[i]);
+            }
+            selection.append(')');
+            c = null;
+            try {
+                c = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        getTrackProjection(hasGenreColumns), selection.toString(), null, null);
+                if (c != null) {
+                    readTracks(c, hasGenreColumns, tracks, genres);
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+
+        Set<String> changed = new LinkedHashSet<String>();
+        synchronized (this) {
+            if (removed.size > 0 || fetch.size > 0) {
+                LongSparseArray<Track> fetched = new LongSparseArray<Track>(tracks.size());
+                for (Track t : tracks) {
+                    fetched.put(t.id, t);
+                }
+                for (int i = 0; i < removed.size; i++) {
+                    removeTrack(removed.trackIds[i], true, changed);
+                }
+                for (int i = 0; i < fetch.size; i++) {
+                    long id = fetch.trackIds[i];
+                    // A changed row that vanished before it could be fetched is gone.
+                    removeTrack(id, fetched.get(id) == null, changed);
+                }
+                for (int i = 0; i < tracks.size(); i++) {
+                    Track t = tracks.get(i);
+                    addTrack(t, genres.get(i), true);
+                    changed.add(createGroupMediaId(MEDIA_ID_ARTISTS, t.artistId));
+                    changed.add(createGroupMediaId(MEDIA_ID_ALBUMS, t.albumId));
+                    if (t.genreId >= 0) {
+                        changed.add(createGroupMediaId(MEDIA_ID_GENRES, t.genreId));
+                    }
+                }
+                buildSortedViews();
+                changed.addAll(getTopLevelMediaIds());
+            }
+            mGeneration = generation;
+        }
+        if (DBG) {
+            Log.d(TAG, "sync: " + removed.size + " removed, " + fetch.size + " added or changed");
+        }
+        return new ArrayList<String>(changed);
+    }
+
+    private void loadPlaylists(ContentResolver resolver) {
+        Cursor c = null;
+        try {
+            c = resolver.query(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                    new String[] {MediaStore.Audio.Playlists._ID,
+                            MediaStore.Audio.Playlists.NAME},
+                    null, null, MediaStore.Audio.Playlists.DEFAULT_SORT_ORDER);
+            while (c != null && c.moveToNext()) {
+                mPlaylists.put(c.getLong(0), new Group(c.getLong(0), c.getString(1)));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        for (int i = 0; i < mPlaylists.size(); i++) {
+            Group playlist = mPlaylists.valueAt(i);
+            Cursor members = null;
+            try {
+                members = resolver.query(
+                        MediaStore.Audio.Playlists.Members.getContentUri(
+                                MediaStore.VOLUME_EXTERNAL, playlist.id),
+                        new String[] {MediaStore.Audio.Playlists.Members.AUDIO_ID}, null, null,
+                        MediaStore.Audio.Playlists.Members.PLAY_ORDER);
+                while (members != null && members.moveToNext()) {
+                    long trackId = members.getLong(0);
+                    if (mTracks.get(trackId) != null) {
+                        playlist.add(trackId);
+                    }
+                }
+            } finally {
+                if (members != null) {
+                    members.close();
+                }
+            }
+        }
+    }
+
+    private static Group group(LongSparseArray<Group> groups, long id, String name) {
+        Group g = groups.get(id);
+        if (g == null) {
+            g = new Group(id, name);
+            groups.put(id, g);
+        } else if (!TextUtils.equals(g.name, name)) {
+            // Only a sync can see a different name, when the artist or album was renamed.
+            g.name = name;
+        }
+        return g;
+    }
+
+    private void buildSortedViews() {
+        final Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.PRIMARY);
+        Comparator<Group> byName = new Comparator<Group>() {
+            @Override
+            public int compare(Group a, Group b) {
+                return collator.compare(nonNull(a.name), nonNull(b.name));
+            }
+        };
+        mSortedArtists = sortedGroups(mArtists, byName);
+        mSortedAlbums = sortedGroups(mAlbums, byName);
+        mSortedGenres = sortedGroups(mGenres, byName);
+        // Playlists keep the provider's order.
+        mSortedPlaylists = new Group[mPlaylists.size()];
+        for (int i = 0; i < mSortedPlaylists.length; i++) {
+            mSortedPlaylists[i] = mPlaylists.valueAt(i);
+        }
+
+        int n = mTracks.size();
+        Track[] tracks = new Track[n];
+        for (int i = 0; i < n; i++) {
+            tracks[i] = mTracks.valueAt(i);
+        }
+        Arrays.sort(tracks, new Comparator<Track>() {
+            @Override
+            public int compare(Track a, Track b) {
+                return collator.compare(nonNull(a.title), nonNull(b.title));
+            }
+        });
+        mAllTracks = new long[n];
+        int podcasts = 0;
+        for (int i = 0; i < n; i++) {
+            mAllTracks[i] = tracks[i].id;
+            if (tracks[i].isPodcast) podcasts++;
+        }
+        mPodcasts = new long[podcasts];
+        for (int i = 0, j = 0; i < n; i++) {
+            if (tracks[i].isPodcast) mPodcasts[j++] = tracks[i].id;
+        }
+
+        long cutoff = System.currentTimeMillis() / 1000 - RECENT_WINDOW_SECONDS;
+        List<Track> recent = new ArrayList<Track>();
+        for (int i = 0; i < n; i++) {
+            if (tracks[i].dateAdded >= cutoff) recent.add(tracks[i]);
+        }
+        Collections.sort(recent, new Comparator<Track>() {
+            @Override
+            public int compare(Track a, Track b) {
+                return Long.compare(b.dateAdded, a.dateAdded);
+            }
+        });
+        mRecent = new long[recent.size()];
+        for (int i = 0; i < mRecent.length; i++) {
+            mRecent[i] = recent.get(i).id;
+        }
+    }
+
+    private static Group[] sortedGroups(LongSparseArray<Group> groups, Comparator<Group> order) {
+        Group[] sorted = new Group[groups.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = groups.valueAt(i);
+        }
+        Arrays.sort(sorted, order);
+        return sorted;
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+
+    synchronized Track getTrack(long id) {
+        return mTracks.get(id);
+    }
+
+    @Override
+    public synchronized int getTrackCount() {
+        return mTracks.size();
+    }
+
+    /**
+     * Returns the id of the track at the given index in title order. Callers that got
+     * the count separately have to hold the library's lock across both calls.
+     */
+    @Override
+    public synchronized long getTrackIdAt(int index) {
+        return mAllTracks[index];
+    }
+
+    /**
+     * Returns the ids of up to limit tracks matching the query, best matches first.
+     */
+    synchronized long[] search(SearchIndex.Query query, int limit) {
+        return mSearchIndex.search(query, limit);
+    }
+
+    /**
+     * Returns items for the tracks at [from, to) in the ranking of tracks matching the
+     * words of query in any field. The items play on from the track in the full list.
+     */
+    synchronized List<MediaItem> search(String query, int from, int to) {
+        long[] ids = mSearchIndex.search(
+                new SearchIndex.Query().add(query, SearchIndex.FIELD_ALL), to);
+        List<MediaItem> items = new ArrayList<MediaItem>(Math.max(0, ids.length - from));
+        for (int i = from; i < ids.length; i++) {
+            Track t = mTracks.get(ids[i]);
+            if (t != null) {
+                items.add(createTrackItem(MEDIA_ID_TRACKS, t));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Returns the tracks of the first playlist whose name contains all words of name
+     * as prefixes, or null if there is none.
+     */
+    synchronized long[] findPlaylistTracks(String name) {
+        for (Group playlist : mSortedPlaylists) {
+            if (SearchIndex.matches(playlist.name, name)) {
+                return Arrays.copyOf(playlist.trackIds, playlist.size);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of children of the given node, or -1 if the node is unknown.
+     */
+    synchronized int getChildCount(String parentId) {
+        if (MEDIA_ID_ROOT.equals(parentId)) {
+            return getRootChildren().size();
+        }
+        Group[] groups = getGroupList(parentId);
+        if (groups != null) {
+            return groups.length;
+        }
+        long[] tracks = getTopLevelTrackList(parentId);
+        if (tracks != null) {
+            return tracks.length;
+        }
+        Group g = getGroup(parentId);
+        return g == null ? -1 : g.size;
+    }
+
+    /**
+     * Returns the children of the given node in the range [from, to), or null if the
+     * node is unknown. Only the items in the range are created, so paging through a
+     * large node costs memory proportional to the page size.
+     */
+    synchronized List<MediaItem> getChildren(String parentId, int from, int to) {
+        if (MEDIA_ID_ROOT.equals(parentId)) {
+            List<MediaItem> items = getRootChildren();
+            return items.subList(Math.min(from, items.size()), Math.min(to, items.size()));
+        }
+        Group[] groups = getGroupList(parentId);
+        if (groups != null) {
+            to = Math.min(to, groups.length);
+            List<MediaItem> items = new ArrayList<MediaItem>(Math.max(0, to - from));
+            for (int i = from; i < to; i++) {
+                items.add(createGroupItem(parentId, groups[i]));
+            }
+            return items;
+        }
+        long[] tracks = getTopLevelTrackList(parentId);
+        int count;
+        if (tracks != null) {
+            count = tracks.length;
+        } else {
+            Group g = getGroup(parentId);
+            if (g == null) {
+                return null;
+            }
+            tracks = g.trackIds;
+            count = g.size;
+        }
+        to = Math.min(to, count);
+        List<MediaItem> items = new ArrayList<MediaItem>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            Track t = mTracks.get(tracks[i]);
+            if (t != null) {
+                items.add(createTrackItem(parentId, t));
+            }
+        }
+        return items;
+    }
+
+    private List<MediaItem> getRootChildren() {
+        List<MediaItem> items = new ArrayList<MediaItem>();
+        items.add(createBrowsableItem(MEDIA_ID_ARTISTS, R.string.artists_title));
+        items.add(createBrowsableItem(MEDIA_ID_ALBUMS, R.string.albums_title));
+        if (mGenres.size() > 0) {
+            items.add(createBrowsableItem(MEDIA_ID_GENRES, R.string.browse_genres));
+        }
+        items.add(createBrowsableItem(MEDIA_ID_PLAYLISTS, R.string.playlists_title));
+        items.add(createBrowsableItem(MEDIA_ID_TRACKS, R.string.tracks_title));
+        items.add(createBrowsableItem(MEDIA_ID_RECENT, R.string.recentlyadded));
+        if (mPodcasts.length > 0) {
+            items.add(createBrowsableItem(MEDIA_ID_PODCASTS, R.string.podcasts_listitem));
+        }
+        return items;
+    }
+
+    private Group[] getGroupList(String categoryId) {
+        if (MEDIA_ID_ARTISTS.equals(categoryId)) return mSortedArtists;
+        if (MEDIA_ID_ALBUMS.equals(categoryId)) return mSortedAlbums;
+        if (MEDIA_ID_GENRES.equals(categoryId)) return mSortedGenres;
+        if (MEDIA_ID_PLAYLISTS.equals(categoryId)) return mSortedPlaylists;
+        return null;
+    }
+
+    private long[] getTopLevelTrackList(String parentId) {
+        if (MEDIA_ID_TRACKS.equals(parentId)) return mAllTracks;
+        if (MEDIA_ID_RECENT.equals(parentId)) return mRecent;
+        if (MEDIA_ID_PODCASTS.equals(parentId)) return mPodcasts;
+        return null;
+    }
+
+    /**
+     * Returns a copy of the ids of the tracks directly under the given node, in display
+     * order, or null if the node does not hold tracks.
+     */
+    synchronized long[] getTrackList(String parentId) {
+        long[] tracks = getTopLevelTrackList(parentId);
+        if (tracks != null) {
+            return tracks.clone();
+        }
+        Group g = getGroup(parentId);
+        return g == null ? null : Arrays.copyOf(g.trackIds, g.size);
+    }
+
+    private Group getGroup(String parentId) {
+        int sep = parentId.indexOf(GROUP_SEPARATOR);
+        if (sep < 0) {
+            return null;
+        }
+        LongSparseArray<Group> groups = getGroups(parentId.substring(0, sep));
+        if (groups == null) {
+            return null;
+        }
+        try {
+            return groups.get(Long.parseLong(parentId.substring(sep + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private LongSparseArray<Group> getGroups(String categoryId) {
+        if (MEDIA_ID_ARTISTS.equals(categoryId)) return mArtists;
+        if (MEDIA_ID_ALBUMS.equals(categoryId)) return mAlbums;
+        if (MEDIA_ID_GENRES.equals(categoryId)) return mGenres;
+        if (MEDIA_ID_PLAYLISTS.equals(categoryId)) return mPlaylists;
+        return null;
+    }
+
+    private MediaItem createBrowsableItem(String mediaId, int titleRes) {
+        MediaDescription description = new MediaDescription.Builder()
+                                               .setMediaId(mediaId)
+                                               .setTitle(mContext.getString(titleRes))
+                                               .build();
+        return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
+    }
+
+    private MediaItem createGroupItem(String categoryId, Group g) {
+        Resources res = mContext.getResources();
+        String name = g.name;
+        if (TextUtils.isEmpty(name) || MediaStore.UNKNOWN_STRING.equals(name)) {
+            if (MEDIA_ID_ARTISTS.equals(categoryId)) {
+                name = res.getString(R.string.unknown_artist_name);
+            } else if (MEDIA_ID_ALBUMS.equals(categoryId)) {
+                name = res.getString(R.string.unknown_album_name);
+            }
+        }
+        MediaDescription.Builder builder =
+                new MediaDescription.Builder()
+                        .setMediaId(createGroupMediaId(categoryId, g.id))
+                        .setTitle(name)
+                        .setSubtitle(res.getQuantityString(R.plurals.Nsongs, g.size, g.size));
+        if (MEDIA_ID_ALBUMS.equals(categoryId)) {
+            builder.setIconUri(getAlbumArtUri(g.id));
+        }
+        return new MediaItem(builder.build(), MediaItem.FLAG_BROWSABLE);
+    }
+
+    MediaItem createTrackItem(String parentId, Track t) {
+        String artist = t.artist;
+        if (TextUtils.isEmpty(artist) || MediaStore.UNKNOWN_STRING.equals(artist)) {
+            artist = mContext.getString(R.string.unknown_artist_name);
+        }
+        MediaDescription description = new MediaDescription.Builder()
+                                               .setMediaId(createTrackMediaId(parentId, t.id))
+                                               .setTitle(t.title)
+                                               .setSubtitle(artist)
+                                               .setIconUri(getAlbumArtUri(t.albumId))
+                                               .build();
+        return new MediaItem(description, MediaItem.FLAG_PLAYABLE);
+    }
+
+    // Browser clients load icons themselves from the URI, at the size they show them
+    // at, instead of every page of items carrying bitmaps across binder.
+    private static Uri getAlbumArtUri(long albumId) {
+        return ContentUris.withAppendedId(AlbumArtCache.ALBUM_ART_URI, albumId);
+    }
+
+    /** Returns the root and the nodes listed under it. */
+    static List<String> getTopLevelMediaIds() {
+        return Arrays.asList(MEDIA_ID_ROOT, MEDIA_ID_ARTISTS, MEDIA_ID_ALBUMS, MEDIA_ID_GENRES,
+                MEDIA_ID_PLAYLISTS, MEDIA_ID_TRACKS, MEDIA_ID_RECENT, MEDIA_ID_PODCASTS);
+    }
+
+    private static String createGroupMediaId(String categoryId, long groupId) {
+        return categoryId + GROUP_SEPARATOR + groupId;
+    }
+
+    static String createSearchMediaId(String query) {
+        return MEDIA_ID_SEARCH + GROUP_SEPARATOR + query;
+    }
+
+    /** Returns the query of a search node's media id, or null for any other node. */
+    static String extractSearchQuery(String mediaId) {
+        int prefix = MEDIA_ID_SEARCH.length();
+        if (mediaId.length() <= prefix || !mediaId.startsWith(MEDIA_ID_SEARCH)
+                || mediaId.charAt(prefix) != GROUP_SEPARATOR) {
+            return null;
+        }
+        return mediaId.substring(prefix + 1);
+    }
+
+    static String createTrackMediaId(String parentId, long trackId) {
+        return parentId + TRACK_SEPARATOR + trackId;
+    }
+
+    /** Returns the track id encoded in a playable media id, or -1. */
+    static long extractTrackId(String mediaId) {
+        int sep = mediaId.lastIndexOf(TRACK_SEPARATOR);
+        try {
+            return Long.parseLong(sep < 0 ? mediaId : mediaId.substring(sep + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns the node a playable media id was browsed from, or null. */
+    static String extractParentId(String mediaId) {
+        int sep = mediaId.lastIndexOf(TRACK_SEPARATOR);
+        return sep < 0 ? null : mediaId.substring(0, sep);
+    }
+}
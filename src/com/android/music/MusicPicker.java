@@ -17,26 +17,92 @@
 package com.android.music;
 
 import android.app.ListActivity;
+import android.content.ClipData;
+import android.content.ContentUris;
+import android.content.Context;
 import android.content.Intent;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.provider.MediaStore;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
+import android.widget.SectionIndexer;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * A placeholder class to handle android.intent.action.PICK Intent.
+ * Activity that lets the user pick a track, for android.intent.action.PICK and
+ * GET_CONTENT. The list is read a page at a time by {@link PagedTrackList}, so it shows
+ * right away however large the library is. Fast scrolling goes by sections that were
+ * found while the list was counted, so dragging the thumb reads nothing.
+ *
+ * Typing in the search box filters the list through a {@link TrackFilter}, which is built
+ * from one read of all the tracks when the first character is typed; after that, no
+ * keystroke queries MediaStore.
+ *
+ * Tapping a track plays it through one {@link AuditionPlayer}, which is reset for each
+ * track rather than replaced, and kept across configuration changes.
+ *
+ * With {@link Intent#EXTRA_ALLOW_MULTIPLE}, tapping toggles tracks in and out of a
+ * selection, which is returned as ClipData in the order the tracks were picked.
  */
-public class MusicPicker extends ListActivity implements View.OnClickListener {
+public class MusicPicker extends ListActivity
+        implements View.OnClickListener, PagedTrackList.Listener {
     static final boolean DBG = false;
     static final String TAG = "MusicPicker";
 
+    private static final String SORT_MODE_KEY = "sortMode";
+    private static final String SELECTED_ID_KEY = "selectedId";
+    private static final String SELECTION_KEY = "selection";
+    private static final String FIRST_POSITION_KEY = "firstPosition";
+
+    private static final int TRACK_MENU = Menu.FIRST;
+    private static final int ALBUM_MENU = Menu.FIRST + 1;
+    private static final int ARTIST_MENU = Menu.FIRST + 2;
+
+    // How long a tap has to stay the latest before its track is prepared, so that tapping
+    // down the list doesn't start a prepare per row.
+    private static final long AUDITION_DELAY_MS = 150;
+
     /** Uri to the directory of all music being displayed. */
     Uri mBaseUri;
 
+    private int mSortMode = -1;
+    private long mSelectedId = -1;
+    // Whether several tracks can be picked, and the ones that are.
+    private boolean mAllowMultiple;
+    private final LongSet mSelection = new LongSet();
+    // List position to go back to once the list is long enough, after being recreated.
+    private int mRestorePosition;
+    private ExecutorService mLoader;
+    private PagedTrackList mTracks;
+    private TrackListAdapter mAdapter;
+    private View mOkayButton;
+    private String[] mSections;
+    private TextView mSearchText;
+    // Null until the first search, and again after the sort order changes.
+    private TrackFilter mFilter;
+    // Rows of mFilter.getRows() shown, or null to show all of mTracks.
+    private int[] mFilterRows;
+    private final Handler mHandler = new Handler();
+    private AuditionPlayer mAudition;
+    private long mPendingAuditionId = -1;
+
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle icicle) {
@@ -46,7 +112,164 @@ public class MusicPicker extends ListActivity implements View.OnClickListener {
         } else {
             mBaseUri = getIntent().getData();
         }
-        Log.w("MusicPicker", "Doesn't handle for data URI given to PICK action");
+        if (mBaseUri == null) {
+            Log.w(TAG, "No data URI given to PICK action");
+            finish();
+            return;
+        }
+
+        mAllowMultiple = getIntent().getBooleanExtra(Intent.EXTRA_ALLOW_MULTIPLE, false);
+        int sortMode = PagedTrackList.SORT_BY_TRACK;
+        if (icicle != null) {
+            sortMode = icicle.getInt(SORT_MODE_KEY, sortMode);
+            mSelectedId = icicle.getLong(SELECTED_ID_KEY, -1);
+            long[] selection = icicle.getLongArray(SELECTION_KEY);
+            if (selection != null) {
+                mSelection.addAll(selection);
+            }
+            mRestorePosition = icicle.getInt(FIRST_POSITION_KEY);
+        }
+
+        setContentView(R.layout.music_picker);
+        mAdapter = new TrackListAdapter();
+        setListAdapter(mAdapter);
+        mOkayButton = findViewById(R.id.okayButton);
+        mOkayButton.setOnClickListener(this);
+        mOkayButton.setEnabled(hasSelection());
+        findViewById(R.id.cancelButton).setOnClickListener(this);
+        mSearchText = (TextView) findViewById(R.id.searchText);
+        mSearchText.addTextChangedListener(mSearchWatcher);
+        // Carries on from before a configuration change, without preparing again.
+        mAudition = (AuditionPlayer) getLastNonConfigurationInstance();
+
+        String alphabet = getString(R.string.fast_scroll_alphabet);
+        mSections = new String[alphabet.length()];
+        for (int i = 0; i < mSections.length; i++) {
+            mSections[i] = alphabet.substring(i, i + 1);
+        }
+
+        mLoader = Executors.newSingleThreadExecutor();
+        setSortMode(sortMode);
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        AuditionPlayer player = mAudition;
+        mAudition = null;
+        return player;
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mStartAudition);
+        if (mAudition != null) {
+            mAudition.recycle();
+            mAudition = null;
+        }
+        if (mTracks != null) {
+            mTracks.close();
+        }
+        if (mLoader != null) {
+            mLoader.shutdownNow();
+        }
+        super.onDestroy();
+    }
+
+    /** Shows the tracks in another order, reading the list again from the start. */
+    private void setSortMode(int sortMode) {
+        if (sortMode == mSortMode) {
+            return;
+        }
+        mSortMode = sortMode;
+        if (mTracks != null) {
+            mTracks.close();
+            mRestorePosition = 0;
+        }
+        // The filter's rows are in the old order.
+        mFilter = null;
+        mFilterRows = null;
+        mTracks = new PagedTrackList(
+                getContentResolver(), mBaseUri, sortMode, mSections, mLoader, this);
+        mTracks.start();
+        applyFilter();
+        mAdapter.notifyDataSetChanged();
+        getListView().setSelection(0);
+    }
+
+    private final TextWatcher mSearchWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            applyFilter();
+            mAdapter.notifyDataSetChanged();
+            getListView().setSelection(0);
+        }
+    };
+
+    /**
+     * Filters the list by the search text. Until the filter is ready, the whole list stays
+     * shown, and the text is applied once it is.
+     */
+    private void applyFilter() {
+        String query = mSearchText.getText().toString();
+        if (mFilter == null) {
+            if (query.trim().length() > 0) {
+                mTracks.loadFilter();
+            }
+            return;
+        }
+        long start = DBG ? System.nanoTime() : 0;
+        mFilterRows = mFilter.filter(query);
+        if (DBG) {
+            Log.v(TAG, "filter \"" + query + "\": "
+                    + (mFilterRows == null ? "all" : mFilterRows.length) + " rows in "
+                    + (System.nanoTime() - start) / 1000 + "us");
+        }
+        updateEmptyText();
+    }
+
+    private void updateEmptyText() {
+        int text;
+        if (mFilterRows != null) {
+            text = R.string.no_search_results;
+        } else if (mTracks.getSectionStarts() != null) {
+            // Counted.
+            text = R.string.no_tracks_title;
+        } else {
+            text = R.string.loading;
+        }
+        ((TextView) findViewById(android.R.id.empty)).setText(text);
+    }
+
+    @Override
+    public void onFilterReady(TrackFilter filter) {
+        mFilter = filter;
+        applyFilter();
+        mAdapter.notifyDataSetChanged();
+        getListView().setSelection(0);
+    }
+
+    @Override
+    public void onCountChanged(int count, boolean done) {
+        if (DBG) Log.v(TAG, "count " + count + (done ? "" : " so far"));
+        updateEmptyText();
+        mAdapter.notifyDataSetChanged();
+        if (mFilterRows == null && mRestorePosition > 0 && mRestorePosition < count) {
+            getListView().setSelection(mRestorePosition);
+            mRestorePosition = 0;
+        }
+    }
+
+    @Override
+    public void onPageLoaded(int page) {
+        mAdapter.notifyDataSetChanged();
     }
 
     @Override
@@ -56,18 +279,38 @@ public class MusicPicker extends ListActivity implements View.OnClickListener {
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case TRACK_MENU:
+                setSortMode(PagedTrackList.SORT_BY_TRACK);
+                return true;
+            case ALBUM_MENU:
+                setSortMode(PagedTrackList.SORT_BY_ALBUM);
+                return true;
+            case ARTIST_MENU:
+                setSortMode(PagedTrackList.SORT_BY_ARTIST);
+                return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
+        menu.add(Menu.NONE, TRACK_MENU, Menu.NONE, R.string.sort_by_track);
+        menu.add(Menu.NONE, ALBUM_MENU, Menu.NONE, R.string.sort_by_album);
+        menu.add(Menu.NONE, ARTIST_MENU, Menu.NONE, R.string.sort_by_artist);
         return true;
     }
 
     @Override
     protected void onSaveInstanceState(Bundle icicle) {
         super.onSaveInstanceState(icicle);
+        icicle.putInt(SORT_MODE_KEY, mSortMode);
+        icicle.putLong(SELECTED_ID_KEY, mSelectedId);
+        if (mAllowMultiple) {
+            icicle.putLongArray(SELECTION_KEY, mSelection.toArray());
+        }
+        icicle.putInt(FIRST_POSITION_KEY, getListView().getFirstVisiblePosition());
     }
 
     @Override
@@ -78,10 +321,399 @@ public class MusicPicker extends ListActivity implements View.OnClickListener {
     @Override
     public void onStop() {
         super.onStop();
+        if (!isChangingConfigurations()) {
+            // Left paused but prepared, so tapping the track again resumes it at once.
+            mHandler.removeCallbacks(mStartAudition);
+            if (mAudition != null) {
+                mAudition.pausePlayback();
+                mAudition.abandonFocus();
+            }
+        }
     }
 
     @Override
-    protected void onListItemClick(ListView l, View v, int position, long id) {}
+    protected void onListItemClick(ListView l, View v, int position, long id) {
+        if (id < 0) {
+            // Not read yet.
+            return;
+        }
+        mHandler.removeCallbacks(mStartAudition);
+        if (mAllowMultiple) {
+            boolean added = mSelection.add(id);
+            if (!added) {
+                mSelection.remove(id);
+            }
+            mOkayButton.setEnabled(hasSelection());
+            mAdapter.notifyDataSetChanged();
+            if (!added) {
+                // Unpicking a track stops its audition rather than starting one.
+                if (mAudition != null && mAudition.mId == id) {
+                    mAudition.pausePlayback();
+                }
+                return;
+            }
+        } else {
+            mSelectedId = id;
+            mOkayButton.setEnabled(true);
+            mAdapter.notifyDataSetChanged();
+        }
+
+        if (mAudition != null && mAudition.mId == id) {
+            // Tapping the track being auditioned again pauses or resumes it.
+            if (mAudition.isAuditioning()) {
+                mAudition.pausePlayback();
+            } else {
+                mAudition.play();
+            }
+            return;
+        }
+        if (mAudition != null) {
+            // Silent right away; the prepare for the tap before, if any, is dropped when
+            // this one starts.
+            mAudition.pausePlayback();
+        }
+        mPendingAuditionId = id;
+        mHandler.postDelayed(mStartAudition, AUDITION_DELAY_MS);
+    }
 
-    public void onClick(View v) {}
+    private final Runnable mStartAudition = new Runnable() {
+        @Override
+        public void run() {
+            if (mAudition == null) {
+                mAudition = AuditionPlayer.obtain(MusicPicker.this);
+            }
+            long id = mPendingAuditionId;
+            try {
+                mAudition.audition(id, ContentUris.withAppendedId(mBaseUri, id));
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Couldn't audition " + id, e);
+                mAudition.reset();
+                Toast.makeText(MusicPicker.this, R.string.playback_failed, Toast.LENGTH_SHORT)
+                        .show();
+            }
+        }
+    };
+
+    public void onClick(View v) {
+        switch (v.getId()) {
+            case R.id.okayButton:
+                if (mAllowMultiple) {
+                    if (mSelection.size() > 0) {
+                        setResult(RESULT_OK, getMultipleResult());
+                        finish();
+                    }
+                } else if (mSelectedId >= 0) {
+                    Uri uri = ContentUris.withAppendedId(mBaseUri, mSelectedId);
+                    setResult(RESULT_OK, new Intent().setData(uri));
+                    finish();
+                }
+                break;
+            case R.id.cancelButton:
+                finish();
+                break;
+        }
+    }
+
+    private boolean hasSelection() {
+        return mAllowMultiple ? mSelection.size() > 0 : mSelectedId >= 0;
+    }
+
+    private boolean isSelected(long id) {
+        return mAllowMultiple ? mSelection.contains(id) : id == mSelectedId;
+    }
+
+    /**
+     * Returns the result for a multiple selection: all the tracks as ClipData, and the first
+     * as the data too, for callers that only read that. The ClipData is built in one pass
+     * with a fixed MIME type instead of ClipData.newUri, which would ask the provider for
+     * the type of every item, and one FLAG_GRANT_READ_URI_PERMISSION on the result covers
+     * every item, rather than a grantUriPermission call for each.
+     */
+    private Intent getMultipleResult() {
+        ClipData clip = null;
+        Uri first = null;
+        for (int i = 0; i < mSelection.size(); i++) {
+            Uri uri = ContentUris.withAppendedId(mBaseUri, mSelection.get(i));
+            ClipData.Item item = new ClipData.Item(uri);
+            if (clip == null) {
+                first = uri;
+                clip = new ClipData(null, new String[] {"audio/*"}, item);
+            } else {
+                clip.addItem(item);
+            }
+        }
+        Intent result = new Intent().setData(first);
+        result.setClipData(clip);
+        result.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        return result;
+    }
+
+    private static final class ViewHolder {
+        TextView line1;
+        TextView line2;
+        TextView duration;
+    }
+
+    /**
+     * Shows the rows of mTracks, blank until their page has been read, or the rows of
+     * mFilter that mFilterRows lists.
+     */
+    private final class TrackListAdapter extends BaseAdapter implements SectionIndexer {
+        private final String[] mNoSections = new String[0];
+
+        @Override
+        public int getCount() {
+            if (mFilterRows != null) {
+                return mFilterRows.length;
+            }
+            return mTracks == null ? 0 : mTracks.getCount();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return null;
+        }
+
+        /** Returns the track id, or -1 if the row hasn't been read yet. */
+        @Override
+        public long getItemId(int position) {
+            if (mFilterRows != null) {
+                return mFilter.getRows().ids[mFilterRows[position]];
+            }
+            PagedTrackList.Page page = mTracks.getPage(position);
+            int row = position % PagedTrackList.PAGE_SIZE;
+            return page == null || row >= page.size() ? -1 : page.ids[row];
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        // No sections until the list is counted, or while it is filtered; fast scrolling
+        // is proportional then.
+        @Override
+        public Object[] getSections() {
+            if (mFilterRows != null || mTracks == null || mTracks.getSectionStarts() == null) {
+                return mNoSections;
+            }
+            return mSections;
+        }
+
+        @Override
+        public int getPositionForSection(int section) {
+            int[] starts = mTracks.getSectionStarts();
+            if (mFilterRows != null || starts == null || starts.length == 0) {
+                return 0;
+            }
+            return starts[Math.max(0, Math.min(section, starts.length - 1))];
+        }
+
+        @Override
+        public int getSectionForPosition(int position) {
+            int[] starts = mTracks.getSectionStarts();
+            if (mFilterRows != null || starts == null) {
+                return 0;
+            }
+            // The last section starting at or before position.
+            int low = 0;
+            int high = starts.length - 1;
+            int section = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= position) {
+                    section = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return section;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View v = convertView;
+            ViewHolder vh;
+            if (v == null) {
+                v = getLayoutInflater().inflate(R.layout.music_picker_item, parent, false);
+                vh = new ViewHolder();
+                vh.line1 = (TextView) v.findViewById(R.id.line1);
+                vh.line2 = (TextView) v.findViewById(R.id.line2);
+                vh.duration = (TextView) v.findViewById(R.id.duration);
+                v.setTag(vh);
+            } else {
+                vh = (ViewHolder) v.getTag();
+            }
+
+            PagedTrackList.Page page;
+            int row;
+            if (mFilterRows != null) {
+                page = mFilter.getRows();
+                row = mFilterRows[position];
+            } else {
+                page = mTracks.getPage(position);
+                row = position % PagedTrackList.PAGE_SIZE;
+            }
+            if (page == null || row >= page.size()) {
+                vh.line1.setText(null);
+                vh.line2.setText(null);
+                vh.duration.setText(null);
+                v.setActivated(false);
+                return v;
+            }
+            vh.line1.setText(page.titles[row]);
+            String line2 = mSortMode == PagedTrackList.SORT_BY_ALBUM ? page.albums[row]
+                                                                     : page.artists[row];
+            if (line2 == null || line2.equals(MediaStore.UNKNOWN_STRING)) {
+                line2 = getString(mSortMode == PagedTrackList.SORT_BY_ALBUM
+                                ? R.string.unknown_album_name
+                                : R.string.unknown_artist_name);
+            }
+            vh.line2.setText(line2);
+            int secs = page.durations[row] / 1000;
+            vh.duration.setText(secs == 0 ? null : DateUtils.formatElapsedTime(secs));
+            v.setActivated(isSelected(page.ids[row]));
+            return v;
+        }
+    }
+
+    /**
+     * The player tracks are auditioned with. It holds its own audio focus, so both carry
+     * over to the next activity instance on a configuration change.
+     */
+    private static final class AuditionPlayer extends MediaPlayer
+            implements MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
+            MediaPlayer.OnErrorListener {
+        // A picker left open this long without being closed has probably leaked it.
+        private static final long LEAK_TIMEOUT_MS = 10 * 60 * 1000;
+
+        private static final PlayerPool.Factory<AuditionPlayer> FACTORY =
+                new PlayerPool.Factory<AuditionPlayer>() {
+            @Override
+            public AuditionPlayer create() {
+                return new AuditionPlayer();
+            }
+        };
+
+        private Context mContext;
+        private AudioFocusHelper mFocus;
+        // The track set as the data source, or -1.
+        long mId = -1;
+        boolean mPrepared;
+        // Whether to start playing once prepared.
+        boolean mStartWhenPrepared;
+
+        /** Returns a player from the pool, which must go back with {@link #recycle}. */
+        static AuditionPlayer obtain(Context context) {
+            AuditionPlayer player = PlayerPool.getInstance().acquire(FACTORY, LEAK_TIMEOUT_MS);
+            player.mContext = context.getApplicationContext();
+            player.mFocus = new AudioFocusHelper(player.mContext,
+                    AudioManager.AUDIOFOCUS_GAIN_TRANSIENT, player.mFocusListener);
+            player.setOnPreparedListener(player);
+            player.setOnCompletionListener(player);
+            player.setOnErrorListener(player);
+            return player;
+        }
+
+        void recycle() {
+            mFocus.abandonFocus();
+            PlayerPool.getInstance().recycle(this);
+        }
+
+        // Also drops a prepare that is still in progress, whose onPrepared then never comes.
+        @Override
+        public void reset() {
+            super.reset();
+            mId = -1;
+            mPrepared = false;
+            mStartWhenPrepared = false;
+        }
+
+        /** Loads track id from uri, replacing what was loaded, and plays it once prepared. */
+        void audition(long id, Uri uri) throws IOException {
+            reset();
+            mId = id;
+            mStartWhenPrepared = true;
+            setDataSource(mContext, uri);
+            prepareAsync();
+        }
+
+        boolean isAuditioning() {
+            return mPrepared && isPlaying();
+        }
+
+        void play() {
+            if (!mPrepared) {
+                mStartWhenPrepared = true;
+                return;
+            }
+            if (!mFocus.requestFocus()) {
+                // Refused, or granted later, when the focus listener starts playback.
+                return;
+            }
+            setVolume(mFocus.getVolume(), mFocus.getVolume());
+            start();
+        }
+
+        void pausePlayback() {
+            mStartWhenPrepared = false;
+            if (isAuditioning()) {
+                pause();
+            }
+            mFocus.onPlaybackPaused();
+        }
+
+        void abandonFocus() {
+            mFocus.abandonFocus();
+        }
+
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            mPrepared = true;
+            if (mStartWhenPrepared) {
+                mStartWhenPrepared = false;
+                play();
+            }
+        }
+
+        @Override
+        public void onCompletion(MediaPlayer mp) {
+            // Stays prepared: playing it again starts it from the beginning.
+            mFocus.abandonFocus();
+        }
+
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.w(TAG, "Error " + what + "," + extra + " auditioning " + mId);
+            mId = -1;
+            mPrepared = false;
+            mStartWhenPrepared = false;
+            mFocus.abandonFocus();
+            Toast.makeText(mContext, R.string.playback_failed, Toast.LENGTH_SHORT).show();
+            return true;
+        }
+
+        private final AudioFocusHelper.Listener mFocusListener = new AudioFocusHelper.Listener() {
+            @Override
+            public boolean isPlaying() {
+                return isAuditioning();
+            }
+
+            @Override
+            public void play() {
+                AuditionPlayer.this.play();
+            }
+
+            @Override
+            public void pause() {
+                pausePlayback();
+            }
+
+            @Override
+            public void setVolume(float volume) {
+                AuditionPlayer.this.setVolume(volume, volume);
+            }
+        };
+    }
 }
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * The tracks shown by {@link MusicPicker}, read from MediaStore a page at a time rather
+ * than as one cursor over the whole audio table. The first page is read before anything
+ * else, so the list can show without waiting for the rest; then one pass over just the
+ * sort keys counts the tracks and finds where each fast-scroll section starts, and
+ * further pages are read as the list scrolls to them. Only the most recently used pages
+ * are kept.
+ *
+ * Reads run on the given executor, which must run one task at a time. Everything else,
+ * including the listener, is on the main thread.
+ */
+final class PagedTrackList {
+    private static final String TAG = "PagedTrackList";
+
+    static final int PAGE_SIZE = 100;
+    // Pages kept in memory; enough for a few screens either side of the visible rows.
+    private static final int MAX_PAGES = 20;
+    // A page requested this many pages away from the latest request is no longer wanted
+    // once its turn comes, e.g. after a fling or a fast-scroll drag went past it.
+    private static final int STALE_DISTANCE = 2;
+
+    static final int SORT_BY_TRACK = 0;
+    static final int SORT_BY_ALBUM = 1;
+    static final int SORT_BY_ARTIST = 2;
+
+    // The *_KEY columns are indexed, so each page is a short index walk, not a sort.
+    private static final String[] SORT_ORDERS = {
+        MediaStore.Audio.Media.TITLE_KEY,
+        MediaStore.Audio.Media.ALBUM_KEY + "," + MediaStore.Audio.Media.TRACK,
+        MediaStore.Audio.Media.ARTIST_KEY + "," + MediaStore.Audio.Media.ALBUM_KEY + ","
+                + MediaStore.Audio.Media.TRACK,
+    };
+    // The first column of each sort order, which the sections go by.
+    private static final String[] SECTION_COLUMNS = {
+        MediaStore.Audio.Media.TITLE_KEY,
+        MediaStore.Audio.Media.ALBUM_KEY,
+        MediaStore.Audio.Media.ARTIST_KEY,
+    };
+
+    // All audio, recordings included, as long as it has a title to show.
+    private static final String SELECTION = MediaStore.Audio.Media.TITLE + " != ''";
+
+    private static final String[] PAGE_COLUMNS = {
+        MediaStore.Audio.Media._ID,
+        MediaStore.Audio.Media.TITLE,
+        MediaStore.Audio.Media.ARTIST,
+        MediaStore.Audio.Media.ALBUM,
+        MediaStore.Audio.Media.DURATION,
+    };
+
+    interface Listener {
+        /**
+         * The number of tracks is known: first the first page's rows, then, with done set,
+         * the full count.
+         */
+        void onCountChanged(int count, boolean done);
+
+        /** A page that was asked for has been read. */
+        void onPageLoaded(int page);
+
+        /** The filter asked for with {@link #loadFilter} is ready. */
+        void onFilterReady(TrackFilter filter);
+    }
+
+    /** Rows of one page, in list order. */
+    static final class Page {
+        final long[] ids;
+        final String[] titles;
+        final String[] artists;
+        final String[] albums;
+        final int[] durations;
+
+        Page(int size) {
+            ids = new long[size];
+            titles = new String[size];
+            artists = new String[size];
+            albums = new String[size];
+            durations = new int[size];
+        }
+
+        int size() {
+            return ids.length;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String mSortOrder;
+    private final String mSectionColumn;
+    private final String[] mSections;
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mClosed;
+
+    private final Map<Integer, Page> mPages = new LinkedHashMap<Integer, Page>(
+            MAX_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+    private final Set<Integer> mRequested = new HashSet<Integer>();
+    private volatile int mLatestRequest;
+    private int mCount;
+    private int[] mSectionStarts;
+    private boolean mFilterRequested;
+    // Whether pages are read with query arguments, which the media provider honours from R
+    // on. Tests clear it to check the limit parameter used before that.
+    boolean mUseQueryArgs = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+
+    /** sections are the fast-scroll section names, in order, e.g. single letters. */
+    PagedTrackList(ContentResolver resolver, Uri uri, int sortMode, String[] sections,
+            Executor executor, Listener listener) {
+        mResolver = resolver;
+        mUri = uri;
+        mSortOrder = SORT_ORDERS[sortMode];
+        mSectionColumn = SECTION_COLUMNS[sortMode];
+        mSections = sections;
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    /** Starts reading the first page and counting the tracks. */
+    void start() {
+        mRequested.add(0);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                final Page first = readPage(0);
+                postPage(0, first);
+                if (first == null) {
+                    postCount(0, new int[mSections.length]);
+                    return;
+                }
+                postCount(first.size(), null);
+                int[] starts = new int[mSections.length];
+                postCount(indexTracks(starts), starts);
+            }
+        });
+    }
+
+    /** Stops all reads; the listener isn't called again. */
+    void close() {
+        mClosed = true;
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the position where each section starts, or null until the tracks have been
+     * counted. A section without tracks starts where the next one does.
+     */
+    int[] getSectionStarts() {
+        return mSectionStarts;
+    }
+
+    /**
+     * Reads every track, unless that has been asked for already, and indexes them in a
+     * {@link TrackFilter}. Only done once there is something to filter by, since it reads
+     * everything that paging otherwise avoids reading.
+     */
+    void loadFilter() {
+        if (mFilterRequested) {
+            return;
+        }
+        mFilterRequested = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                Page all = readRows(0, -1);
+                final TrackFilter filter = all == null ? null : new TrackFilter(all);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mClosed) {
+                            return;
+                        }
+                        if (filter == null) {
+                            // Try again on the next change to the filter text.
+                            mFilterRequested = false;
+                            return;
+                        }
+                        mListener.onFilterReady(filter);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the page holding position, or null if it hasn't been read yet, in which case
+     * it is read and {@link Listener#onPageLoaded} is called.
+     */
+    Page getPage(int position) {
+        int page = position / PAGE_SIZE;
+        Page p = mPages.get(page);
+        if (p == null) {
+            requestPage(page);
+        }
+        return p;
+    }
+
+    private void requestPage(final int page) {
+        mLatestRequest = page;
+        if (!mRequested.add(page)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                if (Math.abs(page - mLatestRequest) > STALE_DISTANCE) {
+                    postPage(page, null);
+                    return;
+                }
+                postPage(page, readPage(page));
+            }
+        });
+    }
+
+    private void postPage(final int page, final Page p) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                mRequested.remove(page);
+                if (p != null) {
+                    mPages.put(page, p);
+                    mListener.onPageLoaded(page);
+                }
+            }
+        });
+    }
+
+    // sectionStarts is null for a provisional count.
+    private void postCount(final int count, final int[] sectionStarts) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed) {
+                    mCount = count;
+                    mSectionStarts = sectionStarts;
+                    mListener.onCountChanged(count, sectionStarts != null);
+                }
+            }
+        });
+    }
+
+    private Page readPage(int page) {
+        return readRows(page * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    // Reads limit rows from offset, or all of them if limit is negative.
+    private Page readRows(int offset, int limit) {
+        Cursor c = null;
+        try {
+            c = query(PAGE_COLUMNS, offset, limit);
+            if (c == null) {
+                return null;
+            }
+            Page p = new Page(limit < 0 ? c.getCount() : Math.min(c.getCount(), limit));
+            for (int i = 0; i < p.size() && c.moveToNext(); i++) {
+                p.ids[i] = c.getLong(0);
+                p.titles[i] = c.getString(1);
+                p.artists[i] = c.getString(2);
+                p.albums[i] = c.getString(3);
+                p.durations[i] = c.getInt(4);
+            }
+            return p;
+        } catch (RuntimeException e) {
+            // e.g. the storage was unmounted
+            Log.w(TAG, "Couldn't read rows from " + offset, e);
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the tracks and fills in starts, in one pass over the sort keys in list order.
+     * A section starts at the first key that sorts at or after the key of its name, the
+     * same comparison the ORDER BY makes, so fast scrolling later never has to search.
+     */
+    private int indexTracks(int[] starts) {
+        String[] sectionKeys = new String[mSections.length];
+        for (int i = 0; i < sectionKeys.length; i++) {
+            sectionKeys[i] = MediaStore.Audio.keyFor(mSections[i]);
+        }
+        Cursor c = null;
+        int row = 0;
+        int section = 0;
+        try {
+            c = query(new String[] {MediaStore.Audio.Media._ID, mSectionColumn}, 0, -1);
+            if (c == null) {
+                return 0;
+            }
+            while (c.moveToNext()) {
+                // Null keys sort first, before every section.
+                String key = c.getString(1);
+                while (section < starts.length && key != null
+                        && key.compareTo(sectionKeys[section]) >= 0) {
+                    starts[section++] = row;
+                }
+                row++;
+            }
+            return row;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Couldn't count tracks", e);
+            return row;
+        } finally {
+            while (section < starts.length) {
+                starts[section++] = row;
+            }
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    // Reads limit rows from offset, or all of them if limit is negative.
+    private Cursor query(String[] projection, int offset, int limit) {
+        if (limit < 0) {
+            return mResolver.query(mUri, projection, SELECTION, null, mSortOrder);
+        }
+        if (mUseQueryArgs) {
+            Bundle args = new Bundle();
+            args.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, SELECTION);
+            args.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, mSortOrder);
+            args.putInt(ContentResolver.QUERY_ARG_OFFSET, offset);
+            args.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+            return mResolver.query(mUri, projection, args, null);
+        }
+        // Before R, the media provider takes a LIMIT clause as a query parameter.
+        Uri uri = mUri.buildUpon()
+                          .appendQueryParameter("limit", offset + "," + limit)
+                          .build();
+        return mResolver.query(uri, projection, SELECTION, null, mSortOrder);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the children of a browse node on the page a MediaBrowser client asked for with
+ * {@code MediaBrowser.EXTRA_PAGE} and {@code EXTRA_PAGE_SIZE}, creating only those.
+ */
+final class Paging {
+    /** The children of one node. */
+    interface Children<T> {
+        /** Returns the number of children, or -1 if there is no such node. */
+        int getCount();
+
+        /** Returns the children from index from up to, but not including, to. */
+        List<T> get(int from, int to);
+    }
+
+    private Paging() {
+    }
+
+    /**
+     * Returns the children on the given page, all of them if page is negative or pageSize
+     * is less than 1, or null if there is no such node. A page past the end is empty.
+     */
+    static <T> List<T> getPage(Children<T> children, int page, int pageSize) {
+        int count = children.getCount();
+        if (count < 0) {
+            return null;
+        }
+        if (page < 0 || pageSize < 1) {
+            return children.get(0, count);
+        }
+        long from = (long) page * pageSize;
+        if (from >= count) {
+            return Collections.<T>emptyList();
+        }
+        return children.get((int) from, (int) Math.min(from + pageSize, count));
+    }
+}
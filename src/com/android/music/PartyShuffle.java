@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Random;
+
+/**
+ * Picks tracks for party shuffle. Tracks are drawn uniformly at random straight from the
+ * library index, and a fixed size ring of recently picked ids keeps the same track from
+ * coming back too soon. Nothing is ever copied or shuffled up front, so memory use is the
+ * same for a hundred tracks as for a hundred thousand.
+ */
+class PartyShuffle {
+    /** The tracks to pick from, in any fixed order. */
+    interface Library {
+        int getTrackCount();
+
+        long getTrackIdAt(int index);
+    }
+
+    private static final int HISTORY_SIZE = 256;
+    // Rejected draws before accepting a repeat, so tiny libraries can't spin forever.
+    private static final int MAX_ATTEMPTS = 16;
+
+    private final long[] mHistory = new long[HISTORY_SIZE];
+    private int mHistoryCount;
+    private int mHistoryNext;
+    private final Random mRandom;
+
+    PartyShuffle() {
+        this(new Random());
+    }
+
+    /** Picks with the given random source, e.g. a seeded one in tests. */
+    PartyShuffle(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * Writes up to count freshly picked track ids into out and returns how many were
+     * written. Never allocates.
+     */
+    int fill(Library library, long[] out, int count) {
+        // Hold the lock so a sync can't shrink the library between picks.
+        synchronized (library) {
+            return fillLocked(library, out, count);
+        }
+    }
+
+    private int fillLocked(Library library, long[] out, int count) {
+        int size = library.getTrackCount();
+        if (size == 0) {
+            return 0;
+        }
+        // Only look back over half the library, otherwise small libraries would always
+        // find every candidate in the history.
+        int window = Math.min(mHistoryCount, size / 2);
+        for (int i = 0; i < count; i++) {
+            long id = -1;
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                id = library.getTrackIdAt(mRandom.nextInt(size));
+                if (!wasRecentlyPicked(id, window)) {
+                    break;
+                }
+            }
+            remember(id);
+            window = Math.min(mHistoryCount, size / 2);
+            out[i] = id;
+        }
+        return count;
+    }
+
+    /** Adds id to the history, e.g. for a track that was queued by other means. */
+    void remember(long id) {
+        mHistory[mHistoryNext] = id;
+        mHistoryNext = (mHistoryNext + 1) % HISTORY_SIZE;
+        if (mHistoryCount < HISTORY_SIZE) {
+            mHistoryCount++;
+        }
+    }
+
+    private boolean wasRecentlyPicked(long id, int window) {
+        int index = mHistoryNext;
+        for (int i = 0; i < window; i++) {
+            index = index == 0 ? HISTORY_SIZE - 1 : index - 1;
+            if (mHistory[index] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The play queue: a list of media ids plus an optional shuffle permutation over it.
+ *
+ * Positions are indices in play order, while queue ids are indices in the underlying
+ * list. The list itself is never reordered, so toggling shuffle only swaps which
+ * permutation is consulted, and a queue id resolves to a position through the inverse
+ * permutation in constant time.
+ */
+class PlayQueue {
+    static final int REPEAT_NONE = 0;
+    static final int REPEAT_CURRENT = 1;
+    static final int REPEAT_ALL = 2;
+
+    private long[] mList = new long[0];
+    private int mSize;
+    // Play order to list index, and its inverse. Null when shuffle is off.
+    private int[] mShuffle;
+    private int[] mShuffleInverse;
+    private int mPosition = -1;
+    private int mRepeatMode = REPEAT_NONE;
+    // Bumped on every change to the contents or order, so observers can tell whether
+    // the queue they published is still current.
+    private int mGeneration;
+    private final Random mRandom = new Random();
+
+    /**
+     * Replaces the queue with a copy of the given ids and makes the item at listIndex
+     * current. If shuffle is on, a new permutation is drawn that starts with that item.
+     */
+    void setList(long[] list, int listIndex) {
+        mList = list.clone();
+        mSize = list.length;
+        if (mSize == 0) {
+            mPosition = -1;
+        } else if (mShuffle != null) {
+            shuffle(listIndex);
+        } else {
+            mPosition = listIndex;
+        }
+        mGeneration++;
+    }
+
+    /**
+     * Restores a previously saved queue. shuffle is the play order permutation, or null
+     * if the queue was not shuffled.
+     */
+    void restore(long[] list, int[] shuffle, int position, int repeatMode) {
+        if (position >= list.length || (position < 0) != (list.length == 0)
+                || repeatMode < REPEAT_NONE || repeatMode > REPEAT_ALL
+                || (shuffle != null && shuffle.length != list.length)) {
+            throw new IllegalArgumentException("inconsistent queue");
+        }
+        mList = list;
+        mSize = list.length;
+        mShuffle = shuffle;
+        mShuffleInverse = null;
+        if (shuffle != null) {
+            mShuffleInverse = new int[shuffle.length];
+            for (int i = 0; i < shuffle.length; i++) {
+                mShuffleInverse[shuffle[i]] = i;
+            }
+        }
+        mPosition = position;
+        mRepeatMode = repeatMode;
+        mGeneration++;
+    }
+
+    /**
+     * Appends ids to the end of the queue. When shuffled they are appended to the end of
+     * the play order as well.
+     */
+    void append(long[] ids, int count) {
+        ensureCapacity(mSize + count);
+        System.arraycopy(ids, 0, mList, mSize, count);
+        if (mShuffle != null) {
+            for (int i = mSize; i < mSize + count; i++) {
+                mShuffle[i] = i;
+                mShuffleInverse[i] = i;
+            }
+        }
+        mSize += count;
+        if (mPosition < 0 && mSize > 0) {
+            mPosition = 0;
+        }
+        mGeneration++;
+    }
+
+    /**
+     * Removes the first count items in play order. Only valid while shuffle is off.
+     */
+    void removeFirst(int count) {
+        if (mShuffle != null) {
+            throw new IllegalStateException("removeFirst while shuffled");
+        }
+        count = Math.min(count, mSize);
+        System.arraycopy(mList, count, mList, 0, mSize - count);
+        mSize -= count;
+        mPosition = Math.max(mPosition - count, mSize == 0 ? -1 : 0);
+        mGeneration++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mList.length) {
+            int newCapacity = Math.max(capacity, mList.length * 2);
+            mList = Arrays.copyOf(mList, newCapacity);
+            if (mShuffle != null) {
+                mShuffle = Arrays.copyOf(mShuffle, newCapacity);
+                mShuffleInverse = Arrays.copyOf(mShuffleInverse, newCapacity);
+            }
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns the current position in play order, or -1 if the queue is empty. */
+    int getPosition() {
+        return mPosition;
+    }
+
+    void setPosition(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position " + position + " size " + mSize);
+        }
+        mPosition = position;
+    }
+
+    /** Returns the media id at the given position in play order. */
+    long getIdAt(int position) {
+        return mList[getListIndex(position)];
+    }
+
+    long getCurrentId() {
+        return mPosition < 0 ? -1 : getIdAt(mPosition);
+    }
+
+    /** Returns the media id with the given queue id, that is in list order. */
+    long getIdAtQueueId(int queueId) {
+        return mList[queueId];
+    }
+
+    /** Returns the queue id of the item at the given position in play order. */
+    long getQueueId(int position) {
+        return getListIndex(position);
+    }
+
+    /** Returns the position in play order of the given queue id, or -1. */
+    int getPositionForQueueId(long queueId) {
+        if (queueId < 0 || queueId >= mSize) {
+            return -1;
+        }
+        return mShuffle == null ? (int) queueId : mShuffleInverse[(int) queueId];
+    }
+
+    private int getListIndex(int position) {
+        return mShuffle == null ? position : mShuffle[position];
+    }
+
+    /**
+     * Returns the position that follows the current one, or -1 at the end of the queue.
+     * With force set, REPEAT_CURRENT is treated like REPEAT_ALL, as for an explicit skip.
+     */
+    int getNextPosition(boolean force) {
+        if (mPosition < 0) {
+            return -1;
+        }
+        if (!force && mRepeatMode == REPEAT_CURRENT) {
+            return mPosition;
+        }
+        if (mPosition + 1 < mSize) {
+            return mPosition + 1;
+        }
+        return mRepeatMode == REPEAT_NONE ? -1 : 0;
+    }
+
+    int getPreviousPosition() {
+        if (mPosition > 0) {
+            return mPosition - 1;
+        }
+        return mRepeatMode == REPEAT_ALL && mSize > 0 ? mSize - 1 : -1;
+    }
+
+    int getRepeatMode() {
+        return mRepeatMode;
+    }
+
+    void setRepeatMode(int repeatMode) {
+        mRepeatMode = repeatMode;
+    }
+
+    boolean isShuffled() {
+        return mShuffle != null;
+    }
+
+    /**
+     * Turns shuffle on or off without reordering the list. Turning it on draws a new
+     * permutation that keeps the current item current; turning it off maps the current
+     * position back into list order.
+     */
+    void setShuffle(boolean shuffle) {
+        if (shuffle == isShuffled()) {
+            return;
+        }
+        if (shuffle) {
+            mShuffle = new int[mList.length];
+            mShuffleInverse = new int[mList.length];
+            shuffle(mPosition < 0 ? 0 : mPosition);
+        } else {
+            if (mPosition >= 0) {
+                mPosition = mShuffle[mPosition];
+            }
+            mShuffle = null;
+            mShuffleInverse = null;
+        }
+        mGeneration++;
+    }
+
+    /** Draws a permutation with the given list index in front and makes it current. */
+    private void shuffle(int firstListIndex) {
+        if (mShuffle.length < mList.length) {
+            mShuffle = new int[mList.length];
+            mShuffleInverse = new int[mList.length];
+        }
+        int[] order = mShuffle;
+        for (int i = 0; i < mSize; i++) {
+            order[i] = i;
+        }
+        if (mSize == 0) {
+            mPosition = -1;
+            return;
+        }
+        order[0] = firstListIndex;
+        order[firstListIndex] = 0;
+        for (int i = mSize - 1; i > 1; i--) {
+            int j = 1 + mRandom.nextInt(i);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        for (int i = 0; i < mSize; i++) {
+            mShuffleInverse[order[i]] = i;
+        }
+        mPosition = 0;
+    }
+}
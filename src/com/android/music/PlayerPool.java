@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.media.MediaPlayer;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide pool of MediaPlayers, shared by {@link AudioPreview} and
+ * {@link MediaPlaybackService}. Creating a MediaPlayer sets up a native player in the media
+ * server, which is a noticeable part of opening a preview; a player that is reset and
+ * reused skips that. Players that sit idle for {@link #IDLE_TIMEOUT_MS} are released, so
+ * the pool holds nothing for long once previews stop.
+ *
+ * Players that are not returned within the timeout given when acquiring them, and aren't
+ * playing, are reported in the log with where they were acquired.
+ *
+ * Must be used on the main thread.
+ */
+final class PlayerPool {
+    private static final String TAG = "PlayerPool";
+
+    // Idle players kept of each kind.
+    private static final int MAX_IDLE = 2;
+    static final long IDLE_TIMEOUT_MS = 60 * 1000;
+    // How soon a player that is past its timeout but playing is looked at again.
+    private static final long LEAK_RECHECK_MS = 60 * 1000;
+
+    /** Makes the kind of player a caller wants, when the pool has none to reuse. */
+    interface Factory<T extends MediaPlayer> {
+        T create();
+    }
+
+    private static final class Idle {
+        final MediaPlayer mPlayer;
+        final Factory<?> mFactory;
+        final long mSince;
+
+        Idle(MediaPlayer player, Factory<?> factory, long since) {
+            mPlayer = player;
+            mFactory = factory;
+            mSince = since;
+        }
+    }
+
+    private static final class Lease {
+        final Factory<?> mFactory;
+        final long mSince;
+        final long mLeakTimeout;
+        // Where the player was acquired, for the leak report.
+        final Throwable mAcquiredAt;
+
+        Lease(Factory<?> factory, long since, long leakTimeout) {
+            mFactory = factory;
+            mSince = since;
+            mLeakTimeout = leakTimeout;
+            mAcquiredAt = new Throwable("acquired here");
+        }
+    }
+
+    private static PlayerPool sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Most recently returned last.
+    private final List<Idle> mIdle = new ArrayList<Idle>();
+    private final Map<MediaPlayer, Lease> mLeased = new IdentityHashMap<MediaPlayer, Lease>();
+    private boolean mEvictScheduled;
+    private boolean mLeakCheckScheduled;
+    // When the scheduled leak check runs, in uptime.
+    private long mLeakCheckTime;
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+    private int mLeaks;
+
+    static PlayerPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new PlayerPool();
+        }
+        return sInstance;
+    }
+
+    private PlayerPool() {
+    }
+
+    /**
+     * Returns a player in the idle state, reused if the pool has one that the same factory
+     * made. It must be given back with {@link #recycle} instead of being released; if it
+     * isn't within leakTimeoutMs, it is reported as leaked.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends MediaPlayer> T acquire(Factory<T> factory, long leakTimeoutMs) {
+        T player = null;
+        for (int i = mIdle.size() - 1; i >= 0; i--) {
+            if (mIdle.get(i).mFactory == factory) {
+                player = (T) mIdle.remove(i).mPlayer;
+                break;
+            }
+        }
+        if (player != null) {
+            mHits++;
+        } else {
+            mMisses++;
+            player = factory.create();
+        }
+        long now = SystemClock.uptimeMillis();
+        mLeased.put(player, new Lease(factory, now, leakTimeoutMs));
+        scheduleLeakCheck(now + leakTimeoutMs);
+        return player;
+    }
+
+    /**
+     * Hands a player from {@link #acquire} to a new holder, which gives it back with
+     * {@link #recycle} and may keep it for up to leakTimeoutMs from now before it is
+     * reported as leaked. Players that didn't come from the pool are left alone.
+     */
+    void transfer(MediaPlayer player, long leakTimeoutMs) {
+        Lease lease = mLeased.get(player);
+        if (lease == null) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        mLeased.put(player, new Lease(lease.mFactory, now, leakTimeoutMs));
+        scheduleLeakCheck(now + leakTimeoutMs);
+    }
+
+    /**
+     * Takes back a player from {@link #acquire}, which the caller must not touch
+     * afterwards. It is reset and kept for reuse, or released if the pool is full. Players
+     * that didn't come from the pool are released.
+     */
+    void recycle(MediaPlayer player) {
+        Lease lease = mLeased.remove(player);
+        if (lease == null) {
+            player.release();
+            return;
+        }
+        if (idleCount(lease.mFactory) >= MAX_IDLE) {
+            player.release();
+            return;
+        }
+        try {
+            player.setOnPreparedListener(null);
+            player.setOnCompletionListener(null);
+            player.setOnErrorListener(null);
+            player.setOnInfoListener(null);
+            player.setOnSeekCompleteListener(null);
+            player.setOnBufferingUpdateListener(null);
+            // Otherwise a player chained to it could still hand over to it.
+            player.setNextMediaPlayer(null);
+        } catch (RuntimeException e) {
+            // Not in a state that allows chaining; reset clears it anyway.
+        }
+        try {
+            player.reset();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Couldn't reset player, releasing it", e);
+            player.release();
+            return;
+        }
+        mIdle.add(new Idle(player, lease.mFactory, SystemClock.uptimeMillis()));
+        if (!mEvictScheduled) {
+            mEvictScheduled = true;
+            mHandler.postDelayed(mEvict, IDLE_TIMEOUT_MS);
+        }
+    }
+
+    /** Releases all idle players, e.g. when memory is low. */
+    void trim() {
+        for (Idle idle : mIdle) {
+            idle.mPlayer.release();
+            mEvictions++;
+        }
+        mIdle.clear();
+    }
+
+    void writeMetrics(Bundle b) {
+        b.putInt("pool_hits", mHits);
+        b.putInt("pool_misses", mMisses);
+        b.putInt("pool_evictions", mEvictions);
+        b.putInt("pool_leaks", mLeaks);
+        b.putInt("pool_idle", mIdle.size());
+        b.putInt("pool_leased", mLeased.size());
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println(String.format("Player pool: hits=%d misses=%d evictions=%d leaks=%d"
+                        + " idle=%d leased=%d",
+                mHits, mMisses, mEvictions, mLeaks, mIdle.size(), mLeased.size()));
+    }
+
+    private int idleCount(Factory<?> factory) {
+        int count = 0;
+        for (Idle idle : mIdle) {
+            if (idle.mFactory == factory) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private final Runnable mEvict = new Runnable() {
+        @Override
+        public void run() {
+            mEvictScheduled = false;
+            long now = SystemClock.uptimeMillis();
+            long nextDue = Long.MAX_VALUE;
+            for (Iterator<Idle> it = mIdle.iterator(); it.hasNext();) {
+                Idle idle = it.next();
+                if (now - idle.mSince >= IDLE_TIMEOUT_MS) {
+                    idle.mPlayer.release();
+                    it.remove();
+                    mEvictions++;
+                } else {
+                    nextDue = Math.min(nextDue, idle.mSince + IDLE_TIMEOUT_MS);
+                }
+            }
+            if (nextDue != Long.MAX_VALUE) {
+                mEvictScheduled = true;
+                mHandler.postDelayed(this, nextDue - now);
+            }
+        }
+    };
+
+    // A player that is playing is in use however long it has been out, so only players
+    // that have been held and silent for too long are reported. They are forgotten then,
+    // so one that does come back later is released rather than reused.
+    private final Runnable mLeakCheck = new Runnable() {
+        @Override
+        public void run() {
+            mLeakCheckScheduled = false;
+            long now = SystemClock.uptimeMillis();
+            long nextDue = Long.MAX_VALUE;
+            for (Iterator<Map.Entry<MediaPlayer, Lease>> it = mLeased.entrySet().iterator();
+                    it.hasNext();) {
+                Map.Entry<MediaPlayer, Lease> e = it.next();
+                Lease lease = e.getValue();
+                long due = lease.mSince + lease.mLeakTimeout;
+                if (now < due) {
+                    nextDue = Math.min(nextDue, due);
+                    continue;
+                }
+                if (isPlaying(e.getKey())) {
+                    nextDue = Math.min(nextDue, now + LEAK_RECHECK_MS);
+                    continue;
+                }
+                it.remove();
+                mLeaks++;
+                Log.w(TAG, "Player not returned after " + (now - lease.mSince) + "ms",
+                        lease.mAcquiredAt);
+            }
+            // Checks are only scheduled for when a lease can next be due, so a player held
+            // by the service doesn't keep waking the process.
+            if (nextDue != Long.MAX_VALUE) {
+                scheduleLeakCheck(nextDue);
+            }
+        }
+    };
+
+    // Makes sure the leak check runs no later than time, in uptime. A lease with a short
+    // timeout moves up a check scheduled for a longer one.
+    private void scheduleLeakCheck(long time) {
+        if (mLeakCheckScheduled && mLeakCheckTime <= time) {
+            return;
+        }
+        mHandler.removeCallbacks(mLeakCheck);
+        mLeakCheckScheduled = true;
+        mLeakCheckTime = time;
+        mHandler.postAtTime(mLeakCheck, time);
+    }
+
+    private static boolean isPlaying(MediaPlayer player) {
+        try {
+            return player.isPlaying();
+        } catch (RuntimeException e) {
+            // Released without being returned, or in the error state.
+            return false;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How long each stage of opening a preview takes, from the intent arriving to the first
+ * audio, kept per URI scheme in histograms with power of two millisecond buckets. The
+ * stages are also marked as trace sections. The numbers live for as long as the process
+ * and can be read with
+ * {@code adb shell dumpsys activity com.android.music/.AudioPreview}.
+ */
+final class PreviewTimings {
+    static final int STAGE_INFLATE = 0;
+    static final int STAGE_SET_DATA_SOURCE = 1;
+    static final int STAGE_QUERY = 2;
+    static final int STAGE_PREPARE = 3;
+    // From start() until the playback position first moves.
+    static final int STAGE_FIRST_AUDIO = 4;
+    // From the intent arriving until the playback position first moves.
+    static final int STAGE_TOTAL = 5;
+
+    private static final String[] STAGE_NAMES = {
+        "inflate", "setDataSource", "query", "prepare", "firstAudio", "total"
+    };
+
+    // Bucket i counts times below 2^i ms, the last one everything longer.
+    private static final int BUCKETS = 16;
+
+    private static final class Histogram {
+        final int[] mBuckets = new int[BUCKETS];
+        int mCount;
+        long mTotal;
+        long mMax;
+
+        void add(long ms) {
+            int bucket = 0;
+            while (bucket < BUCKETS - 1 && ms >= (1L << bucket)) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mTotal += ms;
+            mMax = Math.max(mMax, ms);
+        }
+    }
+
+    // Scheme to one histogram per stage.
+    private static final Map<String, Histogram[]> sHistograms =
+            new TreeMap<String, Histogram[]>();
+
+    private PreviewTimings() {}
+
+    static void beginSection(int stage) {
+        Trace.beginSection("preview:" + STAGE_NAMES[stage]);
+    }
+
+    static void endSection() {
+        Trace.endSection();
+    }
+
+    /** Marks the start of a stage that ends in a later callback. */
+    static void beginAsyncSection(int stage, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection("preview:" + STAGE_NAMES[stage], cookie);
+        }
+    }
+
+    static void endAsyncSection(int stage, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection("preview:" + STAGE_NAMES[stage], cookie);
+        }
+    }
+
+    static synchronized void record(String scheme, int stage, long ms) {
+        String key = normalizeScheme(scheme);
+        Histogram[] histograms = sHistograms.get(key);
+        if (histograms == null) {
+            histograms = new Histogram[STAGE_NAMES.length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+            sHistograms.put(key, histograms);
+        }
+        histograms[stage].add(ms);
+    }
+
+    private static String normalizeScheme(String scheme) {
+        if ("file".equals(scheme) || "content".equals(scheme)) {
+            return scheme;
+        } else if ("http".equals(scheme) || "https".equals(scheme)) {
+            return "http";
+        }
+        return "other";
+    }
+
+    static synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Preview timings (ms):");
+        for (Map.Entry<String, Histogram[]> e : sHistograms.entrySet()) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(e.getKey());
+            writer.println(':');
+            Histogram[] histograms = e.getValue();
+            for (int stage = 0; stage < histograms.length; stage++) {
+                Histogram h = histograms[stage];
+                if (h.mCount == 0) {
+                    continue;
+                }
+                writer.print(prefix);
+                writer.print(String.format("    %-14s n=%d mean=%d max=%d ", STAGE_NAMES[stage],
+                        h.mCount, h.mTotal / h.mCount, h.mMax));
+                for (int i = 0; i < BUCKETS; i++) {
+                    if (h.mBuckets[i] == 0) {
+                        continue;
+                    }
+                    writer.print(i == BUCKETS - 1 ? " >=" : " <");
+                    writer.print(1L << (i == BUCKETS - 1 ? i - 1 : i));
+                    writer.print(':');
+                    writer.print(h.mBuckets[i]);
+                }
+                writer.println();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+/**
+ * Tells where playback is on each frame without asking the player every time, since that
+ * is a call into the media server. Positions are extrapolated from the player's last
+ * answer, which is only checked again once a second. Nothing here allocates.
+ *
+ * Must be used on one thread.
+ */
+final class ProgressClock {
+    interface Player {
+        /** Returns the playback position, in ms. */
+        int getCurrentPosition();
+
+        boolean isPlaying();
+    }
+
+    // How often the extrapolated position is corrected from the player.
+    private static final long RESYNC_NANOS = 1000000000L;
+
+    private final Player mPlayer;
+    // Playback position at mAnchorNanos.
+    private int mAnchorPosition;
+    private long mAnchorNanos;
+
+    ProgressClock(Player player) {
+        mPlayer = player;
+    }
+
+    /** Asks the player where playback is at nowNanos, and returns it. */
+    int sync(long nowNanos) {
+        mAnchorPosition = mPlayer.getCurrentPosition();
+        mAnchorNanos = nowNanos;
+        return mAnchorPosition;
+    }
+
+    /** Records that playback is at position at nowNanos, e.g. because of a seek. */
+    void set(int position, long nowNanos) {
+        mAnchorPosition = position;
+        mAnchorNanos = nowNanos;
+    }
+
+    /** Returns the position the player last reported, or was set to. */
+    int getLastPosition() {
+        return mAnchorPosition;
+    }
+
+    /**
+     * Returns the position at frameTimeNanos, or -1 if the player turned out to have
+     * stopped playing when it was asked again.
+     */
+    int positionAt(long frameTimeNanos) {
+        if (frameTimeNanos - mAnchorNanos >= RESYNC_NANOS) {
+            sync(frameTimeNanos);
+            if (!mPlayer.isPlaying()) {
+                return -1;
+            }
+        }
+        return (int) Math.max(0, mAnchorPosition + (frameTimeNanos - mAnchorNanos) / 1000000);
+    }
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persists a {@link PlayQueue}, together with the playback position and the party shuffle
+ * flag, so that a restarted service comes back where it left off.
+ *
+ * State is kept in two files. The snapshot holds the complete queue, with media ids
+ * stored as zigzag varint deltas. The journal is an append-only list of small records
+ * describing each change since that snapshot, so that the frequent mutations (moving to
+ * the next track, party shuffle refills) only cost a few bytes. Once the journal grows
+ * past a threshold, or the whole list is replaced, a new snapshot is written and the
+ * journal starts over.
+ *
+ * Every record and the snapshot carry a CRC32. On restore a damaged snapshot discards
+ * everything, while a damaged or truncated journal record ends the replay at the last
+ * good record. The journal names the snapshot generation it applies to, so a crash
+ * between writing a snapshot and resetting the journal can't replay stale records.
+ *
+ * Records are encoded on the calling thread and written on a private background thread.
+ */
+class QueueJournal {
+    private static final String TAG = "QueueJournal";
+
+    private static final int SNAPSHOT_MAGIC = 0x4d515331; // "MQS1"
+    private static final int JOURNAL_MAGIC = 0x4d514a31; // "MQJ1"
+
+    private static final byte RECORD_POSITION = 1;
+    private static final byte RECORD_REPEAT = 2;
+    private static final byte RECORD_APPEND = 3;
+    private static final byte RECORD_REMOVE_FIRST = 4;
+    private static final byte RECORD_PARTY_SHUFFLE = 5;
+
+    private static final int FLAG_SHUFFLED = 1;
+    private static final int FLAG_PARTY_SHUFFLE = 2;
+
+    private static final int MAX_JOURNAL_BYTES = 16 * 1024;
+    // Upper bound for any count or position read back, to fail fast on garbage.
+    private static final int MAX_VAR_INT = 1 << 24;
+
+    /** What was restored besides the queue itself. */
+    static final class State {
+        long seekPosition;
+        boolean partyShuffle;
+    }
+
+    private final File mSnapshotFile;
+    private final File mJournalFile;
+    private final PlayQueue mQueue;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    // Only touched on the calling thread.
+    private final Buffer mBuffer = new Buffer();
+    private long mGeneration;
+    private int mJournalBytes;
+    private long mSeekPosition;
+    private boolean mPartyShuffle;
+
+    // Only touched on the writer thread.
+    private FileOutputStream mJournalOut;
+
+    QueueJournal(File dir, PlayQueue queue) {
+        dir.mkdirs();
+        mSnapshotFile = new File(dir, "queue.snapshot");
+        mJournalFile = new File(dir, "queue.journal");
+        mQueue = queue;
+    }
+
+    /**
+     * Restores the queue from disk, synchronously. Returns null, leaving the queue
+     * untouched, if nothing usable was saved.
+     */
+    State restore() {
+        byte[] snapshot = readFile(mSnapshotFile);
+        if (snapshot == null) {
+            return null;
+        }
+        State state = new State();
+        try {
+            Reader r = new Reader(snapshot, 0, snapshot.length - 4);
+            if (r.readInt() != SNAPSHOT_MAGIC || crc(snapshot, 0, snapshot.length - 4)
+                            != new Reader(snapshot, snapshot.length - 4, 4).readInt()) {
+                throw new IOException("bad snapshot");
+            }
+            mGeneration = r.readVarLong();
+            readSnapshot(r, state);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding saved queue", e);
+            mQueue.setList(new long[0], 0);
+            return null;
+        }
+
+        byte[] journal = readFile(mJournalFile);
+        if (journal != null) {
+            replay(journal, state);
+        }
+        mSeekPosition = state.seekPosition;
+        mPartyShuffle = state.partyShuffle;
+        // Start from a clean snapshot rather than appending behind a possibly torn record.
+        saveAll();
+        return state;
+    }
+
+    private void readSnapshot(Reader r, State state) throws IOException {
+        int size = checkCount(r.readVarInt(), r);
+        long[] list = new long[size];
+        long id = 0;
+        for (int i = 0; i < size; i++) {
+            id += r.readZigZag();
+            list[i] = id;
+        }
+        int flags = r.readByte();
+        int[] shuffle = null;
+        if ((flags & FLAG_SHUFFLED) != 0) {
+            shuffle = new int[size];
+            boolean[] seen = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                int index = r.readVarInt();
+                if (index < 0 || index >= size || seen[index]) {
+                    throw new IOException("bad permutation");
+                }
+                seen[index] = true;
+                shuffle[i] = index;
+            }
+        }
+        int position = r.readVarInt() - 1;
+        int repeatMode = r.readByte();
+        state.seekPosition = r.readVarLong();
+        state.partyShuffle = (flags & FLAG_PARTY_SHUFFLE) != 0;
+        mQueue.restore(list, shuffle, position, repeatMode);
+    }
+
+    private void replay(byte[] journal, State state) {
+        try {
+            Reader r = new Reader(journal, 0, journal.length);
+            if (r.readInt() != JOURNAL_MAGIC || r.readVarLong() != mGeneration) {
+                return;
+            }
+            while (r.remaining() > 0) {
+                int length = r.readVarInt();
+                if (length <= 0 || length + 4 > r.remaining()) {
+                    return;
+                }
+                int start = r.position();
+                Reader record = new Reader(journal, start, length);
+                r.skip(length);
+                if (r.readInt() != crc(journal, start, length)) {
+                    return;
+                }
+                applyRecord(record, state);
+            }
+        } catch (IOException | RuntimeException e) {
+            // A torn write at the end of the journal, keep what was applied so far.
+            Log.w(TAG, "Stopping journal replay", e);
+        }
+    }
+
+    private void applyRecord(Reader r, State state) throws IOException {
+        switch (r.readByte()) {
+            case RECORD_POSITION: {
+                int position = r.readVarInt() - 1;
+                if (position >= mQueue.size()) {
+                    throw new IOException("bad position");
+                }
+                if (position >= 0) {
+                    mQueue.setPosition(position);
+                }
+                state.seekPosition = r.readVarLong();
+                break;
+            }
+            case RECORD_REPEAT: {
+                int repeatMode = r.readByte();
+                if (repeatMode > PlayQueue.REPEAT_ALL) {
+                    throw new IOException("bad repeat mode");
+                }
+                mQueue.setRepeatMode(repeatMode);
+                break;
+            }
+            case RECORD_APPEND: {
+                int count = checkCount(r.readVarInt(), r);
+                long[] ids = new long[count];
+                long id = 0;
+                for (int i = 0; i < count; i++) {
+                    id += r.readZigZag();
+                    ids[i] = id;
+                }
+                mQueue.append(ids, count);
+                break;
+            }
+            case RECORD_REMOVE_FIRST:
+                mQueue.removeFirst(r.readVarInt());
+                break;
+            case RECORD_PARTY_SHUFFLE:
+                state.partyShuffle = r.readByte() != 0;
+                break;
+            default:
+                throw new IOException("unknown record");
+        }
+    }
+
+    /** Rejects counts that can't possibly be backed by the remaining bytes. */
+    private static int checkCount(int count, Reader r) throws IOException {
+        if (count < 0 || count > r.remaining()) {
+            throw new IOException("bad count " + count);
+        }
+        return count;
+    }
+
+    /** Records the current queue position and the playback position within the track. */
+    void savePosition(long seekPosition) {
+        mSeekPosition = seekPosition;
+        mBuffer.reset();
+        mBuffer.writeByte(RECORD_POSITION);
+        mBuffer.writeVarLong(mQueue.getPosition() + 1);
+        mBuffer.writeVarLong(Math.max(0, seekPosition));
+        appendRecord();
+    }
+
+    void saveRepeatMode() {
+        mBuffer.reset();
+        mBuffer.writeByte(RECORD_REPEAT);
+        mBuffer.writeByte(mQueue.getRepeatMode());
+        appendRecord();
+    }
+
+    void savePartyShuffle(boolean enabled) {
+        mPartyShuffle = enabled;
+        mBuffer.reset();
+        mBuffer.writeByte(RECORD_PARTY_SHUFFLE);
+        mBuffer.writeByte(enabled ? 1 : 0);
+        appendRecord();
+    }
+
+    /** Records ids that were just appended to the queue. */
+    void saveAppend(long[] ids, int count) {
+        mBuffer.reset();
+        mBuffer.writeByte(RECORD_APPEND);
+        mBuffer.writeVarLong(count);
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            mBuffer.writeZigZag(ids[i] - previous);
+            previous = ids[i];
+        }
+        appendRecord();
+    }
+
+    /** Records that the first count items were just removed from the queue. */
+    void saveRemoveFirst(int count) {
+        mBuffer.reset();
+        mBuffer.writeByte(RECORD_REMOVE_FIRST);
+        mBuffer.writeVarLong(count);
+        appendRecord();
+    }
+
+    /**
+     * Writes a complete snapshot and starts a new journal. Used when the whole list or
+     * its order changed, and for compaction.
+     */
+    void saveAll() {
+        mGeneration++;
+        Buffer b = new Buffer();
+        b.writeInt(SNAPSHOT_MAGIC);
+        b.writeVarLong(mGeneration);
+        int size = mQueue.size();
+        b.writeVarLong(size);
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            long id = mQueue.getIdAtQueueId(i);
+            b.writeZigZag(id - previous);
+            previous = id;
+        }
+        boolean shuffled = mQueue.isShuffled();
+        b.writeByte((shuffled ? FLAG_SHUFFLED : 0) | (mPartyShuffle ? FLAG_PARTY_SHUFFLE : 0));
+        if (shuffled) {
+            for (int i = 0; i < size; i++) {
+                b.writeVarLong(mQueue.getQueueId(i));
+            }
+        }
+        b.writeVarLong(mQueue.getPosition() + 1);
+        b.writeByte(mQueue.getRepeatMode());
+        b.writeVarLong(Math.max(0, mSeekPosition));
+        b.writeInt(crc(b.mData, 0, b.mSize));
+        final byte[] snapshot = b.toByteArray();
+
+        b.reset();
+        b.writeInt(JOURNAL_MAGIC);
+        b.writeVarLong(mGeneration);
+        final byte[] journalHeader = b.toByteArray();
+        mJournalBytes = journalHeader.length;
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeJournal();
+                try {
+                    writeFileAtomically(mSnapshotFile, snapshot);
+                    writeFileAtomically(mJournalFile, journalHeader);
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't save queue", e);
+                }
+            }
+        });
+    }
+
+    /** Lets pending writes finish in the background, then releases the journal. */
+    void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeJournal();
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    /** Waits for the writes pending at {@link #close} to finish. For tests. */
+    boolean awaitClosed(long timeoutMs) throws InterruptedException {
+        return mWriter.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void appendRecord() {
+        if (mGeneration == 0 || mJournalBytes + mBuffer.mSize > MAX_JOURNAL_BYTES) {
+            // The change is already reflected in the queue, so the snapshot includes it.
+            saveAll();
+            return;
+        }
+        Buffer b = new Buffer();
+        b.writeVarLong(mBuffer.mSize);
+        b.write(mBuffer.mData, 0, mBuffer.mSize);
+        b.writeInt(crc(mBuffer.mData, 0, mBuffer.mSize));
+        final byte[] record = b.toByteArray();
+        mJournalBytes += record.length;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mJournalOut == null) {
+                        mJournalOut = new FileOutputStream(mJournalFile, true);
+                    }
+                    mJournalOut.write(record);
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't append to queue journal", e);
+                    closeJournal();
+                }
+            }
+        });
+    }
+
+    private void execute(Runnable r) {
+        if (!mWriter.isShutdown()) {
+            mWriter.execute(r);
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournalOut != null) {
+            try {
+                mJournalOut.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mJournalOut = null;
+        }
+    }
+
+    private static void writeFileAtomically(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Couldn't rename " + tmp);
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        if (!file.exists() || file.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    return Arrays.copyOf(data, read);
+                }
+                read += n;
+            }
+            return data;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static int crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /** Growable byte buffer with varint encoding. */
+    private static final class Buffer {
+        byte[] mData = new byte[64];
+        int mSize;
+
+        void reset() {
+            mSize = 0;
+        }
+
+        private void ensure(int extra) {
+            if (mSize + extra > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mSize + extra, mData.length * 2));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            mData[mSize++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            mData[mSize++] = (byte) (v >>> 24);
+            mData[mSize++] = (byte) (v >>> 16);
+            mData[mSize++] = (byte) (v >>> 8);
+            mData[mSize++] = (byte) v;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                mData[mSize++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            mData[mSize++] = (byte) v;
+        }
+
+        void writeZigZag(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void write(byte[] data, int offset, int length) {
+            ensure(length);
+            System.arraycopy(data, offset, mData, mSize, length);
+            mSize += length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mData, mSize);
+        }
+    }
+
+    /** Bounds-checked reader over a byte range. */
+    private static final class Reader {
+        private final byte[] mData;
+        private int mPos;
+        private final int mEnd;
+
+        Reader(byte[] data, int offset, int length) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > data.length) {
+                throw new IOException("truncated");
+            }
+            mData = data;
+            mPos = offset;
+            mEnd = offset + length;
+        }
+
+        int position() {
+            return mPos;
+        }
+
+        int remaining() {
+            return mEnd - mPos;
+        }
+
+        void skip(int n) throws IOException {
+            if (n > remaining()) {
+                throw new IOException("truncated");
+            }
+            mPos += n;
+        }
+
+        int readByte() throws IOException {
+            if (mPos >= mEnd) {
+                throw new IOException("truncated");
+            }
+            return mData[mPos++] & 0xff;
+        }
+
+        int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("varint too long");
+        }
+
+        int readVarInt() throws IOException {
+            long v = readVarLong();
+            if (v < 0 || v > MAX_VAR_INT) {
+                throw new IOException("value out of range " + v);
+            }
+            return (int) v;
+        }
+
+        long readZigZag() throws IOException {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
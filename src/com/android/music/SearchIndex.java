@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.provider.MediaStore;
+import android.util.LongSparseArray;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inverted index from words to the tracks whose title, artist, album or genre contain
+ * them. Words are folded to lower case with diacritics removed, so "beyonce" also finds
+ * the accented spelling, and every query word matches as a prefix of an indexed word.
+ *
+ * Each track gets a small dense slot number, so a query scores its candidates in flat
+ * int arrays rather than in a map. Tracks can be added and removed one at a time, so
+ * the index follows library changes without being rebuilt.
+ *
+ * Not thread safe. The owning {@link MusicLibrary} only uses it while holding its own
+ * lock.
+ */
+class SearchIndex {
+    static final int FIELD_TITLE = 1;
+    static final int FIELD_ARTIST = 1 << 1;
+    static final int FIELD_ALBUM = 1 << 2;
+    static final int FIELD_GENRE = 1 << 3;
+    static final int FIELD_ALL = FIELD_TITLE | FIELD_ARTIST | FIELD_ALBUM | FIELD_GENRE;
+
+    // Score of a word matching in each field, by field bit. Whole word matches count double.
+    private static final int[] FIELD_SCORES = {8, 4, 4, 2};
+
+    /** The tracks containing one word, with the fields each one contains it in. */
+    private static final class Postings {
+        int[] slots = new int[2];
+        byte[] fields = new byte[2];
+        int size;
+
+        void add(int slot, int field) {
+            // All words of a track are added in one go, so a repeat is always the last entry.
+            if (size > 0 && slots[size - 1] == slot) {
+                fields[size - 1] |= field;
+                return;
+            }
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+                fields = Arrays.copyOf(fields, size * 2);
+            }
+            slots[size] = slot;
+            fields[size] = (byte) field;
+            size++;
+        }
+
+        void remove(int slot) {
+            for (int i = 0; i < size; i++) {
+                if (slots[i] == slot) {
+                    size--;
+                    slots[i] = slots[size];
+                    fields[i] = fields[size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A search: words that must all match, each in one of the fields it was added for.
+     */
+    static final class Query {
+        private final List<String> mWords = new ArrayList<String>();
+        private final List<Integer> mFields = new ArrayList<Integer>();
+
+        /** Adds the words of text, which may be null. */
+        Query add(String text, int fields) {
+            for (String word : split(text)) {
+                mWords.add(word);
+                mFields.add(fields);
+            }
+            return this;
+        }
+
+        boolean isEmpty() {
+            return mWords.isEmpty();
+        }
+    }
+
+    private final TreeMap<String, Postings> mWords = new TreeMap<String, Postings>();
+    private final LongSparseArray<Integer> mSlots = new LongSparseArray<Integer>();
+    // Slot to track id, -1 for a free slot.
+    private long[] mSlotIds = new long[64];
+    private int mSlotCount;
+    private int[] mFreeSlots = new int[16];
+    private int mFreeCount;
+
+    /**
+     * Indexes a track, which must not be indexed already. genre is the name of the
+     * track's genre, or null.
+     */
+    void add(MusicLibrary.Track t, String genre) {
+        int slot = allocateSlot(t.id);
+        addWords(t.title, FIELD_TITLE, slot);
+        addWords(t.artist, FIELD_ARTIST, slot);
+        addWords(t.album, FIELD_ALBUM, slot);
+        addWords(genre, FIELD_GENRE, slot);
+    }
+
+    /**
+     * Removes a track. t and genre must hold the values the track was added with.
+     */
+    void remove(MusicLibrary.Track t, String genre) {
+        Integer slot = mSlots.get(t.id);
+        if (slot == null) {
+            return;
+        }
+        removeWords(t.title, slot);
+        removeWords(t.artist, slot);
+        removeWords(t.album, slot);
+        removeWords(genre, slot);
+        mSlots.remove(t.id);
+        mSlotIds[slot] = -1;
+        if (mFreeCount == mFreeSlots.length) {
+            mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeCount * 2);
+        }
+        mFreeSlots[mFreeCount++] = slot;
+    }
+
+    private int allocateSlot(long id) {
+        int slot;
+        if (mFreeCount > 0) {
+            slot = mFreeSlots[--mFreeCount];
+        } else {
+            if (mSlotCount == mSlotIds.length) {
+                mSlotIds = Arrays.copyOf(mSlotIds, mSlotCount * 2);
+            }
+            slot = mSlotCount++;
+        }
+        mSlotIds[slot] = id;
+        mSlots.put(id, slot);
+        return slot;
+    }
+
+    private void addWords(String text, int field, int slot) {
+        for (String word : split(text)) {
+            Postings p = mWords.get(word);
+            if (p == null) {
+                p = new Postings();
+                mWords.put(word, p);
+            }
+            p.add(slot, field);
+        }
+    }
+
+    private void removeWords(String text, int slot) {
+        for (String word : split(text)) {
+            Postings p = mWords.get(word);
+            if (p != null) {
+                p.remove(slot);
+                if (p.size == 0) {
+                    mWords.remove(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of up to limit tracks that match every word of the query, best
+     * matches first. Equally good matches come in slot order, which for a freshly loaded
+     * library is album and track order.
+     */
+    long[] search(Query query, int limit) {
+        int words = query.mWords.size();
+        if (words == 0 || limit <= 0) {
+            return new long[0];
+        }
+        // Per slot: how many of the query words matched so far, the total score, and the
+        // score of the best match for the current word.
+        int[] matched = new int[mSlotCount];
+        int[] scores = new int[mSlotCount];
+        int[] wordScores = new int[mSlotCount];
+        for (int w = 0; w < words; w++) {
+            String word = query.mWords.get(w);
+            int fields = query.mFields.get(w);
+            for (Map.Entry<String, Postings> e :
+                    mWords.subMap(word, true, word + Character.MAX_VALUE, false).entrySet()) {
+                boolean whole = e.getKey().length() == word.length();
+                Postings p = e.getValue();
+                for (int i = 0; i < p.size; i++) {
+                    int slot = p.slots[i];
+                    int hit = p.fields[i] & fields;
+                    if (hit == 0 || matched[slot] < w) {
+                        continue;
+                    }
+                    int score = score(hit, whole);
+                    if (matched[slot] == w) {
+                        matched[slot] = w + 1;
+                        scores[slot] += score;
+                        wordScores[slot] = score;
+                    } else if (score > wordScores[slot]) {
+                        scores[slot] += score - wordScores[slot];
+                        wordScores[slot] = score;
+                    }
+                }
+            }
+        }
+
+        int count = 0;
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (matched[slot] == words) count++;
+        }
+        // Sort on (-score, slot) packed into one long.
+        long[] ranked = new long[count];
+        for (int slot = 0, i = 0; slot < mSlotCount; slot++) {
+            if (matched[slot] == words) {
+                ranked[i++] = ((long) (Integer.MAX_VALUE - scores[slot]) << 32) | slot;
+            }
+        }
+        Arrays.sort(ranked);
+        long[] ids = new long[Math.min(limit, count)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mSlotIds[(int) ranked[i]];
+        }
+        return ids;
+    }
+
+    private static int score(int fields, boolean whole) {
+        int score = 0;
+        for (int i = 0; i < FIELD_SCORES.length; i++) {
+            if ((fields & (1 << i)) != 0) {
+                score = Math.max(score, FIELD_SCORES[i]);
+            }
+        }
+        return whole ? score * 2 : score;
+    }
+
+    /**
+     * Returns true if every word of query is a prefix of a word in text, e.g. for
+     * matching the few playlist names that are not worth indexing.
+     */
+    static boolean matches(String text, String query) {
+        List<String> words = split(text);
+        List<String> queryWords = split(query);
+        if (queryWords.isEmpty()) {
+            return false;
+        }
+        for (String q : queryWords) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(q)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Splits text into lower case words without diacritics. */
+    static List<String> split(String text) {
+        List<String> words = new ArrayList<String>();
+        if (text == null || MediaStore.UNKNOWN_STRING.equals(text)) {
+            return words;
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                appendFolded(word, Character.toLowerCase(c));
+            } else if (Character.getType(c) == Character.NON_SPACING_MARK || c == '\''
+                    || c == '\u2019') {
+                // Accents and apostrophes don't break words: "don't" is "dont".
+                continue;
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    // Letters that NFD does not decompose into a base letter and a mark.
+    private static void appendFolded(StringBuilder sb, char c) {
+        switch (c) {
+            case '\u00df': // sharp s
+                sb.append("ss");
+                break;
+            case '\u00e6': // ae
+                sb.append("ae");
+                break;
+            case '\u0153': // oe
+                sb.append("oe");
+                break;
+            case '\u00f8': // o with stroke
+                sb.append('o');
+                break;
+            case '\u0142': // l with stroke
+                sb.append('l');
+                break;
+            case '\u0111': // d with stroke
+            case '\u00f0': // eth
+                sb.append('d');
+                break;
+            default:
+                sb.append(c);
+                break;
+        }
+    }
+}
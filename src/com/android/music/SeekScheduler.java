@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+/**
+ * Coalesces the seeks of a scrubbing gesture. At most one seek is in flight at a time;
+ * requests made meanwhile replace each other, and only the latest is issued once the
+ * player reports the seek in flight as complete. Fast seeks may land on the nearest sync
+ * frame, which is what to use while the thumb is moving.
+ *
+ * Must be used on one thread.
+ */
+final class SeekScheduler {
+    interface Seeker {
+        /**
+         * Starts a seek to position, in ms. If fast, it may land on a nearby sync frame
+         * instead. {@link SeekScheduler#onSeekComplete} must be called when it finishes.
+         */
+        void seek(long position, boolean fast);
+    }
+
+    private final Seeker mSeeker;
+    private boolean mInFlight;
+    // Latest request made while a seek was in flight, or -1.
+    private long mPending = -1;
+    private boolean mPendingFast;
+
+    SeekScheduler(Seeker seeker) {
+        mSeeker = seeker;
+    }
+
+    void seekTo(long position, boolean fast) {
+        if (mInFlight) {
+            mPending = position;
+            mPendingFast = fast;
+            return;
+        }
+        mInFlight = true;
+        mSeeker.seek(position, fast);
+    }
+
+    void onSeekComplete() {
+        mInFlight = false;
+        if (mPending >= 0) {
+            long position = mPending;
+            mPending = -1;
+            seekTo(position, mPendingFast);
+        }
+    }
+
+    /** Forgets all seeks, e.g. because the player was reset and won't complete them. */
+    void reset() {
+        mInFlight = false;
+        mPending = -1;
+    }
+}
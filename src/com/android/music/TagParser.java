@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the title, artist and album from the tags of an audio file: ID3v2 and ID3v1,
+ * FLAC and Ogg Vorbis or Opus comments, and MP4 ilst atoms. Only the headers are read,
+ * at the positions the container points to, so the cost doesn't depend on the size of
+ * the file, and in total no more than {@link #MAX_READ_BYTES} are read.
+ *
+ * Plain Java, so it can run on any thread and outside of Android.
+ */
+final class TagParser {
+    /** Random access to the bytes of a file or stream. */
+    interface Source {
+        /** Reads up to size bytes at position. Returns the count read, or -1 at the end. */
+        int readAt(long position, byte[] buffer, int offset, int size) throws IOException;
+
+        /** Returns the length in bytes, or -1 if it isn't known. */
+        long length() throws IOException;
+    }
+
+    static final class Tags {
+        String title;
+        String artist;
+        String album;
+
+        boolean isComplete() {
+            return title != null && artist != null && album != null;
+        }
+    }
+
+    private static final int MAX_READ_BYTES = 256 * 1024;
+    // Longest single tag value or comment block that is read.
+    private static final int MAX_FIELD_BYTES = 64 * 1024;
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    private final Source mSource;
+    private final long mLength;
+    private final Tags mTags = new Tags();
+    private int mBytesRead;
+
+    private TagParser(Source source) throws IOException {
+        mSource = source;
+        mLength = source.length();
+    }
+
+    /** Returns the tags found in source, whose fields are null where nothing was found. */
+    static Tags parse(Source source) throws IOException {
+        TagParser parser = new TagParser(source);
+        parser.parse();
+        return parser.mTags;
+    }
+
+    /** Returns a source that reads from a file channel without moving its position. */
+    static Source fromChannel(final FileChannel channel) {
+        return new Source() {
+            @Override
+            public int readAt(long position, byte[] buffer, int offset, int size)
+                    throws IOException {
+                return channel.read(ByteBuffer.wrap(buffer, offset, size), position);
+            }
+
+            @Override
+            public long length() throws IOException {
+                return channel.size();
+            }
+        };
+    }
+
+    private void parse() throws IOException {
+        long offset = 0;
+        byte[] head = read(offset, 12);
+        if (head != null && startsWith(head, 0, "ID3")) {
+            // Some FLAC files have ID3v2 in front of them as well.
+            offset = parseId3v2(offset);
+            head = mTags.isComplete() ? null : read(offset, 12);
+        }
+        if (head != null) {
+            if (startsWith(head, 0, "fLaC")) {
+                parseFlac(offset + 4);
+            } else if (startsWith(head, 0, "OggS")) {
+                parseOgg(offset);
+            } else if (startsWith(head, 4, "ftyp")) {
+                parseMp4Boxes(offset, mLength, 0);
+            }
+        }
+        // ID3v1 is at the very end, so only look there if nothing else was found.
+        if (mTags.title == null && mLength >= 128) {
+            parseId3v1(mLength - 128);
+        }
+    }
+
+    // ID3v2.2 to 2.4. Returns the offset just past the tag.
+    private long parseId3v2(long offset) throws IOException {
+        byte[] header = read(offset, 10);
+        if (header == null) {
+            return offset;
+        }
+        int version = header[3];
+        int flags = header[5] & 0xff;
+        long end = offset + 10 + synchsafe(header, 6);
+        if ((flags & 0x10) != 0) {
+            end += 10; // footer
+        }
+        boolean unsync = (flags & 0x80) != 0 && version < 4;
+        long pos = offset + 10;
+        if ((flags & 0x40) != 0) {
+            byte[] ext = read(pos, 4);
+            if (ext == null) {
+                return end;
+            }
+            pos += version >= 4 ? synchsafe(ext, 0) : 4 + int32(ext, 0);
+        }
+        int idLength = version == 2 ? 3 : 4;
+        int headerLength = version == 2 ? 6 : 10;
+        while (pos + headerLength <= end && !mTags.isComplete()) {
+            byte[] fh = read(pos, headerLength);
+            if (fh == null || fh[0] == 0) {
+                break; // padding
+            }
+            String id = new String(fh, 0, idLength, StandardCharsets.ISO_8859_1);
+            long size;
+            int frameFlags = 0;
+            if (version == 2) {
+                size = ((fh[3] & 0xff) << 16) | ((fh[4] & 0xff) << 8) | (fh[5] & 0xff);
+            } else {
+                size = version >= 4 ? synchsafe(fh, 4) : int32(fh, 4);
+                frameFlags = ((fh[8] & 0xff) << 8) | (fh[9] & 0xff);
+            }
+            long data = pos + headerLength;
+            pos = data + size;
+            if (size <= 1 || pos > end) {
+                continue;
+            }
+            String value = null;
+            if (id.equals("TIT2") || id.equals("TT2") || id.equals("TPE1") || id.equals("TP1")
+                    || id.equals("TALB") || id.equals("TAL")) {
+                value = readId3Text(data, (int) Math.min(size, MAX_FIELD_BYTES), version,
+                        frameFlags, unsync);
+            }
+            if (value == null) {
+                continue;
+            }
+            if (id.equals("TIT2") || id.equals("TT2")) {
+                setTitle(value);
+            } else if (id.equals("TPE1") || id.equals("TP1")) {
+                setArtist(value);
+            } else {
+                setAlbum(value);
+            }
+        }
+        return end;
+    }
+
+    private String readId3Text(long data, int size, int version, int frameFlags,
+            boolean unsync) throws IOException {
+        if (version >= 4) {
+            if ((frameFlags & 0x000c) != 0) {
+                return null; // compressed or encrypted
+            }
+            unsync = (frameFlags & 0x0002) != 0;
+            if ((frameFlags & 0x0001) != 0) {
+                data += 4; // data length indicator
+                size -= 4;
+            }
+        } else if ((frameFlags & 0x00c0) != 0) {
+            return null; // 2.3 compressed or encrypted
+        }
+        byte[] b = read(data, size);
+        if (b == null || b.length < 2) {
+            return null;
+        }
+        int length = unsync ? removeUnsynchronisation(b) : b.length;
+        return decodeId3Text(b[0], b, 1, length - 1);
+    }
+
+    // Text frames start with an encoding byte; values are cut at the first terminator.
+    private static String decodeId3Text(int encoding, byte[] b, int offset, int length) {
+        Charset charset;
+        boolean wide = encoding == 1 || encoding == 2;
+        if (encoding == 1) {
+            charset = UTF_16LE;
+            if (length >= 2 && (b[offset] & 0xff) == 0xfe && (b[offset + 1] & 0xff) == 0xff) {
+                charset = UTF_16BE;
+            }
+            if (length >= 2 && ((b[offset] & 0xff) + (b[offset + 1] & 0xff)) == 0x1fd) {
+                offset += 2;
+                length -= 2;
+            }
+        } else if (encoding == 2) {
+            charset = UTF_16BE;
+        } else if (encoding == 3) {
+            charset = StandardCharsets.UTF_8;
+        } else {
+            charset = StandardCharsets.ISO_8859_1;
+        }
+        int end = offset;
+        int limit = offset + length;
+        if (wide) {
+            while (end + 1 < limit && (b[end] != 0 || b[end + 1] != 0)) {
+                end += 2;
+            }
+        } else {
+            while (end < limit && b[end] != 0) {
+                end++;
+            }
+        }
+        return new String(b, offset, end - offset, charset);
+    }
+
+    // Drops the zero byte the writer inserted after every 0xff. Returns the new length.
+    private static int removeUnsynchronisation(byte[] b) {
+        int out = 0;
+        for (int i = 0; i < b.length; i++) {
+            b[out++] = b[i];
+            if ((b[i] & 0xff) == 0xff && i + 1 < b.length && b[i + 1] == 0) {
+                i++;
+            }
+        }
+        return out;
+    }
+
+    private void parseId3v1(long offset) throws IOException {
+        byte[] b = read(offset, 128);
+        if (b == null || !startsWith(b, 0, "TAG")) {
+            return;
+        }
+        setTitle(latin1Field(b, 3, 30));
+        setArtist(latin1Field(b, 33, 30));
+        setAlbum(latin1Field(b, 63, 30));
+    }
+
+    private static String latin1Field(byte[] b, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && b[end] != 0) {
+            end++;
+        }
+        return new String(b, offset, end - offset, StandardCharsets.ISO_8859_1).trim();
+    }
+
+    private void parseFlac(long pos) throws IOException {
+        while (true) {
+            byte[] h = read(pos, 4);
+            if (h == null) {
+                return;
+            }
+            boolean last = (h[0] & 0x80) != 0;
+            int type = h[0] & 0x7f;
+            int length = ((h[1] & 0xff) << 16) | ((h[2] & 0xff) << 8) | (h[3] & 0xff);
+            if (type == 4) {
+                byte[] block = read(pos + 4, Math.min(length, MAX_FIELD_BYTES));
+                if (block != null) {
+                    parseVorbisComments(block, 0, block.length);
+                }
+                return;
+            }
+            if (last) {
+                return;
+            }
+            pos += 4 + length;
+        }
+    }
+
+    // Collects the second packet of the first logical stream, which holds the comments.
+    private void parseOgg(long pos) throws IOException {
+        byte[] packet = new byte[4096];
+        int packetLength = 0;
+        int packetIndex = 0;
+        while (packetIndex < 2) {
+            byte[] h = read(pos, 27);
+            if (h == null || !startsWith(h, 0, "OggS")) {
+                return;
+            }
+            int segments = h[26] & 0xff;
+            byte[] lacing = read(pos + 27, segments);
+            if (lacing == null) {
+                return;
+            }
+            long data = pos + 27 + segments;
+            for (int i = 0; i < segments && packetIndex < 2; i++) {
+                int size = lacing[i] & 0xff;
+                if (packetIndex == 1 && size > 0) {
+                    if (packetLength + size > MAX_FIELD_BYTES) {
+                        packetIndex = 2; // parse what fits, e.g. before a huge cover image
+                        break;
+                    }
+                    if (packetLength + size > packet.length) {
+                        packet = Arrays.copyOf(packet,
+                                Math.min(packet.length * 2, MAX_FIELD_BYTES));
+                    }
+                    if (!read(data, packet, packetLength, size)) {
+                        return;
+                    }
+                    packetLength += size;
+                }
+                data += size;
+                if (size < 255) {
+                    packetIndex++;
+                }
+            }
+            pos = data;
+        }
+        if (startsWith(packet, 0, "\u0003vorbis")) {
+            parseVorbisComments(packet, 7, packetLength);
+        } else if (startsWith(packet, 0, "OpusTags")) {
+            parseVorbisComments(packet, 8, packetLength);
+        }
+    }
+
+    // Parses the comment block in b up to end, starting at pos.
+    private void parseVorbisComments(byte[] b, int pos, int end) {
+        if (pos + 4 > end) {
+            return;
+        }
+        pos += 4 + int32le(b, pos); // vendor string
+        if (pos + 4 > end || pos < 0) {
+            return;
+        }
+        long count = int32le(b, pos) & 0xffffffffL;
+        pos += 4;
+        for (long i = 0; i < count && pos + 4 <= end; i++) {
+            int length = int32le(b, pos);
+            pos += 4;
+            if (length < 0 || length > end - pos) {
+                return;
+            }
+            String comment = new String(b, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            int eq = comment.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String key = comment.substring(0, eq);
+            String value = comment.substring(eq + 1);
+            if (key.equalsIgnoreCase("TITLE")) {
+                setTitle(value);
+            } else if (key.equalsIgnoreCase("ARTIST")) {
+                setArtist(value);
+            } else if (key.equalsIgnoreCase("ALBUM")) {
+                setAlbum(value);
+            }
+        }
+    }
+
+    // Walks moov/udta/meta/ilst (or moov/meta/ilst), skipping everything else unread.
+    private void parseMp4Boxes(long pos, long end, int depth) throws IOException {
+        while ((end < 0 || pos + 8 <= end) && !mTags.isComplete()) {
+            byte[] h = read(pos, 8);
+            if (h == null) {
+                return;
+            }
+            long size = int32(h, 0) & 0xffffffffL;
+            String type = new String(h, 4, 4, StandardCharsets.ISO_8859_1);
+            int headerLength = 8;
+            if (size == 1) {
+                byte[] large = read(pos + 8, 8);
+                if (large == null) {
+                    return;
+                }
+                size = ((long) int32(large, 0) << 32) | (int32(large, 4) & 0xffffffffL);
+                headerLength = 16;
+            } else if (size == 0) {
+                if (end < 0) {
+                    return;
+                }
+                size = end - pos;
+            }
+            if (size < headerLength) {
+                return;
+            }
+            long body = pos + headerLength;
+            long boxEnd = pos + size;
+            if (depth < 4) {
+                if (type.equals("moov") || type.equals("udta")) {
+                    parseMp4Boxes(body, boxEnd, depth + 1);
+                } else if (type.equals("meta")) {
+                    parseMp4Boxes(body + 4, boxEnd, depth + 1); // full box
+                } else if (type.equals("ilst")) {
+                    parseIlst(body, boxEnd);
+                }
+            }
+            pos = boxEnd;
+        }
+    }
+
+    private void parseIlst(long pos, long end) throws IOException {
+        while (pos + 8 <= end && !mTags.isComplete()) {
+            byte[] h = read(pos, 8);
+            if (h == null) {
+                return;
+            }
+            long size = int32(h, 0) & 0xffffffffL;
+            if (size < 8) {
+                return;
+            }
+            // The keys we want are "\u00a9nam", "\u00a9ART" and "\u00a9alb".
+            String key = (h[4] & 0xff) == 0xa9
+                    ? new String(h, 5, 3, StandardCharsets.ISO_8859_1) : "";
+            if (key.equals("nam") || key.equals("ART") || key.equals("alb")) {
+                String value = readIlstData(pos + 8, pos + size);
+                if (value != null) {
+                    if (key.equals("nam")) {
+                        setTitle(value);
+                    } else if (key.equals("ART")) {
+                        setArtist(value);
+                    } else {
+                        setAlbum(value);
+                    }
+                }
+            }
+            pos += size;
+        }
+    }
+
+    // The value is in a "data" box: type indicator, locale, then UTF-8 text.
+    private String readIlstData(long pos, long end) throws IOException {
+        byte[] h = read(pos, 16);
+        if (h == null || !startsWith(h, 4, "data")) {
+            return null;
+        }
+        long size = Math.min(int32(h, 0) & 0xffffffffL, end - pos);
+        if (size <= 16) {
+            return null;
+        }
+        byte[] text = read(pos + 16, (int) Math.min(size - 16, MAX_FIELD_BYTES));
+        return text == null ? null : new String(text, StandardCharsets.UTF_8);
+    }
+
+    private void setTitle(String value) {
+        if (mTags.title == null && !value.isEmpty()) {
+            mTags.title = value;
+        }
+    }
+
+    private void setArtist(String value) {
+        if (mTags.artist == null && !value.isEmpty()) {
+            mTags.artist = value;
+        }
+    }
+
+    private void setAlbum(String value) {
+        if (mTags.album == null && !value.isEmpty()) {
+            mTags.album = value;
+        }
+    }
+
+    /**
+     * Reads exactly length bytes at position, or returns null if the source ends first
+     * or the read budget is used up.
+     */
+    private byte[] read(long position, int length) throws IOException {
+        if (!reserve(position, length)) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        return readFully(position, b, 0, length) ? b : null;
+    }
+
+    /** Like {@link #read(long, int)}, into b at offset. Returns false instead of null. */
+    private boolean read(long position, byte[] b, int offset, int length) throws IOException {
+        return reserve(position, length) && readFully(position, b, offset, length);
+    }
+
+    // Checks that length bytes at position are in the source and the budget, and takes
+    // them out of the budget.
+    private boolean reserve(long position, int length) {
+        if (position < 0 || length < 0 || (mLength >= 0 && position + length > mLength)
+                || mBytesRead + length > MAX_READ_BYTES) {
+            return false;
+        }
+        mBytesRead += length;
+        return true;
+    }
+
+    private boolean readFully(long position, byte[] b, int offset, int length)
+            throws IOException {
+        int done = 0;
+        while (done < length) {
+            int n = mSource.readAt(position + done, b, offset + done, length - done);
+            if (n <= 0) {
+                return false;
+            }
+            done += n;
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] b, int offset, String magic) {
+        if (b.length < offset + magic.length()) {
+            return false;
+        }
+        for (int i = 0; i < magic.length(); i++) {
+            if (b[offset + i] != (byte) magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int synchsafe(byte[] b, int offset) {
+        return ((b[offset] & 0x7f) << 21) | ((b[offset + 1] & 0x7f) << 14)
+                | ((b[offset + 2] & 0x7f) << 7) | (b[offset + 3] & 0x7f);
+    }
+
+    private static int int32(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+                | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    private static int int32le(byte[] b, int offset) {
+        return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8)
+                | ((b[offset + 2] & 0xff) << 16) | ((b[offset + 3] & 0xff) << 24);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.os.Bundle;
+
+/** Running count, last, mean and max of a series of millisecond samples. */
+final class TimingStats {
+    private int mCount;
+    private long mLast;
+    private long mTotal;
+    private long mMax;
+
+    void add(long value) {
+        mCount++;
+        mLast = value;
+        mTotal += value;
+        mMax = Math.max(mMax, value);
+    }
+
+    /** Puts the count, last, mean and max into b, under keys starting with prefix. */
+    void writeTo(Bundle b, String prefix) {
+        b.putInt(prefix + "_count", mCount);
+        b.putLong(prefix + "_last", mLast);
+        b.putLong(prefix + "_mean", mCount == 0 ? 0 : mTotal / mCount);
+        b.putLong(prefix + "_max", mMax);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Type-to-filter for {@link MusicPicker}: finds the rows whose title or artist has a word
+ * starting with each word typed, the same matching as {@link SearchIndex}. The words are
+ * kept in a prefix trie laid out in flat arrays, with the rows under each node stored
+ * contiguously, so the rows matching a prefix are one range of one array.
+ *
+ * Each filter keeps its results, and typing more narrows the last results instead of
+ * starting over: only the word that changed is looked up, and only the rows that still
+ * matched are checked against it. Deleting characters goes back to results kept from
+ * before they were typed.
+ *
+ * Not thread safe.
+ */
+final class TrackFilter {
+    // Filters kept for going back when characters are deleted.
+    private static final int MAX_STEPS = 32;
+
+    private static final int[] NO_ROWS = new int[0];
+
+    /** One filter's words, the trie node each ended at, and the rows it matched. */
+    private static final class Step {
+        final List<String> words;
+        final int[] nodes;
+        final int[] rows;
+
+        Step(List<String> words, int[] nodes, int[] rows) {
+            this.words = words;
+            this.nodes = nodes;
+            this.rows = rows;
+        }
+    }
+
+    private final PagedTrackList.Page mRows;
+
+    // Trie nodes, the root being node 0. Children are a list through mNextSibling.
+    private int[] mFirstChild = new int[256];
+    private int[] mNextSibling = new int[256];
+    private char[] mLabels = new char[256];
+    private int mNodeCount;
+    // The rows of every word starting with a node's prefix are
+    // mPostings[mStart[node]] to mPostings[mEnd[node] - 1], in no particular order.
+    private int[] mStart;
+    private int[] mEnd;
+    private int[] mPostings;
+
+    // A row is marked when mMarks[row] == mMark, so marks never need clearing.
+    private final int[] mMarks;
+    private int mMark;
+
+    private final List<Step> mSteps = new ArrayList<Step>();
+
+    /** Indexes the titles and artists of rows, which are all the tracks in list order. */
+    TrackFilter(PagedTrackList.Page rows) {
+        mRows = rows;
+        mMarks = new int[rows.size()];
+        mFirstChild[0] = -1;
+        mNextSibling[0] = -1;
+        mNodeCount = 1;
+
+        // Rows of each node's word, as linked lists until the trie is complete.
+        int[] head = new int[mFirstChild.length];
+        Arrays.fill(head, -1);
+        int[] postingRows = new int[rows.size() * 4 + 16];
+        int[] postingNext = new int[postingRows.length];
+        int postingCount = 0;
+        for (int row = 0; row < rows.size(); row++) {
+            for (int field = 0; field < 2; field++) {
+                String text = field == 0 ? rows.titles[row] : rows.artists[row];
+                for (String word : SearchIndex.split(text)) {
+                    int node = insert(word);
+                    if (head.length < mNodeCount) {
+                        int oldLength = head.length;
+                        head = Arrays.copyOf(head, mFirstChild.length);
+                        Arrays.fill(head, oldLength, head.length, -1);
+                    }
+                    // A row's words are all added in one go, so a repeat is the head.
+                    if (head[node] >= 0 && postingRows[head[node]] == row) {
+                        continue;
+                    }
+                    if (postingCount == postingRows.length) {
+                        postingRows = Arrays.copyOf(postingRows, postingCount * 2);
+                        postingNext = Arrays.copyOf(postingNext, postingCount * 2);
+                    }
+                    postingRows[postingCount] = row;
+                    postingNext[postingCount] = head[node];
+                    head[node] = postingCount++;
+                }
+            }
+        }
+
+        // Lay the postings out in depth first order, so each subtree's are contiguous.
+        // The stack holds nodes to visit, and ~node to note where a subtree ends.
+        mStart = new int[mNodeCount];
+        mEnd = new int[mNodeCount];
+        mPostings = new int[postingCount];
+        int[] stack = new int[mNodeCount * 2];
+        int sp = 0;
+        int pos = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (node < 0) {
+                mEnd[~node] = pos;
+                continue;
+            }
+            mStart[node] = pos;
+            for (int p = head[node]; p >= 0; p = postingNext[p]) {
+                mPostings[pos++] = postingRows[p];
+            }
+            stack[sp++] = ~node;
+            for (int child = mFirstChild[node]; child >= 0; child = mNextSibling[child]) {
+                stack[sp++] = child;
+            }
+        }
+    }
+
+    /** The tracks filtered, in list order; the rows returned by filter index these. */
+    PagedTrackList.Page getRows() {
+        return mRows;
+    }
+
+    /**
+     * Returns the rows matching query, in list order, or null if query has no words and
+     * so every row matches. The returned array must not be modified.
+     */
+    int[] filter(String query) {
+        List<String> words = SearchIndex.split(query);
+        if (words.isEmpty()) {
+            mSteps.clear();
+            return null;
+        }
+        // Go back to the last filter that this one narrows, if any.
+        while (!mSteps.isEmpty() && !narrows(words, mSteps.get(mSteps.size() - 1).words)) {
+            mSteps.remove(mSteps.size() - 1);
+        }
+        Step base = mSteps.isEmpty() ? null : mSteps.get(mSteps.size() - 1);
+        if (base != null && base.words.equals(words)) {
+            return base.rows;
+        }
+
+        int[] rows = null;
+        int[] nodes = new int[words.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            String word = words.get(i);
+            if (base == null || i >= base.words.size()) {
+                nodes[i] = find(0, word, 0);
+            } else if (word.equals(base.words.get(i))) {
+                // base.rows already match it.
+                nodes[i] = base.nodes[i];
+                continue;
+            } else {
+                // Carry on down the trie from where the shorter word ended.
+                nodes[i] = find(base.nodes[i], word, base.words.get(i).length());
+            }
+            rows = matching(rows != null ? rows : base != null ? base.rows : null, nodes[i]);
+        }
+
+        if (mSteps.size() == MAX_STEPS) {
+            mSteps.remove(0);
+        }
+        mSteps.add(new Step(words, nodes, rows));
+        return rows;
+    }
+
+    // True if every row matching words also matches previous.
+    private static boolean narrows(List<String> words, List<String> previous) {
+        if (words.size() < previous.size()) {
+            return false;
+        }
+        for (int i = 0; i < previous.size(); i++) {
+            if (!words.get(i).startsWith(previous.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the rows of candidates, or of all rows if null, that have a word under node.
+    private int[] matching(int[] candidates, int node) {
+        if (node < 0) {
+            return NO_ROWS;
+        }
+        if (++mMark == Integer.MAX_VALUE) {
+            Arrays.fill(mMarks, 0);
+            mMark = 1;
+        }
+        for (int p = mStart[node]; p < mEnd[node]; p++) {
+            mMarks[mPostings[p]] = mMark;
+        }
+        int count = 0;
+        int[] rows;
+        if (candidates == null) {
+            rows = new int[mEnd[node] - mStart[node]];
+            for (int row = 0; row < mMarks.length && count < rows.length; row++) {
+                if (mMarks[row] == mMark) {
+                    rows[count++] = row;
+                }
+            }
+        } else {
+            rows = new int[candidates.length];
+            for (int row : candidates) {
+                if (mMarks[row] == mMark) {
+                    rows[count++] = row;
+                }
+            }
+        }
+        return count == rows.length ? rows : Arrays.copyOf(rows, count);
+    }
+
+    // Returns the node for word, starting at node, which is for its first offset chars, or
+    // -1 if no indexed word starts with it.
+    private int find(int node, String word, int offset) {
+        for (int i = offset; i < word.length() && node >= 0; i++) {
+            node = child(node, word.charAt(i));
+        }
+        return node;
+    }
+
+    private int child(int node, char c) {
+        for (int child = mFirstChild[node]; child >= 0; child = mNextSibling[child]) {
+            if (mLabels[child] == c) {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    private int insert(String word) {
+        int node = 0;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            int child = child(node, c);
+            if (child < 0) {
+                if (mNodeCount == mFirstChild.length) {
+                    mFirstChild = Arrays.copyOf(mFirstChild, mNodeCount * 2);
+                    mNextSibling = Arrays.copyOf(mNextSibling, mNodeCount * 2);
+                    mLabels = Arrays.copyOf(mLabels, mNodeCount * 2);
+                }
+                child = mNodeCount++;
+                mFirstChild[child] = -1;
+                mNextSibling[child] = mFirstChild[node];
+                mLabels[child] = c;
+                mFirstChild[node] = child;
+            }
+            node = child;
+        }
+        return node;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Computes a waveform overview of a local audio file: the peak level of each of
+ * {@link #PEAK_COUNT} equal slices of the track, as unsigned bytes. Rather than decoding
+ * the whole track, it seeks to each slice and decodes only the first buffer there, so a
+ * long file costs about as much as a short one. Peaks are delivered as they are found,
+ * so the overview fills in progressively.
+ *
+ * Finished overviews are cached on disk by URI, file size and modification time, so
+ * opening the same file again costs one small read. The work runs on a background
+ * priority thread and never holds up playback.
+ */
+class WaveformLoader {
+    private static final String TAG = "WaveformLoader";
+
+    static final int PEAK_COUNT = 200;
+
+    // How many peaks are found between updates to the listener.
+    private static final int PUBLISH_INTERVAL = 20;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    // Give up on a slice after this many tries at getting decoded output.
+    private static final int MAX_TRIES = 50;
+    private static final int MAX_CACHED = 500;
+
+    interface Listener {
+        /**
+         * Called on the main thread with the peaks found so far; peaks that aren't known
+         * yet are 0. done is true for the last call.
+         */
+        void onPeaksLoaded(byte[] peaks, boolean done);
+    }
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mCancelled;
+
+    WaveformLoader(Context context, Uri uri, Listener listener) {
+        mContext = context.getApplicationContext();
+        mUri = uri;
+        mListener = listener;
+    }
+
+    void start() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                load();
+            }
+        }, TAG).start();
+    }
+
+    /** Stops loading; the listener isn't called again. */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    private void load() {
+        File cacheFile = getCacheFile();
+        if (cacheFile != null && cacheFile.length() == PEAK_COUNT) {
+            byte[] peaks = readCacheFile(cacheFile);
+            if (peaks != null) {
+                publish(peaks, true);
+                return;
+            }
+        }
+        byte[] peaks = decodePeaks();
+        if (peaks != null && !mCancelled) {
+            if (cacheFile != null) {
+                writeCacheFile(cacheFile, peaks);
+            }
+            publish(peaks, true);
+        }
+    }
+
+    private void publish(final byte[] peaks, final boolean done) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    mListener.onPeaksLoaded(peaks, done);
+                }
+            }
+        });
+    }
+
+    private byte[] decodePeaks() {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(mContext, mUri, null);
+            int track = -1;
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    track = i;
+                    break;
+                }
+            }
+            if (track < 0 || !format.containsKey(MediaFormat.KEY_DURATION)) {
+                return null;
+            }
+            long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+            extractor.selectTrack(track);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            byte[] peaks = new byte[PEAK_COUNT];
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (int i = 0; i < PEAK_COUNT && !mCancelled; i++) {
+                long timeUs = durationUs * i / PEAK_COUNT;
+                extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                codec.flush();
+                peaks[i] = (byte) decodeSlicePeak(extractor, codec, info);
+                if ((i + 1) % PUBLISH_INTERVAL == 0 && i + 1 < PEAK_COUNT) {
+                    publish(peaks.clone(), false);
+                }
+            }
+            return mCancelled ? null : peaks;
+        } catch (IOException | RuntimeException e) {
+            // e.g. a format the platform can seek in but not decode
+            Log.w(TAG, "Couldn't compute waveform of " + mUri, e);
+            return null;
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    // Feeds samples from the extractor's position until a buffer of 16 bit PCM comes out,
+    // and returns its peak scaled to 0..255.
+    private static int decodeSlicePeak(MediaExtractor extractor, MediaCodec codec,
+            MediaCodec.BufferInfo info) {
+        boolean inputDone = false;
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            if (!inputDone) {
+                int in = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                if (in >= 0) {
+                    int size = extractor.readSampleData(codec.getInputBuffer(in), 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(
+                                in, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(in, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+            int out = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+            if (out < 0) {
+                continue;
+            }
+            int peak = 0;
+            if (info.size > 0) {
+                ByteBuffer pcm = codec.getOutputBuffer(out);
+                pcm.position(info.offset);
+                pcm.limit(info.offset + info.size);
+                pcm.order(ByteOrder.nativeOrder());
+                while (pcm.remaining() >= 2) {
+                    peak = Math.max(peak, Math.abs((int) pcm.getShort()));
+                }
+            }
+            codec.releaseOutputBuffer(out, false);
+            if (info.size > 0 || (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return Math.min(255, peak >> 7);
+            }
+        }
+        return 0;
+    }
+
+    // The cache key holds the file's size and modification time, so an edited file
+    // doesn't get a stale overview.
+    private File getCacheFile() {
+        long size = -1;
+        long modified = 0;
+        String scheme = mUri.getScheme();
+        if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+            File f = new File(mUri.getPath());
+            size = f.length();
+            modified = f.lastModified();
+        } else if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            try {
+                ParcelFileDescriptor pfd =
+                        mContext.getContentResolver().openFileDescriptor(mUri, "r");
+                if (pfd != null) {
+                    size = pfd.getStatSize();
+                    pfd.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+            modified = queryDateModified();
+        }
+        if (size <= 0) {
+            return null;
+        }
+        File dir = new File(mContext.getCacheDir(), "waveforms");
+        dir.mkdirs();
+        String key = mUri + "|" + size + "|" + modified + "|" + PEAK_COUNT;
+        return new File(dir, HttpCacheDataSource.hashKey(key));
+    }
+
+    private long queryDateModified() {
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(mUri,
+                    new String[] {MediaStore.MediaColumns.DATE_MODIFIED}, null, null, null);
+            return c != null && c.moveToFirst() ? c.getLong(0) : 0;
+        } catch (RuntimeException e) {
+            // Not every provider has the column.
+            return 0;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private static byte[] readCacheFile(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] peaks = new byte[PEAK_COUNT];
+            int done = 0;
+            int n;
+            while (done < PEAK_COUNT && (n = in.read(peaks, done, PEAK_COUNT - done)) > 0) {
+                done += n;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return done == PEAK_COUNT ? peaks : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeCacheFile(File file, byte[] peaks) {
+        trimCache(file.getParentFile());
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(peaks);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't cache waveform", e);
+            file.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    // Drops the least recently used overviews, to make room for one more.
+    private static void trimCache(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null || files.length < MAX_CACHED) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i <= files.length - MAX_CACHED; i++) {
+            files[i].delete();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.widget.SeekBar;
+
+/**
+ * SeekBar that draws a waveform overview of the track, as computed by
+ * {@link WaveformLoader}, in place of its progress bar. Until peaks are set it is a
+ * plain SeekBar.
+ */
+public class WaveformSeekBar extends SeekBar {
+    private static final int PLAYED_COLOR = 0xffffffff;
+    private static final int UNPLAYED_COLOR = 0xff808080;
+
+    private final Paint mPlayedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mUnplayedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private byte[] mPeaks;
+
+    public WaveformSeekBar(Context context) {
+        this(context, null);
+    }
+
+    public WaveformSeekBar(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mPlayedPaint.setColor(PLAYED_COLOR);
+        mUnplayedPaint.setColor(UNPLAYED_COLOR);
+    }
+
+    /** Sets the peak levels to draw, as unsigned bytes, or null to draw a plain bar. */
+    void setPeaks(byte[] peaks) {
+        mPeaks = peaks;
+        invalidate();
+    }
+
+    @Override
+    protected synchronized void onDraw(Canvas canvas) {
+        if (mPeaks == null || mPeaks.length == 0) {
+            super.onDraw(canvas);
+            return;
+        }
+        int left = getPaddingLeft();
+        int width = getWidth() - left - getPaddingRight();
+        int top = getPaddingTop();
+        int height = getHeight() - top - getPaddingBottom();
+        float middle = top + height / 2f;
+        float step = width / (float) mPeaks.length;
+        float stroke = Math.max(1f, step * 0.6f);
+        mPlayedPaint.setStrokeWidth(stroke);
+        mUnplayedPaint.setStrokeWidth(stroke);
+        int max = getMax();
+        float played = left + (max > 0 ? width * (float) getProgress() / max : 0);
+        for (int i = 0; i < mPeaks.length; i++) {
+            float x = left + step * (i + 0.5f);
+            // At least a dot, so silence still shows where the track is.
+            float half = Math.max(stroke / 2, height / 2f * (mPeaks[i] & 0xff) / 255);
+            canvas.drawLine(x, middle - half, x, middle + half,
+                    x <= played ? mPlayedPaint : mUnplayedPaint);
+        }
+        // Draw the thumb the way AbsSeekBar does, without its progress bar.
+        Drawable thumb = getThumb();
+        if (thumb != null) {
+            canvas.save();
+            canvas.translate(left - getThumbOffset(), top);
+            thumb.draw(canvas);
+            canvas.restore();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks {@link LongSet} against a {@link LinkedHashSet}, which also keeps values in the
+ * order they were added, through growth, removals and the save and restore MusicPicker
+ * does with the selection.
+ */
+@RunWith(JUnit4.class)
+public class LongSetTest {
+    private static long[] toArray(Set<Long> set) {
+        long[] values = new long[set.size()];
+        int i = 0;
+        for (long value : set) {
+            values[i++] = value;
+        }
+        return values;
+    }
+
+    private static void assertMatches(Set<Long> expected, LongSet set) {
+        assertEquals(expected.size(), set.size());
+        long[] values = toArray(expected);
+        assertArrayEquals(values, set.toArray());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], set.get(i));
+            assertTrue(set.contains(values[i]));
+        }
+    }
+
+    @Test
+    public void addRemoveContains() {
+        LongSet set = new LongSet();
+        assertFalse(set.contains(7));
+        assertTrue(set.add(7));
+        assertFalse(set.add(7));
+        assertTrue(set.add(0));
+        assertTrue(set.add(-7));
+        assertTrue(set.contains(7));
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(-7));
+        assertFalse(set.contains(8));
+        assertEquals(3, set.size());
+
+        assertTrue(set.remove(7));
+        assertFalse(set.remove(7));
+        assertFalse(set.contains(7));
+        assertTrue(set.contains(0));
+        assertArrayEquals(new long[] {0, -7}, set.toArray());
+
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertArrayEquals(new long[] {0}, set.toArray());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        // Past 16 values both the array and the 32 slot table grow. Ids are mostly
+        // sequential, with a few far apart.
+        LongSet set = new LongSet();
+        Set<Long> expected = new LinkedHashSet<Long>();
+        for (long id = 1; id <= 1000; id++) {
+            set.add(id);
+            expected.add(id);
+            if (id % 100 == 0) {
+                set.add(id << 40);
+                expected.add(id << 40);
+            }
+            assertMatches(expected, set);
+        }
+        assertFalse(set.contains(0));
+        assertFalse(set.contains(1001));
+        assertFalse(set.contains(1L << 40));
+    }
+
+    @Test
+    public void removedValueIsAddedAgainAtTheEnd() {
+        LongSet set = new LongSet();
+        for (long id = 1; id <= 40; id++) {
+            set.add(id);
+        }
+        assertTrue(set.remove(3));
+        assertFalse(set.contains(3));
+        assertTrue(set.add(3));
+        assertTrue(set.contains(3));
+        assertEquals(40, set.size());
+        assertEquals(4, set.get(2));
+        assertEquals(3, set.get(39));
+    }
+
+    @Test
+    public void orderIsKeptAcrossRemoves() {
+        // Few enough distinct values that adds and removes keep hitting the same ones, and
+        // so the same probe sequences.
+        Random random = new Random(42);
+        LongSet set = new LongSet();
+        Set<Long> expected = new LinkedHashSet<Long>();
+        for (int i = 0; i < 20000; i++) {
+            long value = random.nextInt(64) * 31L;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(value), set.remove(value));
+            } else {
+                assertEquals(expected.add(value), set.add(value));
+            }
+            assertMatches(expected, set);
+        }
+    }
+
+    @Test
+    public void savedValuesRestoreTheSameSet() {
+        // As MusicPicker.onSaveInstanceState and onCreate do with the selection.
+        LongSet set = new LongSet();
+        for (long id = 100; id > 0; id -= 3) {
+            set.add(id);
+        }
+        set.remove(52);
+        set.remove(100);
+        long[] saved = set.toArray();
+
+        LongSet restored = new LongSet();
+        restored.addAll(saved);
+        assertArrayEquals(saved, restored.toArray());
+        for (long id = 0; id <= 100; id++) {
+            assertEquals(set.contains(id), restored.contains(id));
+        }
+        // The saved array is a copy, not the set's own.
+        saved[0] = -1;
+        assertEquals(97, set.get(0));
+        assertEquals(97, restored.get(0));
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Restores {@link QueueJournal} files after tearing, corrupting and mixing them up, and
+ * checks that replay keeps exactly the records before the damage.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class QueueJournalTest {
+    private File mDir;
+    private File mRestoreDir;
+    // The queue as written by writeHistory() after each journal record, the first entry
+    // being the snapshot alone.
+    private final List<String> mHistory = new ArrayList<String>();
+    private byte[] mSnapshot;
+    private byte[] mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("queue", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mRestoreDir = new File(mDir, "restore");
+        writeHistory();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+
+    @Test
+    public void restoresEveryRecord() throws Exception {
+        assertEquals(last(), restore(mSnapshot, mJournal));
+        // The restore compacted everything into a new snapshot, which restores the same.
+        byte[] snapshot = read(mRestoreDir, "queue.snapshot");
+        byte[] journal = read(mRestoreDir, "queue.journal");
+        assertEquals(1, recordEnds(journal).length);
+        assertEquals(last(), restore(snapshot, journal));
+    }
+
+    @Test
+    public void missingJournalRestoresSnapshot() throws Exception {
+        assertEquals(mHistory.get(0), restore(mSnapshot, null));
+    }
+
+    @Test
+    public void tornTailKeepsEarlierRecords() throws Exception {
+        int[] ends = recordEnds(mJournal);
+        for (int length = 0; length < mJournal.length; length++) {
+            int complete = 0;
+            while (complete + 1 < ends.length && ends[complete + 1] <= length) {
+                complete++;
+            }
+            assertEquals("journal cut at " + length, mHistory.get(complete),
+                    restore(mSnapshot, Arrays.copyOf(mJournal, length)));
+        }
+    }
+
+    @Test
+    public void crcMismatchEndsReplay() throws Exception {
+        int[] ends = recordEnds(mJournal);
+        for (int offset = 0; offset < mJournal.length; offset++) {
+            int record = 0;
+            while (record + 1 < ends.length && ends[record + 1] <= offset) {
+                record++;
+            }
+            byte[] journal = mJournal.clone();
+            journal[offset] ^= 0x55;
+            assertEquals("journal byte " + offset, mHistory.get(record),
+                    restore(mSnapshot, journal));
+        }
+    }
+
+    @Test
+    public void damagedSnapshotDiscardsEverything() throws Exception {
+        for (int offset = 0; offset < mSnapshot.length; offset++) {
+            byte[] snapshot = mSnapshot.clone();
+            snapshot[offset] ^= 0x55;
+            assertNull("snapshot byte " + offset, restore(snapshot, mJournal));
+        }
+        for (int length = 0; length < mSnapshot.length; length++) {
+            assertNull("snapshot cut at " + length,
+                    restore(Arrays.copyOf(mSnapshot, length), mJournal));
+        }
+    }
+
+    @Test
+    public void staleGenerationIsNotReplayed() throws Exception {
+        // Restoring writes a newer snapshot that already includes every record. A crash
+        // before the journal was reset would leave the old journal behind it.
+        restore(mSnapshot, mJournal);
+        byte[] newerSnapshot = read(mRestoreDir, "queue.snapshot");
+        byte[] newerJournal = read(mRestoreDir, "queue.journal");
+        assertEquals(last(), restore(newerSnapshot, mJournal));
+        // Nor is a newer journal applied to an older snapshot.
+        assertEquals(mHistory.get(0), restore(mSnapshot, newerJournal));
+    }
+
+    @Test
+    public void journalIsCompactedPastLimit() throws Exception {
+        delete(mRestoreDir);
+        PlayQueue queue = new PlayQueue();
+        QueueJournal journal = new QueueJournal(mRestoreDir, queue);
+        queue.setList(new long[] { 1, 2, 3 }, 0);
+        journal.saveAll();
+        for (int i = 0; i < 10000; i++) {
+            queue.setPosition(i % 3);
+            journal.savePosition(i);
+        }
+        journal.close();
+        assertTrue(journal.awaitClosed(10000));
+        assertTrue(new File(mRestoreDir, "queue.journal").length() <= 16 * 1024);
+        assertEquals(describe(queue, 9999, false),
+                restore(read(mRestoreDir, "queue.snapshot"), read(mRestoreDir, "queue.journal")));
+    }
+
+    @Test
+    public void fuzzedFilesNeverThrow() throws Exception {
+        Random random = new Random(4);
+        for (int i = 0; i < 300; i++) {
+            byte[] snapshot = random.nextInt(4) == 0 ? mutate(mSnapshot, random) : mSnapshot;
+            byte[] journal = mutate(mJournal, random);
+            PlayQueue queue = new PlayQueue();
+            QueueJournal.State state = restoreInto(queue, snapshot, journal);
+            if (state == null) {
+                assertEquals(0, queue.size());
+                continue;
+            }
+            // Whatever survived must be a usable queue.
+            int size = queue.size();
+            assertTrue(size == 0 ? queue.getPosition() == -1
+                    : queue.getPosition() >= 0 && queue.getPosition() < size);
+            for (int position = 0; position < size; position++) {
+                queue.getIdAt(position);
+            }
+            assertTrue(state.seekPosition >= 0);
+        }
+    }
+
+    /** Makes a queue, journals a change of each kind and keeps the files written. */
+    private void writeHistory() throws Exception {
+        PlayQueue queue = new PlayQueue();
+        QueueJournal journal = new QueueJournal(mDir, queue);
+        long seek = 0;
+        boolean party = false;
+
+        queue.setList(new long[] { 10, 20, 30, 40 }, 1);
+        journal.saveAll();
+        mHistory.add(describe(queue, seek, party));
+
+        queue.setRepeatMode(PlayQueue.REPEAT_ALL);
+        journal.saveRepeatMode();
+        mHistory.add(describe(queue, seek, party));
+
+        queue.setPosition(2);
+        seek = 1234;
+        journal.savePosition(seek);
+        mHistory.add(describe(queue, seek, party));
+
+        party = true;
+        journal.savePartyShuffle(party);
+        mHistory.add(describe(queue, seek, party));
+
+        long[] ids = { 50, 7, 1L << 40 };
+        queue.append(ids, ids.length);
+        journal.saveAppend(ids, ids.length);
+        mHistory.add(describe(queue, seek, party));
+
+        queue.removeFirst(2);
+        journal.saveRemoveFirst(2);
+        mHistory.add(describe(queue, seek, party));
+
+        queue.setPosition(3);
+        seek = 99;
+        journal.savePosition(seek);
+        mHistory.add(describe(queue, seek, party));
+
+        journal.close();
+        assertTrue(journal.awaitClosed(10000));
+        mSnapshot = read("queue.snapshot");
+        mJournal = read("queue.journal");
+        assertEquals(mHistory.size(), recordEnds(mJournal).length);
+    }
+
+    private String last() {
+        return mHistory.get(mHistory.size() - 1);
+    }
+
+    /** Restores from the given files, returning the queue described, or null. */
+    private String restore(byte[] snapshot, byte[] journal) throws Exception {
+        PlayQueue queue = new PlayQueue();
+        QueueJournal.State state = restoreInto(queue, snapshot, journal);
+        return state == null ? null : describe(queue, state.seekPosition, state.partyShuffle);
+    }
+
+    private QueueJournal.State restoreInto(PlayQueue queue, byte[] snapshot, byte[] journal)
+            throws Exception {
+        delete(mRestoreDir);
+        mRestoreDir.mkdirs();
+        write(new File(mRestoreDir, "queue.snapshot"), snapshot);
+        write(new File(mRestoreDir, "queue.journal"), journal);
+        QueueJournal queueJournal = new QueueJournal(mRestoreDir, queue);
+        QueueJournal.State state = queueJournal.restore();
+        queueJournal.close();
+        assertTrue(queueJournal.awaitClosed(10000));
+        return state;
+    }
+
+    private static String describe(PlayQueue queue, long seek, boolean party) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < queue.size(); i++) {
+            sb.append(i == 0 ? "" : ",").append(queue.getIdAt(i));
+        }
+        return sb.append("] position=").append(queue.getPosition())
+                .append(" repeat=").append(queue.getRepeatMode())
+                .append(" shuffled=").append(queue.isShuffled())
+                .append(" seek=").append(seek)
+                .append(" party=").append(party)
+                .toString();
+    }
+
+    /**
+     * Returns where the journal header and each record after it end, parsing the format
+     * independently of QueueJournal.
+     */
+    private static int[] recordEnds(byte[] journal) {
+        List<Integer> ends = new ArrayList<Integer>();
+        int[] pos = { 4 };
+        readVarLong(journal, pos);
+        ends.add(pos[0]);
+        while (pos[0] < journal.length) {
+            int length = (int) readVarLong(journal, pos);
+            pos[0] += length + 4;
+            ends.add(pos[0]);
+        }
+        int[] result = new int[ends.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ends.get(i);
+        }
+        return result;
+    }
+
+    private static long readVarLong(byte[] data, int[] pos) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = data[pos[0]++];
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+    }
+
+    /** Flips, overwrites, cuts or extends data at random. */
+    private static byte[] mutate(byte[] data, Random random) {
+        byte[] result = data.clone();
+        switch (random.nextInt(4)) {
+            case 0:
+                for (int n = 1 + random.nextInt(4); n > 0; n--) {
+                    result[random.nextInt(result.length)] ^= 1 << random.nextInt(8);
+                }
+                return result;
+            case 1:
+                result[random.nextInt(result.length)] = (byte) random.nextInt(256);
+                return result;
+            case 2:
+                return Arrays.copyOf(result, random.nextInt(result.length));
+            default:
+                byte[] garbage = new byte[random.nextInt(64)];
+                random.nextBytes(garbage);
+                result = Arrays.copyOf(result, result.length + garbage.length);
+                System.arraycopy(garbage, 0, result, data.length, garbage.length);
+                return result;
+        }
+    }
+
+    private byte[] read(String name) throws IOException {
+        return read(mDir, name);
+    }
+
+    private static byte[] read(File dir, String name) throws IOException {
+        return Files.readAllBytes(new File(dir, name).toPath());
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        if (data != null) {
+            Files.write(file.toPath(), data);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
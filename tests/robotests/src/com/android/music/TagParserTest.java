@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Runs {@link TagParser} over a corpus of small files built byte by byte, one for each
+ * tag format and the odd corners of each, and checks how much of each file it reads.
+ */
+@RunWith(JUnit4.class)
+public class TagParserTest {
+    private static final byte[] NO_BYTES = new byte[0];
+    // Stands in for the audio between the tags.
+    private static final byte[] AUDIO = new byte[3000];
+
+    @Test
+    public void id3v23Utf16() throws Exception {
+        byte[] file = join(id3v2(3, 0,
+                frame(3, "TIT2", 0, text(1, "T\u00edtulo \u266b")),
+                frame(3, "TPE1", 0, text(0, "Artist\0ignored")),
+                frame(3, "TALB", 0, text(2, "\u30a2\u30eb\u30d0\u30e0"))), AUDIO);
+        assertTags("T\u00edtulo \u266b", "Artist", "\u30a2\u30eb\u30d0\u30e0", file);
+    }
+
+    @Test
+    public void id3v23BigEndianBom() throws Exception {
+        byte[] value = new Bytes().u8(1, 0xfe, 0xff)
+                .text("Big", Charset.forName("UTF-16BE")).u8(0, 0).toByteArray();
+        byte[] file = join(id3v2(3, 0, frame(3, "TIT2", 0, value)), AUDIO);
+        assertTags("Big", null, null, file);
+    }
+
+    @Test
+    public void id3v24Utf8SynchsafeSizes() throws Exception {
+        char[] longTitle = new char[300];
+        Arrays.fill(longTitle, 'x');
+        byte[] file = join(id3v2(4, 0,
+                frame(4, "TXXX", 0, text(3, "skipped")),
+                frame(4, "TIT2", 0, text(3, new String(longTitle))),
+                // Data length indicator in front of the text.
+                frame(4, "TPE1", 0x0001, join(new Bytes().be32(7).toByteArray(),
+                        text(3, "K\u00fcnstler"))),
+                frame(4, "TALB", 0, text(3, "Album"))), AUDIO);
+        assertTags(new String(longTitle), "K\u00fcnstler", "Album", file);
+    }
+
+    @Test
+    public void id3v24SkipsCompressedFrames() throws Exception {
+        byte[] file = join(id3v2(4, 0,
+                frame(4, "TIT2", 0x0008, text(3, "compressed")),
+                frame(4, "TIT2", 0, text(3, "Plain"))), AUDIO);
+        assertTags("Plain", null, null, file);
+    }
+
+    @Test
+    public void id3v22() throws Exception {
+        byte[] file = join(id3v2(2, 0,
+                frame(2, "TT2", 0, text(0, "Old")),
+                frame(2, "TP1", 0, text(0, "Timer")),
+                frame(2, "TAL", 0, text(0, "Tag"))), AUDIO);
+        assertTags("Old", "Timer", "Tag", file);
+    }
+
+    @Test
+    public void id3v23Unsynchronised() throws Exception {
+        // "\u00ff" is 0xff in Latin-1, which the writer follows with a zero byte.
+        byte[] value = new Bytes().u8(0).ascii("Caf").u8(0xff, 0).ascii("!").toByteArray();
+        byte[] file = join(id3v2(3, 0x80, frame(3, "TIT2", 0, value)), AUDIO);
+        assertTags("Caf\u00ff!", null, null, file);
+    }
+
+    @Test
+    public void id3v2Padding() throws Exception {
+        byte[] file = join(id3v2(3, 0, frame(3, "TIT2", 0, text(0, "Padded")),
+                new byte[500]), AUDIO);
+        assertTags("Padded", null, null, file);
+    }
+
+    @Test
+    public void id3v1() throws Exception {
+        assertTags("One", "Two", "Three", join(AUDIO, id3v1("One", "Two", "Three")));
+    }
+
+    @Test
+    public void id3v1FillsInForId3v2() throws Exception {
+        byte[] file = join(id3v2(3, 0, frame(3, "TPE1", 0, text(0, "From v2"))), AUDIO,
+                id3v1("From v1", "Not used", "Album v1"));
+        assertTags("From v1", "From v2", "Album v1", file);
+    }
+
+    @Test
+    public void flac() throws Exception {
+        byte[] file = join(flac(vorbisComments("title=Flac", "ARTIST=Lossless",
+                "Album=Free", "TITLE=second")), AUDIO);
+        assertTags("Flac", "Lossless", "Free", file);
+    }
+
+    @Test
+    public void flacBehindId3v2() throws Exception {
+        byte[] file = join(id3v2(3, 0, frame(3, "TIT2", 0, text(0, "From ID3"))),
+                flac(vorbisComments("TITLE=From FLAC", "ARTIST=From FLAC")), AUDIO);
+        assertTags("From ID3", "From FLAC", null, file);
+    }
+
+    @Test
+    public void oggVorbisAcrossPages() throws Exception {
+        String[] comments = new String[40];
+        for (int i = 0; i < comments.length; i++) {
+            comments[i] = "COMMENT=" + i + " padding the packet out over several pages";
+        }
+        comments[20] = "TITLE=Vorbis";
+        comments[30] = "ALBUM=Pages";
+        byte[] file = ogg(3, vorbisIdentification(),
+                join(ascii("\u0003vorbis"), vorbisComments(comments), new byte[] { 1 }),
+                AUDIO);
+        assertTags("Vorbis", null, "Pages", file);
+    }
+
+    @Test
+    public void oggCoverArtBeyondFieldLimit() throws Exception {
+        char[] picture = new char[200 * 1024];
+        Arrays.fill(picture, 'A');
+        byte[] file = ogg(255, vorbisIdentification(),
+                join(ascii("\u0003vorbis"), vorbisComments("TITLE=Covered", "ARTIST=Big",
+                        "ALBUM=Art", "METADATA_BLOCK_PICTURE=" + new String(picture))),
+                AUDIO);
+        assertTags("Covered", "Big", "Art", file);
+    }
+
+    @Test
+    public void opus() throws Exception {
+        byte[] file = ogg(255, join(ascii("OpusHead"), new byte[11]),
+                join(ascii("OpusTags"), vorbisComments("ARTIST=Opus")), AUDIO);
+        assertTags(null, "Opus", null, file);
+    }
+
+    @Test
+    public void mp4UdtaMeta() throws Exception {
+        byte[] file = join(ftyp(), box("moov", box("mvhd", new byte[100]),
+                box("udta", box("meta", new byte[4], box("hdlr", new byte[25]),
+                        box("ilst",
+                                box("\u00a9too", dataBox("encoder")),
+                                box("\u00a9nam", dataBox("M\u00fcsic")),
+                                box("\u00a9ART", dataBox("Mp4")),
+                                box("\u00a9alb", dataBox("Atoms")))))),
+                box("mdat", AUDIO));
+        assertTags("M\u00fcsic", "Mp4", "Atoms", file);
+    }
+
+    @Test
+    public void mp4MetaInMoov() throws Exception {
+        byte[] file = join(ftyp(), box("moov", box("meta", new byte[4],
+                box("ilst", box("\u00a9nam", dataBox("Direct"))))), box("mdat", AUDIO));
+        assertTags("Direct", null, null, file);
+    }
+
+    @Test
+    public void mp4MoovAfterLargeMdatIsFoundWithoutReadingIt() throws Exception {
+        // A 64-bit mdat box of 600MB, then moov at the very end of the file.
+        long mdatSize = 600L << 20;
+        byte[] head = join(ftyp(), new Bytes().be32(1).ascii("mdat").be64(mdatSize)
+                .toByteArray());
+        byte[] moov = box("moov", box("udta", box("meta", new byte[4],
+                box("ilst", box("\u00a9nam", dataBox("Tail"))))));
+        FixtureSource source = new FixtureSource(head, mdatSize - 16, moov);
+        assertEquals("Tail", TagParser.parse(source).title);
+        assertTrue("read " + source.mBytesRead, source.mBytesRead < 1024);
+    }
+
+    @Test
+    public void id3v1IsSkippedWhenLengthIsUnknown() throws Exception {
+        FixtureSource source = new FixtureSource(join(AUDIO, id3v1("End", "", "")));
+        source.mLengthKnown = false;
+        assertNull(TagParser.parse(source).title);
+
+        source = new FixtureSource(join(id3v2(3, 0, frame(3, "TIT2", 0, text(0, "Start"))),
+                AUDIO));
+        source.mLengthKnown = false;
+        assertEquals("Start", TagParser.parse(source).title);
+    }
+
+    @Test
+    public void untaggedFileReadsLittle() throws Exception {
+        byte[] noise = new byte[64 * 1024];
+        new Random(1).nextBytes(noise);
+        FixtureSource source = new FixtureSource(noise, 500L << 20, NO_BYTES);
+        TagParser.Tags tags = TagParser.parse(source);
+        assertNull(tags.title);
+        assertTrue("read " + source.mBytesRead, source.mBytesRead <= 256);
+    }
+
+    @Test
+    public void damagedFilesNeverThrowOrReadTooMuch() throws Exception {
+        byte[][] corpus = {
+            id3v2(4, 0, frame(4, "TIT2", 0x0001, text(3, "x")), frame(4, "TPE1", 0,
+                    text(1, "y"))),
+            id3v2(3, 0x40, new byte[] { 0, 0, 0, 6 }, frame(3, "TALB", 0, text(2, "z"))),
+            flac(vorbisComments("TITLE=a", "ARTIST=b")),
+            ogg(2, vorbisIdentification(), join(ascii("\u0003vorbis"),
+                    vorbisComments("TITLE=c", "ALBUM=d"))),
+            join(ftyp(), box("moov", box("udta", box("meta", new byte[4],
+                    box("ilst", box("\u00a9nam", dataBox("e"))))))),
+            join(AUDIO, id3v1("f", "g", "h")),
+        };
+        Random random = new Random(15);
+        for (int i = 0; i < 20000; i++) {
+            byte[] file = corpus[random.nextInt(corpus.length)].clone();
+            for (int n = random.nextInt(4); n >= 0; n--) {
+                file[random.nextInt(file.length)] = (byte) random.nextInt(256);
+            }
+            if (random.nextBoolean()) {
+                file = Arrays.copyOf(file, random.nextInt(file.length + 1));
+            }
+            FixtureSource source = new FixtureSource(file);
+            TagParser.parse(source);
+            assertTrue(source.mBytesRead <= 256 * 1024);
+        }
+    }
+
+    private static void assertTags(String title, String artist, String album, byte[] file)
+            throws IOException {
+        FixtureSource source = new FixtureSource(file);
+        TagParser.Tags tags = TagParser.parse(source);
+        assertEquals("title", title, tags.title);
+        assertEquals("artist", artist, tags.artist);
+        assertEquals("album", album, tags.album);
+        // None of the fixtures needs the audio to be read.
+        assertTrue("read " + source.mBytesRead + " of " + file.length,
+                source.mBytesRead < file.length - AUDIO.length + 128
+                        || file.length > 64 * 1024);
+    }
+
+    /**
+     * Serves head, then gap zero bytes, then tail, and counts what is read.
+     */
+    private static final class FixtureSource implements TagParser.Source {
+        private final byte[] mHead;
+        private final long mGap;
+        private final byte[] mTail;
+        boolean mLengthKnown = true;
+        long mBytesRead;
+
+        FixtureSource(byte[] data) {
+            this(data, 0, NO_BYTES);
+        }
+
+        FixtureSource(byte[] head, long gap, byte[] tail) {
+            mHead = head;
+            mGap = gap;
+            mTail = tail;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) {
+            long length = mHead.length + mGap + mTail.length;
+            if (position >= length) {
+                return -1;
+            }
+            int n = (int) Math.min(size, length - position);
+            for (int i = 0; i < n; i++) {
+                long p = position + i;
+                byte b = 0;
+                if (p < mHead.length) {
+                    b = mHead[(int) p];
+                } else if (p >= mHead.length + mGap) {
+                    b = mTail[(int) (p - mHead.length - mGap)];
+                }
+                buffer[offset + i] = b;
+            }
+            mBytesRead += n;
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return mLengthKnown ? mHead.length + mGap + mTail.length : -1;
+        }
+    }
+
+    private static byte[] id3v2(int version, int flags, byte[]... frames) {
+        byte[] body = join(frames);
+        return new Bytes().ascii("ID3").u8(version, 0, flags).synchsafe(body.length)
+                .raw(body).toByteArray();
+    }
+
+    private static byte[] frame(int version, String id, int flags, byte[] data) {
+        Bytes b = new Bytes().ascii(id);
+        if (version == 2) {
+            b.be24(data.length);
+        } else {
+            if (version == 4) {
+                b.synchsafe(data.length);
+            } else {
+                b.be32(data.length);
+            }
+            b.u8(flags >> 8, flags & 0xff);
+        }
+        return b.raw(data).toByteArray();
+    }
+
+    /** An ID3v2 text frame body: the encoding byte, then the value, terminated. */
+    private static byte[] text(int encoding, String value) {
+        Bytes b = new Bytes().u8(encoding);
+        switch (encoding) {
+            case 1:
+                return b.u8(0xff, 0xfe).text(value, Charset.forName("UTF-16LE")).u8(0, 0)
+                        .toByteArray();
+            case 2:
+                return b.text(value, Charset.forName("UTF-16BE")).u8(0, 0).toByteArray();
+            case 3:
+                return b.text(value, StandardCharsets.UTF_8).u8(0).toByteArray();
+            default:
+                return b.text(value, StandardCharsets.ISO_8859_1).u8(0).toByteArray();
+        }
+    }
+
+    private static byte[] id3v1(String title, String artist, String album) {
+        byte[] tag = new byte[128];
+        put(tag, 0, "TAG");
+        put(tag, 3, title);
+        put(tag, 33, artist);
+        put(tag, 63, album);
+        return tag;
+    }
+
+    private static void put(byte[] b, int offset, String value) {
+        byte[] bytes = ascii(value);
+        System.arraycopy(bytes, 0, b, offset, bytes.length);
+    }
+
+    /** A FLAC stream header with STREAMINFO, PADDING and the comments last. */
+    private static byte[] flac(byte[] comments) {
+        return new Bytes().ascii("fLaC")
+                .u8(0).be24(34).raw(new byte[34])
+                .u8(1).be24(100).raw(new byte[100])
+                .u8(0x80 | 4).be24(comments.length).raw(comments)
+                .toByteArray();
+    }
+
+    private static byte[] vorbisComments(String... comments) {
+        byte[] vendor = ascii("fixture");
+        Bytes b = new Bytes().le32(vendor.length).raw(vendor).le32(comments.length);
+        for (String comment : comments) {
+            byte[] bytes = comment.getBytes(StandardCharsets.UTF_8);
+            b.le32(bytes.length).raw(bytes);
+        }
+        return b.toByteArray();
+    }
+
+    private static byte[] vorbisIdentification() {
+        return join(ascii("\u0001vorbis"), new byte[23]);
+    }
+
+    /** Lays packets out in Ogg pages of at most segmentsPerPage lacing values each. */
+    private static byte[] ogg(int segmentsPerPage, byte[]... packets) {
+        Bytes lacing = new Bytes();
+        for (byte[] packet : packets) {
+            for (int left = packet.length; ; left -= 255) {
+                lacing.u8(Math.min(left, 255));
+                if (left < 255) {
+                    break;
+                }
+            }
+        }
+        byte[] sizes = lacing.toByteArray();
+        byte[] data = join(packets);
+        Bytes out = new Bytes();
+        int dataPos = 0;
+        for (int first = 0, page = 0; first < sizes.length; first += segmentsPerPage, page++) {
+            int count = Math.min(segmentsPerPage, sizes.length - first);
+            int length = 0;
+            for (int i = first; i < first + count; i++) {
+                length += sizes[i] & 0xff;
+            }
+            out.ascii("OggS").u8(0, page == 0 ? 2 : 0).be64(0).be32(1).be32(page).be32(0)
+                    .u8(count).raw(Arrays.copyOfRange(sizes, first, first + count))
+                    .raw(Arrays.copyOfRange(data, dataPos, dataPos + length));
+            dataPos += length;
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ftyp() {
+        return box("ftyp", ascii("M4A "), new byte[4], ascii("M4A isom"));
+    }
+
+    private static byte[] box(String type, byte[]... children) {
+        byte[] body = join(children);
+        return new Bytes().be32(8 + body.length).ascii(type).raw(body).toByteArray();
+    }
+
+    private static byte[] dataBox(String value) {
+        return box("data", new Bytes().be32(1).be32(0).toByteArray(),
+                value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] join(byte[]... parts) {
+        Bytes b = new Bytes();
+        for (byte[] part : parts) {
+            b.raw(part);
+        }
+        return b.toByteArray();
+    }
+
+    /** Builds the fixtures, big endian unless the method says otherwise. */
+    private static final class Bytes {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        Bytes u8(int... values) {
+            for (int v : values) {
+                mOut.write(v);
+            }
+            return this;
+        }
+
+        Bytes be24(int v) {
+            return u8(v >>> 16, v >>> 8, v);
+        }
+
+        Bytes be32(int v) {
+            return u8(v >>> 24, v >>> 16, v >>> 8, v);
+        }
+
+        Bytes be64(long v) {
+            return be32((int) (v >>> 32)).be32((int) v);
+        }
+
+        Bytes le32(int v) {
+            return u8(v, v >>> 8, v >>> 16, v >>> 24);
+        }
+
+        Bytes synchsafe(int v) {
+            return u8((v >>> 21) & 0x7f, (v >>> 14) & 0x7f, (v >>> 7) & 0x7f, v & 0x7f);
+        }
+
+        Bytes ascii(String s) {
+            return raw(TagParserTest.ascii(s));
+        }
+
+        Bytes text(String s, Charset charset) {
+            return raw(s.getBytes(charset));
+        }
+
+        Bytes raw(byte[] b) {
+            mOut.write(b, 0, b.length);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return mOut.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+/**
+ * Times {@link TrackFilter} typing and deleting queries over 50,000 rows, and fails if any
+ * keystroke takes a frame or longer.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TrackFilterBenchmark {
+    private static final String TAG = "TrackFilterBenchmark";
+
+    private static final int ROWS = 50000;
+    private static final long FRAME_NANOS = 16 * 1000 * 1000;
+    private static final String[] QUERIES = {
+        "kalo mine", "beyonce", "don", "x q", "worldab mo", "vi", "raso tu be", "c\u00e9kamo",
+    };
+
+    @Test
+    public void keystrokesAtFiftyThousandRows() {
+        PagedTrackList.Page rows = TrackFilterTest.makeRows(ROWS, 50);
+        long start = System.nanoTime();
+        TrackFilter filter = new TrackFilter(rows);
+        long buildNanos = System.nanoTime() - start;
+
+        // The first round warms up, the second is measured.
+        long[] times = null;
+        for (int round = 0; round < 2; round++) {
+            times = typeQueries(filter);
+        }
+        Arrays.sort(times);
+        long median = times[times.length / 2];
+        long worst = times[times.length - 1];
+        String result = String.format("%d keystrokes: median %.3fms, worst %.3fms, "
+                + "index built in %dms", times.length, median / 1e6, worst / 1e6,
+                buildNanos / 1000000);
+        Log.i(TAG, result);
+        assertTrue(result, worst < FRAME_NANOS);
+    }
+
+    // Types each query a character at a time, then deletes it the same way. Returns the
+    // time each keystroke took.
+    private static long[] typeQueries(TrackFilter filter) {
+        int keystrokes = 0;
+        for (String query : QUERIES) {
+            keystrokes += query.length() * 2;
+        }
+        long[] times = new long[keystrokes];
+        int i = 0;
+        for (String query : QUERIES) {
+            for (int length = 1; length <= query.length(); length++) {
+                times[i++] = time(filter, query.substring(0, length));
+            }
+            for (int length = query.length() - 1; length >= 0; length--) {
+                times[i++] = time(filter, query.substring(0, length));
+            }
+        }
+        return times;
+    }
+
+    private static long time(TrackFilter filter, String query) {
+        long start = System.nanoTime();
+        filter.filter(query);
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link TrackFilter} against matching every row as {@link SearchIndex} does, as
+ * queries are typed, edited and deleted one character at a time.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TrackFilterTest {
+    private static final String[] SYLLABLES = {
+        "ka", "lo", "mi", "ne", "ra", "so", "tu", "vi", "be", "don't", "\u00e9", "yon",
+        "c\u00e9", "\u00fcr", "mo", "wo", "rld", "ab", "x", "q",
+    };
+
+    @Test
+    public void matchesEveryRowCheckedOneByOne() {
+        PagedTrackList.Page rows = makeRows(2000, 1);
+        TrackFilter filter = new TrackFilter(rows);
+        List<List<String>> words = split(rows);
+        Random random = new Random(2);
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            int action = random.nextInt(10);
+            if (action < 6) {
+                query.append(randomChar(random));
+            } else if (action < 9 && query.length() > 0) {
+                query.setLength(query.length() - 1);
+            } else if (query.length() > 0) {
+                // Edit in the middle, as if the cursor had been moved back.
+                query.setCharAt(random.nextInt(query.length()), randomChar(random));
+            }
+            assertArrayEquals("query \"" + query + "\"", bruteForce(words, query.toString()),
+                    filter.filter(query.toString()));
+        }
+    }
+
+    @Test
+    public void emptyQueryMatchesEverything() {
+        TrackFilter filter = new TrackFilter(makeRows(100, 3));
+        assertNull(filter.filter(""));
+        assertNull(filter.filter(" -- "));
+    }
+
+    @Test
+    public void foldsAccentsCaseAndApostrophes() {
+        TrackFilter filter = new TrackFilter(page(
+                "Halo", "Beyonc\u00e9",
+                "Don't Stop Me Now", "Queen",
+                "Mot\u00f6rhead", "Mot\u00f6rhead"));
+        assertArrayEquals(new int[] { 0 }, filter.filter("BEYONCE"));
+        assertArrayEquals(new int[] { 1 }, filter.filter("dont"));
+        assertArrayEquals(new int[] { 1 }, filter.filter("don\u2019t st"));
+        assertArrayEquals(new int[] { 2 }, filter.filter("motorh"));
+    }
+
+    @Test
+    public void wordsMatchTitleOrArtistInAnyOrder() {
+        TrackFilter filter = new TrackFilter(page(
+                "World of Mo", "Someone",
+                "Mo Money", "World Band",
+                "Elsewhere", "Nobody"));
+        assertArrayEquals(new int[] { 0, 1 }, filter.filter("mo wo"));
+        assertArrayEquals(new int[] { 1 }, filter.filter("mo wo band"));
+        assertArrayEquals(new int[0], filter.filter("mo wo band x"));
+    }
+
+    @Test
+    public void deletingGoesBackToEarlierResults() {
+        TrackFilter filter = new TrackFilter(makeRows(500, 4));
+        int[] b = filter.filter("b");
+        int[] be = filter.filter("be");
+        filter.filter("bex");
+        assertSame(be, filter.filter("be"));
+        assertSame(b, filter.filter("b"));
+        // Typing after going back still narrows correctly.
+        assertArrayEquals(bruteForce(split(filter.getRows()), "bey"), filter.filter("bey"));
+    }
+
+    @Test
+    public void rowsAreInListOrderWithoutRepeats() {
+        // "love" is in the title twice and in the artist as well.
+        TrackFilter filter = new TrackFilter(page(
+                "Love Love Love", "Lovers",
+                "Other", "Love",
+                "Nothing", "Here"));
+        assertArrayEquals(new int[] { 0, 1 }, filter.filter("lov"));
+    }
+
+    @Test
+    public void noMatchStaysEmptyUntilDeleted() {
+        TrackFilter filter = new TrackFilter(makeRows(500, 5));
+        assertEquals(0, filter.filter("zzz").length);
+        assertEquals(0, filter.filter("zzzz").length);
+        assertEquals(0, filter.filter("zzzz ka").length);
+        assertArrayEquals(bruteForce(split(filter.getRows()), "ka"), filter.filter("ka"));
+    }
+
+    /** Returns the words of each row's title and artist. */
+    private static List<List<String>> split(PagedTrackList.Page rows) {
+        List<List<String>> words = new ArrayList<List<String>>();
+        for (int row = 0; row < rows.size(); row++) {
+            List<String> rowWords = SearchIndex.split(rows.titles[row]);
+            rowWords.addAll(SearchIndex.split(rows.artists[row]));
+            words.add(rowWords);
+        }
+        return words;
+    }
+
+    /**
+     * Returns the rows matching query by checking each the way {@link SearchIndex#matches}
+     * does, or null if query has no words.
+     */
+    private static int[] bruteForce(List<List<String>> words, String query) {
+        List<String> queryWords = SearchIndex.split(query);
+        if (queryWords.isEmpty()) {
+            return null;
+        }
+        int[] result = new int[words.size()];
+        int count = 0;
+        for (int row = 0; row < words.size(); row++) {
+            if (matches(words.get(row), queryWords)) {
+                result[count++] = row;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static boolean matches(List<String> words, List<String> queryWords) {
+        for (String q : queryWords) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(q)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes count rows of made up titles and artists, with enough shared words and
+     * prefixes that most queries match many rows.
+     */
+    static PagedTrackList.Page makeRows(int count, long seed) {
+        Random random = new Random(seed);
+        PagedTrackList.Page rows = new PagedTrackList.Page(count);
+        for (int i = 0; i < count; i++) {
+            rows.ids[i] = i + 1;
+            rows.titles[i] = randomName(random, 1 + random.nextInt(4));
+            rows.artists[i] = randomName(random, 1 + random.nextInt(2));
+        }
+        return rows;
+    }
+
+    private static String randomName(Random random, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                sb.append(random.nextInt(8) == 0 ? " - " : " ");
+            }
+            int syllables = 1 + random.nextInt(3);
+            for (int s = 0; s < syllables; s++) {
+                String syllable = SYLLABLES[random.nextInt(SYLLABLES.length)];
+                sb.append(s == 0 && random.nextInt(3) == 0
+                        ? Character.toUpperCase(syllable.charAt(0)) + syllable.substring(1)
+                        : syllable);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static char randomChar(Random random) {
+        String chars = "abceklmnorstuvwxy ";
+        return chars.charAt(random.nextInt(chars.length()));
+    }
+
+    private static PagedTrackList.Page page(String... titlesAndArtists) {
+        PagedTrackList.Page rows = new PagedTrackList.Page(titlesAndArtists.length / 2);
+        for (int i = 0; i < rows.size(); i++) {
+            rows.ids[i] = i + 1;
+            rows.titles[i] = titlesAndArtists[i * 2];
+            rows.artists[i] = titlesAndArtists[i * 2 + 1];
+        }
+        return rows;
+    }
+}
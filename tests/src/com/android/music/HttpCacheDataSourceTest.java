@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.MediumTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Plays {@link HttpCacheDataSource} against an HTTP server running in the test, which
+ * records the Range of every request and can be made slow, drop a connection, ignore
+ * ranges, leave out the length or change the resource and its validators.
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class HttpCacheDataSourceTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /** Serves one resource, a connection at a time on its own thread. */
+    private static final class FakeServer implements Runnable {
+        private final ServerSocket mSocket;
+        private final Thread mThread;
+        // All guarded by this.
+        private byte[] mBody;
+        private String mETag;
+        private String mLastModified;
+        boolean acceptRanges = true;
+        boolean sendLength = true;
+        // Sleep this long after each chunk written.
+        long chunkDelayMs;
+        // Close the next response after this many bytes, if not negative.
+        long dropAfter = -1;
+        // The Range header of each request, or "" if there was none.
+        final List<String> ranges = new ArrayList<String>();
+
+        FakeServer(byte[] body, String etag) throws IOException {
+            mBody = body;
+            mETag = etag;
+            mSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            mThread = new Thread(this, "FakeServer");
+            mThread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/song.mp3";
+        }
+
+        synchronized void setBody(byte[] body, String etag) {
+            mBody = body;
+            mETag = etag;
+        }
+
+        /** Sends a Last-Modified date, or none if null. */
+        synchronized void setLastModified(String lastModified) {
+            mLastModified = lastModified;
+        }
+
+        synchronized List<String> getRanges() {
+            return new ArrayList<String>(ranges);
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket connection;
+                try {
+                    connection = mSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(connection);
+                        } catch (IOException e) {
+                            // The client went away, e.g. to restart the download elsewhere.
+                        } finally {
+                            try {
+                                connection.close();
+                            } catch (IOException e) {
+                                // ignore
+                            }
+                        }
+                    }
+                }).start();
+            }
+        }
+
+        private void serve(Socket connection) throws IOException {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), "ISO-8859-1"));
+            String range = null;
+            String ifRange = null;
+            for (String line = in.readLine(); line != null && !line.isEmpty();
+                    line = in.readLine()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Range")) {
+                    range = value;
+                } else if (name.equalsIgnoreCase("If-Range")) {
+                    ifRange = value;
+                }
+            }
+
+            byte[] body;
+            String etag;
+            String lastModified;
+            long dropAfter;
+            long delay;
+            boolean partial;
+            StringBuilder header = new StringBuilder();
+            synchronized (this) {
+                ranges.add(range == null ? "" : range);
+                body = mBody;
+                etag = mETag;
+                lastModified = mLastModified;
+                dropAfter = this.dropAfter;
+                this.dropAfter = -1;
+                delay = chunkDelayMs;
+                // If-Range holds an ETag, or a date if the server gave no ETag.
+                partial = acceptRanges && range != null
+                        && (ifRange == null || ifRange.equals(etag != null ? etag : lastModified));
+                header.append(partial ? "HTTP/1.1 206 Partial Content" : "HTTP/1.1 200 OK");
+                header.append("\r\nContent-Type: audio/mpeg\r\nConnection: close\r\n");
+                if (etag != null) {
+                    header.append("ETag: ").append(etag).append("\r\n");
+                }
+                if (lastModified != null) {
+                    header.append("Last-Modified: ").append(lastModified).append("\r\n");
+                }
+                if (acceptRanges) {
+                    header.append("Accept-Ranges: bytes\r\n");
+                }
+            }
+            int start = 0;
+            if (partial) {
+                // Only "bytes=start-" is ever asked for.
+                start = Integer.parseInt(range.substring(6, range.length() - 1));
+                header.append("Content-Range: bytes ").append(start).append('-')
+                        .append(body.length - 1).append('/').append(body.length)
+                        .append("\r\n");
+            }
+            if (sendLength) {
+                header.append("Content-Length: ").append(body.length - start).append("\r\n");
+            }
+            header.append("\r\n");
+
+            OutputStream out = connection.getOutputStream();
+            out.write(header.toString().getBytes("ISO-8859-1"));
+            int end = dropAfter >= 0 ? (int) Math.min(body.length, start + dropAfter)
+                                     : body.length;
+            for (int pos = start; pos < end; pos += CHUNK_SIZE) {
+                out.write(body, pos, Math.min(CHUNK_SIZE, end - pos));
+                out.flush();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private File mDir;
+    private FakeServer mServer;
+    private final List<HttpCacheDataSource> mSources = new ArrayList<HttpCacheDataSource>();
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("httpcache", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (HttpCacheDataSource source : mSources) {
+            source.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private HttpCacheDataSource open() throws IOException {
+        HttpCacheDataSource source = new HttpCacheDataSource(mDir, mServer.getUrl());
+        mSources.add(source);
+        return source;
+    }
+
+    private static byte[] body(int length, long seed) {
+        byte[] body = new byte[length];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+
+    /** Reads from position to the end the way MediaPlayer does, in small reads. */
+    private static byte[] readFrom(HttpCacheDataSource source, long position)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = source.readAt(position, buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, n);
+            position += n;
+        }
+        assertEquals(-1, n);
+        return out.toByteArray();
+    }
+
+    private static byte[] read(HttpCacheDataSource source, long position, int length)
+            throws IOException {
+        byte[] data = new byte[length];
+        int filled = 0;
+        while (filled < length) {
+            int n = source.readAt(position + filled, data, filled, length - filled);
+            assertTrue("ended early", n > 0);
+            filled += n;
+        }
+        return data;
+    }
+
+    @Test(timeout = 30000)
+    public void readsWholeStream() throws Exception {
+        byte[] body = body(BLOCK_SIZE * 16 + 1234, 1);
+        mServer = new FakeServer(body, "\"v1\"");
+        HttpCacheDataSource source = open();
+        assertEquals(body.length, source.getSize());
+        assertArrayEquals(body, readFrom(source, 0));
+        assertEquals(Arrays.asList(""), mServer.getRanges());
+    }
+
+    @Test(timeout = 30000)
+    public void seekAheadRestartsDownloadAtSeekBlock() throws Exception {
+        byte[] body = body(BLOCK_SIZE * 64, 2);
+        mServer = new FakeServer(body, "\"v1\"");
+        // About 1.6MB/s, so reaching the seek position by downloading takes seconds.
+        mServer.chunkDelayMs = 10;
+        HttpCacheDataSource source = open();
+        source.getSize();
+
+        long position = BLOCK_SIZE * 48L + 100;
+        long start = System.nanoTime();
+        assertArrayEquals(Arrays.copyOfRange(body, (int) position, (int) position + 1000),
+                read(source, position, 1000));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        List<String> ranges = mServer.getRanges();
+        assertEquals("", ranges.get(0));
+        assertEquals("bytes=" + BLOCK_SIZE * 48 + "-", ranges.get(1));
+        assertTrue("seek took " + elapsedMs + "ms", elapsedMs < 1500);
+    }
+
+    @Test(timeout = 30000)
+    public void seekBackIsServedFromCache() throws Exception {
+        byte[] body = body(BLOCK_SIZE * 40 + 5, 3);
+        mServer = new FakeServer(body, "\"v1\"");
+        HttpCacheDataSource source = open();
+        readFrom(source, 0);
+        // More blocks than the memory ring holds, so some come back from the file.
+        assertArrayEquals(body, readFrom(source, 0));
+        assertArrayEquals(Arrays.copyOfRange(body, 12345, body.length),
+                readFrom(source, 12345));
+        assertEquals(1, mServer.getRanges().size());
+    }
+
+    @Test(timeout = 30000)
+    public void reopeningCachedStreamMakesNoRequest() throws Exception {
+        byte[] body = body(BLOCK_SIZE * 8 + 99, 4);
+        mServer = new FakeServer(body, "\"v1\"");
+        HttpCacheDataSource first = open();
+        assertArrayEquals(body, readFrom(first, 0));
+        first.close();
+
+        HttpCacheDataSource second = open();
+        assertEquals(body.length, second.getSize());
+        assertArrayEquals(body, readFrom(second, 0));
+        assertEquals(1, mServer.getRanges().size());
+    }
+
+    @Test(timeout = 30000)
+    public void partialCacheResumesWithRange() throws Exception {
+        byte[] body = body(BLOCK_SIZE * 64, 5);
+        mServer = new FakeServer(body, "\"v1\"");
+        mServer.chunkDelayMs = 10;
+        HttpCacheDataSource first = open();
+        read(first, 0, BLOCK_SIZE * 2);
+        first.close();
+
+        mServer.chunkDelayMs = 0;
+        HttpCacheDataSource second = open();
+        assertArrayEquals(body, readFrom(second, 0));
+        List<String> ranges = mServer.getRanges();
+        assertEquals(ranges.toString(), 2, ranges.size());
+        assertTrue(ranges.get(1), ranges.get(1).startsWith("bytes="));
+        assertTrue(ranges.get(1), !ranges.get(1).equals("bytes=0-"));
+    }
+
+    @Test(timeout = 30000)
+    public void changedResourceReplacesPartialCache() throws Exception {
+        byte[] oldBody = body(BLOCK_SIZE * 64, 6);
+        mServer = new FakeServer(oldBody, "\"v1\"");
+        mServer.chunkDelayMs = 10;
+        HttpCacheDataSource first = open();
+        read(first, 0, BLOCK_SIZE * 2);
+        first.close();
+
+        // Shorter, so a stale length would show as well.
+        byte[] newBody = body(BLOCK_SIZE * 20 + 7, 7);
+        mServer.setBody(newBody, "\"v2\"");
+        mServer.chunkDelayMs = 0;
+        HttpCacheDataSource second = open();
+        // Nothing cached under the old ETag may be read, not even the first block.
+        assertEquals(newBody.length, second.getSize());
+        assertArrayEquals(newBody, readFrom(second, 0));
+    }
+
+    @Test(timeout = 30000)
+    public void lastModifiedValidatesWithoutETag() throws Exception {
+        byte[] body = body(BLOCK_SIZE * 64, 11);
+        mServer = new FakeServer(body, null);
+        mServer.setLastModified("Mon, 07 Jan 2019 10:00:00 GMT");
+        mServer.chunkDelayMs = 10;
+        HttpCacheDataSource first = open();
+        read(first, 0, BLOCK_SIZE * 2);
+        first.close();
+
+        mServer.chunkDelayMs = 0;
+        HttpCacheDataSource second = open();
+        assertArrayEquals(body, readFrom(second, 0));
+        List<String> ranges = mServer.getRanges();
+        assertEquals(ranges.toString(), 2, ranges.size());
+        assertTrue(ranges.get(1), !ranges.get(1).equals("bytes=0-"));
+    }
+
+    @Test(timeout = 30000)
+    public void changedLastModifiedReplacesPartialCache() throws Exception {
+        mServer = new FakeServer(body(BLOCK_SIZE * 64, 12), null);
+        mServer.setLastModified("Mon, 07 Jan 2019 10:00:00 GMT");
+        mServer.chunkDelayMs = 10;
+        HttpCacheDataSource first = open();
+        read(first, 0, BLOCK_SIZE * 2);
+        first.close();
+
+        byte[] newBody = body(BLOCK_SIZE * 20 + 7, 13);
+        mServer.setBody(newBody, null);
+        mServer.setLastModified("Tue, 08 Jan 2019 10:00:00 GMT");
+        mServer.chunkDelayMs = 0;
+        HttpCacheDataSource second = open();
+        assertEquals(newBody.length, second.getSize());
+        assertArrayEquals(newBody, readFrom(second, 0));
+    }
+
+    @Test(timeout = 30000)
+    public void partialCacheWithoutValidatorIsNotResumed() throws Exception {
+        mServer = new FakeServer(body(BLOCK_SIZE * 64, 14), null);
+        mServer.chunkDelayMs = 10;
+        HttpCacheDataSource first = open();
+        read(first, 0, BLOCK_SIZE * 2);
+        first.close();
+
+        // Nothing tells the old bytes from the new, so they mustn't be spliced together.
+        byte[] newBody = body(BLOCK_SIZE * 20 + 7, 15);
+        mServer.setBody(newBody, null);
+        mServer.chunkDelayMs = 0;
+        HttpCacheDataSource second = open();
+        assertArrayEquals(newBody, readFrom(second, 0));
+        assertEquals(Arrays.asList("", ""), mServer.getRanges());
+    }
+
+    @Test(timeout = 30000)
+    public void droppedConnectionResumesFromMissingBlock() throws Exception {
+        byte[] body = body(BLOCK_SIZE * 16, 8);
+        mServer = new FakeServer(body, "\"v1\"");
+        mServer.dropAfter = BLOCK_SIZE * 4 + 1000;
+        HttpCacheDataSource source = open();
+        assertArrayEquals(body, readFrom(source, 0));
+        // The partial block isn't kept, so it is fetched again.
+        assertEquals(Arrays.asList("", "bytes=" + BLOCK_SIZE * 4 + "-"), mServer.getRanges());
+    }
+
+    @Test(timeout = 30000)
+    public void serverWithoutRangesIsReadInOrder() throws Exception {
+        byte[] body = body(BLOCK_SIZE * 12 + 3, 9);
+        mServer = new FakeServer(body, null);
+        mServer.acceptRanges = false;
+        HttpCacheDataSource source = open();
+        assertArrayEquals(body, readFrom(source, 0));
+        assertEquals(1, mServer.getRanges().size());
+    }
+
+    @Test
+    public void failedOpenIsNotLeftMarkedOpen() throws Exception {
+        mServer = new FakeServer(body(100, 16), "\"v1\"");
+        // A directory where the data file should be, so that it can't be opened.
+        File data = new File(mDir, HttpCacheDataSource.hashKey(mServer.getUrl()) + ".data");
+        assertTrue(data.mkdir());
+        try {
+            open();
+            fail("opened over a directory");
+        } catch (IOException expected) {
+        }
+        assertFalse(HttpCacheDataSource.isOpen(data));
+        data.delete();
+        HttpCacheDataSource source = open();
+        assertTrue(HttpCacheDataSource.isOpen(data));
+        source.close();
+        assertFalse(HttpCacheDataSource.isOpen(data));
+    }
+
+    @Test(timeout = 30000)
+    public void unknownLengthIsLearnedAtTheEnd() throws Exception {
+        byte[] body = body(BLOCK_SIZE * 5 + 77, 10);
+        mServer = new FakeServer(body, "\"v1\"");
+        mServer.sendLength = false;
+        // Slow enough that the end isn't reached before the length is asked for.
+        mServer.chunkDelayMs = 20;
+        HttpCacheDataSource source = open();
+        assertEquals(-1, source.getSize());
+        assertArrayEquals(body, readFrom(source, 0));
+        assertEquals(body.length, source.getSize());
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.media.browse.MediaBrowser.MediaItem;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.MediaStore;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.MediumTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads and syncs {@link MusicLibrary} against a fake MediaStore audio table, counting
+ * the queries each step costs, and checks that a burst of change notifications is
+ * debounced by {@link LibrarySync} into a single sync pass. The fake answers the way
+ * MediaStore does from R on, with a version and generation numbers.
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class LibrarySyncTest {
+    private static final Uri AUDIO = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+
+    /**
+     * Serves the audio table from rows held in memory, as far as the library queries it,
+     * and counts full loads, change scans and fetches by id. Has no playlists.
+     */
+    private static final class FakeMediaProvider extends MockContentProvider {
+        private static final String[] COLUMNS = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ARTIST_ID,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.ALBUM_KEY,
+            MediaStore.Audio.Media.TRACK,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.DATE_ADDED,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+            MediaStore.Audio.Media.IS_PODCAST,
+            MediaStore.Audio.Media.GENERATION_MODIFIED,
+            MediaStore.Audio.Media.GENRE_ID,
+            MediaStore.Audio.Media.GENRE,
+        };
+        private static final int ALBUM_KEY = 6;
+        private static final int TRACK = 7;
+        private static final Pattern ID_IN =
+                Pattern.compile(MediaStore.Audio.Media._ID + " IN \\(([0-9,]*)\\)");
+
+        // Rows by id, each with a value for every column in COLUMNS.
+        private final TreeMap<Long, Object[]> mRows = new TreeMap<Long, Object[]>();
+        String version = "1";
+        long generation;
+        int loads;
+        int scans;
+        int fetches;
+
+        /** Adds or replaces a row, as the media scanner does when a file is added or edited. */
+        synchronized void put(long id, String title, String artist, long artistId, String album,
+                long albumId, int track) {
+            generation++;
+            mRows.put(id, new Object[] {
+                id, title, artist, artistId, album, albumId, album.toLowerCase(Locale.ROOT),
+                track, 180000L, 1500000000L, generation, 0, generation, null, null,
+            });
+        }
+
+        /** Replaces a row with a copy that only differs in its modification time. */
+        synchronized void touch(long id) {
+            Object[] row = mRows.get(id).clone();
+            generation++;
+            row[10] = generation;
+            row[12] = generation;
+            mRows.put(id, row);
+        }
+
+        synchronized void delete(long id) {
+            generation++;
+            mRows.remove(id);
+        }
+
+        synchronized void resetCounts() {
+            loads = 0;
+            scans = 0;
+            fetches = 0;
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (!AUDIO.equals(uri)) {
+                return null;
+            }
+            List<Object[]> rows;
+            Matcher m = ID_IN.matcher(selection);
+            if (m.find()) {
+                fetches++;
+                rows = new ArrayList<Object[]>();
+                for (String id : m.group(1).split(",")) {
+                    Object[] row = mRows.get(Long.parseLong(id));
+                    if (row != null) {
+                        rows.add(row);
+                    }
+                }
+            } else {
+                if (projection.length <= 3) {
+                    scans++;
+                } else {
+                    loads++;
+                }
+                rows = new ArrayList<Object[]>(mRows.values());
+            }
+            if (sortOrder != null && sortOrder.startsWith(MediaStore.Audio.Media.ALBUM_KEY)) {
+                Collections.sort(rows, new Comparator<Object[]>() {
+                    @Override
+                    public int compare(Object[] a, Object[] b) {
+                        int c = ((String) a[ALBUM_KEY]).compareTo((String) b[ALBUM_KEY]);
+                        return c != 0 ? c : Integer.compare((Integer) a[TRACK], (Integer) b[TRACK]);
+                    }
+                });
+            }
+            List<String> columns = Arrays.asList(COLUMNS);
+            MatrixCursor c = new MatrixCursor(projection, rows.size());
+            for (Object[] row : rows) {
+                Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    values[i] = row[columns.indexOf(projection[i])];
+                }
+                c.addRow(values);
+            }
+            return c;
+        }
+
+        // MediaStore.getVersion() reads EXTRA_TEXT and getGeneration() EXTRA_INDEX.
+        @Override
+        public synchronized Bundle call(String method, String arg, Bundle extras) {
+            Bundle b = new Bundle();
+            b.putString(Intent.EXTRA_TEXT, version);
+            b.putLong(Intent.EXTRA_INDEX, generation);
+            return b;
+        }
+    }
+
+    /** The app's context, with MediaStore replaced by the fake. */
+    private static final class FakeContext extends ContextWrapper {
+        private final MockContentResolver mResolver;
+
+        FakeContext(Context base, FakeMediaProvider provider) {
+            super(base);
+            mResolver = new MockContentResolver(base);
+            mResolver.addProvider(MediaStore.AUTHORITY, provider);
+        }
+
+        @Override
+        public MockContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+    }
+
+    private FakeMediaProvider mProvider;
+    private Context mContext;
+    private HandlerThread mThread;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mProvider = new FakeMediaProvider();
+        mContext = new FakeContext(
+                InstrumentationRegistry.getInstrumentation().getTargetContext(), mProvider);
+    }
+
+    @After
+    public void tearDown() {
+        if (mThread != null) {
+            mThread.quitSafely();
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /** Adds albums albums of tracks tracks each, all by one artist, with ids from firstId. */
+    private void addAlbums(long firstId, int albums, int tracks) {
+        long id = firstId;
+        for (int album = 0; album < albums; album++) {
+            for (int track = 1; track <= tracks; track++) {
+                mProvider.put(id++, "Track " + track, "Artist", 1, "Album " + (firstId + album),
+                        firstId + album, track);
+            }
+        }
+    }
+
+    private static String artist(long id) {
+        return MusicLibrary.MEDIA_ID_ARTISTS + "/" + id;
+    }
+
+    private static String album(long id) {
+        return MusicLibrary.MEDIA_ID_ALBUMS + "/" + id;
+    }
+
+    @Test
+    public void loadIsOneQuery() {
+        addAlbums(1, 10, 10);
+        MusicLibrary library = MusicLibrary.load(mContext);
+        assertEquals(100, library.getTrackCount());
+        assertEquals(1, mProvider.loads);
+        assertEquals(0, mProvider.scans + mProvider.fetches);
+    }
+
+    @Test
+    public void importIsOneScanAndBatchedFetches() {
+        addAlbums(1, 10, 10);
+        MusicLibrary library = MusicLibrary.load(mContext);
+        addAlbums(1001, 500, 10);
+        mProvider.resetCounts();
+
+        List<String> changed = library.sync();
+        assertEquals(5100, library.getTrackCount());
+        assertEquals(0, mProvider.loads);
+        assertEquals(1, mProvider.scans);
+        // 500 rows per fetch.
+        assertEquals(10, mProvider.fetches);
+        assertTrue(changed.contains(MusicLibrary.MEDIA_ID_TRACKS));
+        assertTrue(changed.contains(album(1001)));
+    }
+
+    @Test
+    public void unchangedGenerationQueriesNothing() {
+        addAlbums(1, 10, 10);
+        MusicLibrary library = MusicLibrary.load(mContext);
+        mProvider.resetCounts();
+        assertTrue(library.sync().isEmpty());
+        assertEquals(0, mProvider.loads + mProvider.scans + mProvider.fetches);
+    }
+
+    @Test
+    public void modifiedAndDeletedRowsArePickedUp() {
+        addAlbums(1, 1, 10);
+        MusicLibrary library = MusicLibrary.load(mContext);
+        mProvider.put(3, "Renamed", "Artist", 1, "Album 1", 1, 3);
+        mProvider.delete(5);
+        mProvider.resetCounts();
+
+        List<String> changed = library.sync();
+        assertEquals(1, mProvider.fetches);
+        assertEquals(9, library.getTrackCount());
+        assertEquals("Renamed", library.getTrack(3).title);
+        assertNull(library.getTrack(5));
+        assertTrue(changed.contains(album(1)));
+        assertTrue(changed.contains(artist(1)));
+    }
+
+    @Test
+    public void syncedTracksAreInLoadOrder() {
+        // Ids run against the album and track order, so id order is never load order.
+        for (int album = 0; album < 4; album++) {
+            for (int track = 1; track <= 6; track++) {
+                if (track != 3) {
+                    mProvider.put(100 - album * 10 - track, "Track " + track, "Artist", 1,
+                            "Album " + album, album, track);
+                }
+            }
+        }
+        MusicLibrary library = MusicLibrary.load(mContext);
+        // Edit a track in the middle of each album, and add each album's missing track.
+        for (int album = 0; album < 4; album++) {
+            mProvider.touch(100 - album * 10 - 5);
+            mProvider.put(100 - album * 10 - 3, "Track 3", "Artist", 1, "Album " + album,
+                    album, 3);
+        }
+        assertNotNull(library.sync());
+
+        MusicLibrary loaded = MusicLibrary.load(mContext);
+        assertArrayEquals(loaded.getTrackList(artist(1)), library.getTrackList(artist(1)));
+        for (int album = 0; album < 4; album++) {
+            assertArrayEquals(
+                    loaded.getTrackList(album(album)), library.getTrackList(album(album)));
+        }
+        assertArrayEquals(loaded.getTrackList(MusicLibrary.MEDIA_ID_TRACKS),
+                library.getTrackList(MusicLibrary.MEDIA_ID_TRACKS));
+    }
+
+    @Test
+    public void renamedArtistIsRenamedAndResorted() {
+        mProvider.put(1, "One", "Zed", 1, "Album", 1, 1);
+        mProvider.put(2, "Two", "Zed", 1, "Album", 1, 2);
+        mProvider.put(3, "Three", "Mid", 2, "Other", 2, 1);
+        MusicLibrary library = MusicLibrary.load(mContext);
+        mProvider.put(1, "One", "Abe", 1, "Album", 1, 1);
+        mProvider.put(2, "Two", "Abe", 1, "Album", 1, 2);
+
+        assertTrue(library.sync().contains(MusicLibrary.MEDIA_ID_ARTISTS));
+        List<MediaItem> artists = library.getChildren(MusicLibrary.MEDIA_ID_ARTISTS, 0, 10);
+        assertEquals(2, artists.size());
+        assertEquals("Abe", artists.get(0).getDescription().getTitle().toString());
+        assertEquals("Mid", artists.get(1).getDescription().getTitle().toString());
+    }
+
+    @Test
+    public void replacedDatabaseNeedsReload() {
+        addAlbums(1, 1, 10);
+        MusicLibrary library = MusicLibrary.load(mContext);
+        mProvider.version = "2";
+        assertNull(library.sync());
+    }
+
+    @Test
+    public void notificationBurstIsOneSyncPass() throws Exception {
+        addAlbums(1, 10, 10);
+        mThread = new HandlerThread("LibrarySyncTest");
+        mThread.start();
+        Handler handler = new Handler(mThread.getLooper());
+        mExecutor = Executors.newSingleThreadExecutor();
+        final List<List<String>> passes = Collections.synchronizedList(
+                new ArrayList<List<String>>());
+        final CountDownLatch[] latch = { new CountDownLatch(1) };
+        final LibrarySync sync = new LibrarySync(mContext, handler, mExecutor,
+                new LibrarySync.Listener() {
+                    @Override
+                    public void onLibraryChanged(MusicLibrary library, List<String> changed) {
+                        passes.add(changed);
+                        latch[0].countDown();
+                    }
+                });
+        Runnable burst = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 5000; i++) {
+                    sync.notifyChanged();
+                }
+            }
+        };
+
+        // The first pass loads the library.
+        handler.post(burst);
+        assertTrue(latch[0].await(5, TimeUnit.SECONDS));
+        assertEquals(1, mProvider.loads);
+        assertNull(passes.get(0));
+
+        latch[0] = new CountDownLatch(1);
+        addAlbums(1001, 100, 10);
+        mProvider.resetCounts();
+        handler.post(burst);
+        assertTrue(latch[0].await(5, TimeUnit.SECONDS));
+        // Give a second pass, if one had been scheduled, time to run.
+        Thread.sleep(2000);
+        assertEquals(2, passes.size());
+        assertNotNull(passes.get(1));
+        assertEquals(0, mProvider.loads);
+        assertEquals(1, mProvider.scans);
+        assertEquals(2, mProvider.fetches);
+    }
+}
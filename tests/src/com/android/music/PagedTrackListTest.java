@@ -0,0 +1,547 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.provider.MediaStore;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.MediumTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pages through a fake MediaStore audio table with {@link PagedTrackList}: how soon the
+ * first page of 50,000 tracks shows, that the pages read tile the list, that pages scrolled
+ * past are skipped, that paging falls back to the limit parameter before R, and that the
+ * fast-scroll sections start where the provider sorts their keys.
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class PagedTrackListTest {
+    private static final Uri AUDIO = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+    private static final int PAGE = PagedTrackList.PAGE_SIZE;
+    // The sections MusicPicker passes, from R.string.fast_scroll_alphabet.
+    private static final String ALPHABET = " ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    /**
+     * Serves the audio table from rows held in memory, sorted and paged the way
+     * MediaStore does, and records each read.
+     */
+    private static final class FakeAudioProvider extends MockContentProvider {
+        private static final String[] COLUMNS = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.TRACK,
+            MediaStore.Audio.Media.TITLE_KEY,
+            MediaStore.Audio.Media.ARTIST_KEY,
+            MediaStore.Audio.Media.ALBUM_KEY,
+        };
+        private static final int TITLE = 1;
+
+        private final List<Object[]> mRows = new ArrayList<Object[]>();
+        // Rows in each sort order asked for so far, as the table's indexes keep them.
+        private final Map<String, List<Object[]>> mSorted = new HashMap<String, List<Object[]>>();
+        // The offset and limit of each page read, in order.
+        final List<int[]> pageReads = new ArrayList<int[]>();
+        int fullReads;
+        // Pages read with QUERY_ARG_OFFSET and QUERY_ARG_LIMIT, and with the limit parameter.
+        int argQueries;
+        int limitQueries;
+
+        synchronized void put(long id, String title, String artist, String album, int track) {
+            put(id, title, MediaStore.Audio.keyFor(title), artist, album, track);
+        }
+
+        /** Adds a row with the given title key, which may be null. */
+        synchronized void put(long id, String title, String titleKey, String artist,
+                String album, int track) {
+            mRows.add(new Object[] {
+                id, title, artist, album, 180000, track, titleKey,
+                MediaStore.Audio.keyFor(artist), MediaStore.Audio.keyFor(album),
+            });
+            mSorted.clear();
+        }
+
+        /**
+         * Returns the rows with a title, the only selection PagedTrackList makes, in
+         * sortOrder. Sorts them first if that order hasn't been asked for yet.
+         */
+        synchronized List<Object[]> sorted(String sortOrder) {
+            List<Object[]> rows = mSorted.get(sortOrder);
+            if (rows != null) {
+                return rows;
+            }
+            final List<String> columns = Arrays.asList(COLUMNS);
+            final String[] by = sortOrder.split(",");
+            rows = new ArrayList<Object[]>();
+            for (Object[] row : mRows) {
+                if (!"".equals(row[TITLE])) {
+                    rows.add(row);
+                }
+            }
+            Collections.sort(rows, new Comparator<Object[]>() {
+                @Override
+                public int compare(Object[] a, Object[] b) {
+                    for (String column : by) {
+                        int i = columns.indexOf(column.trim());
+                        int c = compareValues(a[i], b[i]);
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    return Long.compare((Long) a[0], (Long) b[0]);
+                }
+            });
+            mSorted.put(sortOrder, rows);
+            return rows;
+        }
+
+        // Nulls sort first, as they do in SQLite.
+        @SuppressWarnings("unchecked")
+        private static int compareValues(Object a, Object b) {
+            if (a == null || b == null) {
+                return a == null ? (b == null ? 0 : -1) : 1;
+            }
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            // Before R, MediaStore takes "offset,limit" as a query parameter.
+            String limit = uri.getQueryParameter("limit");
+            if (limit == null) {
+                return read(projection, sortOrder, 0, -1);
+            }
+            limitQueries++;
+            String[] offsetAndLimit = limit.split(",");
+            return read(projection, sortOrder, Integer.parseInt(offsetAndLimit[0]),
+                    Integer.parseInt(offsetAndLimit[1]));
+        }
+
+        // From O, every query arrives here first; those not paged with query arguments go
+        // on to the query above.
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, Bundle args,
+                CancellationSignal signal) {
+            String sortOrder = args.getString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER);
+            if (!args.containsKey(ContentResolver.QUERY_ARG_LIMIT)) {
+                return query(uri, projection,
+                        args.getString(ContentResolver.QUERY_ARG_SQL_SELECTION), null, sortOrder);
+            }
+            argQueries++;
+            return read(projection, sortOrder, args.getInt(ContentResolver.QUERY_ARG_OFFSET, 0),
+                    args.getInt(ContentResolver.QUERY_ARG_LIMIT));
+        }
+
+        // Reads limit rows from offset, or all of them if limit is negative.
+        private Cursor read(String[] projection, String sortOrder, int offset, int limit) {
+            List<Object[]> rows = sorted(sortOrder);
+            if (limit < 0) {
+                fullReads++;
+            } else {
+                pageReads.add(new int[] {offset, limit});
+                rows = rows.subList(Math.min(offset, rows.size()),
+                        Math.min(offset + limit, rows.size()));
+            }
+            List<String> columns = Arrays.asList(COLUMNS);
+            MatrixCursor c = new MatrixCursor(projection, rows.size());
+            for (Object[] row : rows) {
+                Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    values[i] = row[columns.indexOf(projection[i])];
+                }
+                c.addRow(values);
+            }
+            return c;
+        }
+    }
+
+    /** Runs reads only when told to, on the test thread, so requests can pile up first. */
+    private static final class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            mTasks.add(task);
+        }
+
+        private synchronized Runnable next() {
+            return mTasks.poll();
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = next()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /** Records the listener's calls, which all come on the main thread. */
+    private static final class Recorder implements PagedTrackList.Listener {
+        final List<Integer> loaded = new ArrayList<Integer>();
+        final CountDownLatch firstPage = new CountDownLatch(1);
+        final CountDownLatch counted = new CountDownLatch(1);
+        long firstPageNanos;
+        int count = -1;
+
+        @Override
+        public void onCountChanged(int count, boolean done) {
+            this.count = count;
+            if (done) {
+                counted.countDown();
+            }
+        }
+
+        @Override
+        public void onPageLoaded(int page) {
+            if (page == 0 && firstPage.getCount() > 0) {
+                firstPageNanos = System.nanoTime();
+                firstPage.countDown();
+            }
+            loaded.add(page);
+        }
+
+        @Override
+        public void onFilterReady(TrackFilter filter) {
+        }
+    }
+
+    private Instrumentation mInstrumentation;
+    private FakeAudioProvider mProvider;
+    private MockContentResolver mResolver;
+    private Recorder mRecorder;
+    private ManualExecutor mManual;
+    private ExecutorService mExecutor;
+    private PagedTrackList mList;
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mProvider = new FakeAudioProvider();
+        mResolver = new MockContentResolver(mInstrumentation.getTargetContext());
+        mResolver.addProvider(MediaStore.AUTHORITY, mProvider);
+        mRecorder = new Recorder();
+        mManual = new ManualExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        if (mList != null) {
+            final PagedTrackList list = mList;
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    list.close();
+                }
+            });
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    private static String title(int position) {
+        return String.format(Locale.ROOT, "Track %06d", position);
+    }
+
+    /**
+     * Adds count tracks, where count isn't a multiple of 7. Their titles sort in a different
+     * order than their ids: the track at position p has the id whose 7 multiple is p mod count.
+     */
+    private void addTracks(int count) {
+        for (int id = 1; id <= count; id++) {
+            mProvider.put(id, title((int) ((id * 7L) % count)), "Artist", "Album", 1);
+        }
+    }
+
+    private PagedTrackList newList(int sortMode, Executor executor) {
+        String[] sections = new String[ALPHABET.length()];
+        for (int i = 0; i < sections.length; i++) {
+            sections[i] = ALPHABET.substring(i, i + 1);
+        }
+        mList = new PagedTrackList(mResolver, AUDIO, sortMode, sections, executor, mRecorder);
+        return mList;
+    }
+
+    /** Starts mList on the main thread and, if it reads with mManual, runs the reads. */
+    private void start() {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mList.start();
+            }
+        });
+        runReads();
+    }
+
+    /** Runs the reads queued on mManual, then waits for their results to be delivered. */
+    private void runReads() {
+        mManual.runAll();
+        mInstrumentation.waitForIdleSync();
+    }
+
+    private PagedTrackList.Page getPage(final int position) {
+        final PagedTrackList.Page[] page = new PagedTrackList.Page[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                page[0] = mList.getPage(position);
+            }
+        });
+        return page[0];
+    }
+
+    /** Returns the page holding position, reading it first if it hasn't been read. */
+    private PagedTrackList.Page loadPage(int position) {
+        PagedTrackList.Page page = getPage(position);
+        if (page == null) {
+            runReads();
+            page = getPage(position);
+        }
+        assertNotNull(page);
+        return page;
+    }
+
+    private List<Integer> pageOffsets() {
+        List<Integer> offsets = new ArrayList<Integer>();
+        for (int[] read : mProvider.pageReads) {
+            assertEquals(PAGE, read[1]);
+            offsets.add(read[0]);
+        }
+        return offsets;
+    }
+
+    /**
+     * Checks the list's section starts. nullKeys tracks have no sort key, and each of the
+     * others is given as its name in the sort column and the section it belongs under.
+     */
+    private void assertSections(int sortMode, int nullKeys, String[][] tracks) {
+        int count = nullKeys + tracks.length;
+        assertEquals(count, mRecorder.count);
+        int[] starts = mList.getSectionStarts();
+        int[] expected = new int[ALPHABET.length()];
+        for (int section = 0; section < expected.length; section++) {
+            expected[section] = nullKeys;
+            for (String[] track : tracks) {
+                if (ALPHABET.indexOf(track[1]) < section) {
+                    expected[section]++;
+                }
+            }
+        }
+        assertArrayEquals(expected, starts);
+
+        // Each track is listed within its own section, so the starts follow the list order.
+        PagedTrackList.Page page = loadPage(0);
+        List<String> names = Arrays.asList(
+                sortMode == PagedTrackList.SORT_BY_ARTIST ? page.artists : page.titles);
+        for (String[] track : tracks) {
+            int section = ALPHABET.indexOf(track[1]);
+            int end = section + 1 < starts.length ? starts[section + 1] : count;
+            int position = names.indexOf(track[0]);
+            assertTrue(track[0] + " is at " + position,
+                    position >= starts[section] && position < end);
+        }
+    }
+
+    @Test
+    public void firstPageOfFiftyThousandShowsWithinTarget() throws Exception {
+        addTracks(50000);
+        // Sort now, as the real table's title_key index already is.
+        mProvider.sorted(MediaStore.Audio.Media.TITLE_KEY);
+        mExecutor = Executors.newSingleThreadExecutor();
+        newList(PagedTrackList.SORT_BY_TRACK, mExecutor);
+        final long[] startNanos = new long[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                startNanos[0] = System.nanoTime();
+                mList.start();
+            }
+        });
+
+        assertTrue(mRecorder.firstPage.await(5, TimeUnit.SECONDS));
+        long millis = TimeUnit.NANOSECONDS.toMillis(mRecorder.firstPageNanos - startNanos[0]);
+        assertTrue("first page took " + millis + "ms", millis < 100);
+        assertTrue(mRecorder.counted.await(10, TimeUnit.SECONDS));
+        assertEquals(50000, mRecorder.count);
+        // The first page was read on its own, before the one pass that counted the rest.
+        assertArrayEquals(new int[] {0, PAGE}, mProvider.pageReads.get(0));
+        assertEquals(1, mProvider.pageReads.size());
+        assertEquals(1, mProvider.fullReads);
+    }
+
+    @Test
+    public void pagesTileTheList() {
+        final int tracks = 1234;
+        addTracks(tracks);
+        newList(PagedTrackList.SORT_BY_TRACK, mManual);
+        start();
+        assertEquals(tracks, mRecorder.count);
+
+        for (int position = 0; position < tracks; position++) {
+            PagedTrackList.Page page = loadPage(position);
+            int row = position % PAGE;
+            assertEquals(title(position), page.titles[row]);
+            assertEquals(position, (int) ((page.ids[row] * 7) % tracks));
+        }
+        assertEquals(tracks % PAGE, loadPage(tracks - 1).size());
+        // Each page was read once, at its own offset, and nothing past the end.
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int offset = 0; offset < tracks; offset += PAGE) {
+            expected.add(offset);
+        }
+        assertEquals(expected, pageOffsets());
+        // From R, pages are read with query arguments rather than the limit parameter.
+        int withArgs = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? expected.size() : 0;
+        assertEquals(withArgs, mProvider.argQueries);
+        assertEquals(expected.size() - withArgs, mProvider.limitQueries);
+    }
+
+    @Test
+    public void pagesScrolledPastAreSkipped() {
+        addTracks(5000);
+        newList(PagedTrackList.SORT_BY_TRACK, mManual);
+        start();
+
+        // A fling from the top asks for each page it passes on the way to page 10.
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int page = 1; page <= 10; page++) {
+                    mList.getPage(page * PAGE);
+                }
+            }
+        });
+        runReads();
+        // Only the pages near where it stopped were read.
+        assertEquals(Arrays.asList(0, 8, 9, 10), mRecorder.loaded);
+        assertEquals(Arrays.asList(0, 8 * PAGE, 9 * PAGE, 10 * PAGE), pageOffsets());
+
+        // A skipped page is read when it is asked for again.
+        assertEquals(title(PAGE), loadPage(PAGE).titles[0]);
+        assertEquals(Arrays.asList(0, 8, 9, 10, 1), mRecorder.loaded);
+    }
+
+    @Test
+    public void pagesUseLimitParameterBeforeR() {
+        final int tracks = 1234;
+        addTracks(tracks);
+        newList(PagedTrackList.SORT_BY_TRACK, mManual).mUseQueryArgs = false;
+        start();
+        assertEquals(tracks, mRecorder.count);
+
+        PagedTrackList.Page page = loadPage(5 * PAGE);
+        for (int row = 0; row < PAGE; row++) {
+            assertEquals(title(5 * PAGE + row), page.titles[row]);
+        }
+        assertEquals(Arrays.asList(0, 5 * PAGE), pageOffsets());
+        assertEquals(2, mProvider.limitQueries);
+        assertEquals(0, mProvider.argQueries);
+    }
+
+    @Test
+    public void sectionsStartWhereTheirKeysSort() {
+        String[][] tracks = {
+            {"1999", " "},
+            {"7 Rings", " "},
+            {"?!", " "},
+            {"Abba", "A"},
+            {"A Tribe", "T"},
+            {"An Ending", "E"},
+            {"The Beatles", "B"},
+            {"Beatles, The", "B"},
+            {"...Baby One More Time", "B"},
+            {"\u00c7a Plane Pour Moi", "C"},
+            {"(Untitled)", "U"},
+            {"'Round Midnight", "R"},
+            {"\"Heroes\"", "H"},
+            {"[Intro]", "I"},
+        };
+        // Keys that were never filled in sort before every section.
+        mProvider.put(1, "No key", null, "Artist", "Album", 1);
+        mProvider.put(2, "No key either", null, "Artist", "Album", 1);
+        for (int i = 0; i < tracks.length; i++) {
+            mProvider.put(10 + i, tracks[i][0], "Artist", "Album", 1);
+        }
+        newList(PagedTrackList.SORT_BY_TRACK, mManual);
+        start();
+
+        assertSections(PagedTrackList.SORT_BY_TRACK, 2, tracks);
+        int[] starts = mList.getSectionStarts();
+        assertEquals(2, starts[0]);
+        // A letter without tracks starts where the next one does, or at the end.
+        assertEquals(starts[ALPHABET.indexOf('E')], starts[ALPHABET.indexOf('D')]);
+        assertEquals(2 + tracks.length, starts[ALPHABET.indexOf('Z')]);
+    }
+
+    @Test
+    public void sectionsFollowTheSortColumn() {
+        String[][] artists = {
+            {"The Who", "W"},
+            {"Abba", "A"},
+            {"Blur", "B"},
+            {"10cc", " "},
+        };
+        for (int i = 0; i < artists.length; i++) {
+            // Titles that would put every track under Z if the sections went by title.
+            mProvider.put(10 + i, "Zzz " + i, artists[i][0], "Album", 1);
+        }
+        newList(PagedTrackList.SORT_BY_ARTIST, mManual);
+        start();
+
+        assertSections(PagedTrackList.SORT_BY_ARTIST, 0, artists);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pages through a fake library node of 100,000 tracks the way a MediaBrowser client does,
+ * and checks that the pages tile the node exactly and that no more than a page of
+ * children is ever created.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PagingTest {
+    private static final int TRACKS = 100000;
+
+    /** A node whose children are the numbers from 0, created only when asked for. */
+    private static final class FakeNode implements Paging.Children<Integer> {
+        final int count;
+        int largestRequest;
+        int created;
+
+        FakeNode(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public List<Integer> get(int from, int to) {
+            assertTrue(from >= 0 && from <= to && to <= count);
+            largestRequest = Math.max(largestRequest, to - from);
+            List<Integer> items = new ArrayList<Integer>(to - from);
+            for (int i = from; i < to; i++) {
+                items.add(i);
+            }
+            created += items.size();
+            return items;
+        }
+    }
+
+    private FakeNode mNode;
+
+    @Before
+    public void setUp() {
+        mNode = new FakeNode(TRACKS);
+    }
+
+    @Test
+    public void pagesTileTheNode() {
+        int[] pageSizes = { 1, 7, 100, 499, 500, 1000, 99999, TRACKS, TRACKS + 1 };
+        for (int pageSize : pageSizes) {
+            mNode = new FakeNode(TRACKS);
+            int next = 0;
+            int page = 0;
+            while (true) {
+                List<Integer> items = Paging.getPage(mNode, page++, pageSize);
+                if (items.isEmpty()) {
+                    break;
+                }
+                // Only the last page may be short.
+                assertTrue(items.size() == pageSize || next + items.size() == TRACKS);
+                for (int item : items) {
+                    assertEquals("page size " + pageSize, next++, item);
+                }
+            }
+            assertEquals(TRACKS, next);
+            assertEquals((TRACKS + pageSize - 1) / pageSize + 1, page);
+            assertTrue(mNode.largestRequest <= pageSize);
+            assertEquals(TRACKS, mNode.created);
+        }
+    }
+
+    @Test
+    public void lastPageIsShort() {
+        List<Integer> items = Paging.getPage(mNode, TRACKS / 300, 300);
+        assertEquals(TRACKS % 300, items.size());
+        assertEquals(TRACKS - TRACKS % 300, (int) items.get(0));
+    }
+
+    @Test
+    public void pagePastTheEndCreatesNothing() {
+        assertTrue(Paging.getPage(mNode, TRACKS / 100, 100).isEmpty());
+        assertTrue(Paging.getPage(mNode, Integer.MAX_VALUE, 100).isEmpty());
+        // page * pageSize overflows an int.
+        assertTrue(Paging.getPage(mNode, Integer.MAX_VALUE, Integer.MAX_VALUE).isEmpty());
+        assertTrue(Paging.getPage(mNode, 1 << 16, 1 << 16).isEmpty());
+        assertEquals(0, mNode.created);
+    }
+
+    @Test
+    public void noPagingReturnsEverything() {
+        assertEquals(TRACKS, Paging.getPage(mNode, -1, -1).size());
+        assertEquals(TRACKS, Paging.getPage(mNode, 0, 0).size());
+        assertEquals(TRACKS, Paging.getPage(mNode, -1, 100).size());
+    }
+
+    @Test
+    public void unknownNodeIsNull() {
+        assertNull(Paging.getPage(new FakeNode(-1), 0, 100));
+    }
+
+    @Test
+    public void emptyNodeHasEmptyPages() {
+        FakeNode node = new FakeNode(0);
+        assertTrue(Paging.getPage(node, 0, 100).isEmpty());
+        assertTrue(Paging.getPage(node, -1, -1).isEmpty());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times {@link PartyShuffle} refilling the upcoming tracks from a library of 100,000, and
+ * fails if refills take a millisecond or more.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PartyShuffleBenchmark {
+    private static final String TAG = "PartyShuffleBenchmark";
+
+    private static final int TRACKS = 100000;
+    // As many as the service tops the queue up by at most.
+    private static final int UPCOMING = 10;
+    private static final int REFILLS = 10000;
+    private static final long MAX_NANOS = 1000 * 1000;
+
+    @Test
+    public void refillAtHundredThousandTracks() {
+        PartyShuffle shuffle = new PartyShuffle(new Random(5));
+        PartyShuffle.Library library = new PartyShuffleTest.FakeLibrary(TRACKS);
+        long[] out = new long[UPCOMING];
+
+        // The first round warms up, the second is measured.
+        long[] times = new long[REFILLS];
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < REFILLS; i++) {
+                // Usually one track has been played, sometimes the whole list was skipped.
+                int missing = i % 50 == 0 ? UPCOMING : 1;
+                long start = System.nanoTime();
+                shuffle.fill(library, out, missing);
+                times[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(times);
+        long median = times[REFILLS / 2];
+        long p99 = times[REFILLS * 99 / 100];
+        long worst = times[REFILLS - 1];
+        String result = String.format("%d refills: median %.1fus, 99th percentile %.1fus, "
+                + "worst %.1fus", REFILLS, median / 1e3, p99 / 1e3, worst / 1e3);
+        Log.i(TAG, result);
+        // The worst case is left to scheduling and GC of the test process itself.
+        assertTrue(result, p99 < MAX_NANOS);
+    }
+}
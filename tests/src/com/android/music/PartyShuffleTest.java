@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks which tracks {@link PartyShuffle} picks from a fake library.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PartyShuffleTest {
+    /** Tracks with ids 1000, 1001 and so on. */
+    static final class FakeLibrary implements PartyShuffle.Library {
+        private final int mCount;
+
+        FakeLibrary(int count) {
+            mCount = count;
+        }
+
+        @Override
+        public int getTrackCount() {
+            return mCount;
+        }
+
+        @Override
+        public long getTrackIdAt(int index) {
+            if (index < 0 || index >= mCount) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return 1000 + index;
+        }
+    }
+
+    @Test
+    public void noRepeatsWithinHistory() {
+        PartyShuffle shuffle = new PartyShuffle(new Random(1));
+        FakeLibrary library = new FakeLibrary(1000);
+        long[] picked = new long[5000];
+        long[] out = new long[10];
+        for (int i = 0; i < picked.length; i += out.length) {
+            assertEquals(out.length, shuffle.fill(library, out, out.length));
+            System.arraycopy(out, 0, picked, i, out.length);
+        }
+        for (int i = 0; i < picked.length; i++) {
+            assertTrue(picked[i] >= 1000 && picked[i] < 2000);
+            for (int j = Math.max(0, i - 256); j < i; j++) {
+                assertTrue("track " + picked[i] + " again after " + (i - j),
+                        picked[i] != picked[j]);
+            }
+        }
+    }
+
+    @Test
+    public void rememberedTracksAreAvoided() {
+        PartyShuffle shuffle = new PartyShuffle(new Random(2));
+        FakeLibrary library = new FakeLibrary(600);
+        Set<Long> queued = new HashSet<Long>();
+        for (int i = 0; i < 256; i++) {
+            shuffle.remember(1000 + i);
+            queued.add(1000L + i);
+        }
+        long[] out = new long[1];
+        shuffle.fill(library, out, 1);
+        assertFalse(queued.contains(out[0]));
+    }
+
+    @Test
+    public void everyTrackComesUp() {
+        PartyShuffle shuffle = new PartyShuffle(new Random(3));
+        FakeLibrary library = new FakeLibrary(100);
+        Set<Long> seen = new HashSet<Long>();
+        long[] out = new long[10];
+        for (int i = 0; i < 100; i++) {
+            shuffle.fill(library, out, out.length);
+            for (long id : out) {
+                seen.add(id);
+            }
+        }
+        assertEquals(100, seen.size());
+    }
+
+    @Test
+    public void tinyLibrariesStillFill() {
+        long[] out = new long[10];
+        for (int size = 1; size <= 3; size++) {
+            PartyShuffle shuffle = new PartyShuffle(new Random(size));
+            assertEquals(out.length, shuffle.fill(new FakeLibrary(size), out, out.length));
+            for (long id : out) {
+                assertTrue(id >= 1000 && id < 1000 + size);
+            }
+        }
+    }
+
+    @Test
+    public void emptyLibraryFillsNothing() {
+        assertEquals(0, new PartyShuffle().fill(new FakeLibrary(0), new long[10], 10));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Drives {@link ProgressClock} at 60 frames a second against a fake player that counts
+ * how often it is asked where it is, and counts what a frame allocates.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ProgressClockTest {
+    private static final long FRAME_NANOS = 1000000000L / 60;
+    private static final long MS = 1000000L;
+
+    /** Plays at normal speed from where it was put, and counts position queries. */
+    private static final class FakePlayer implements ProgressClock.Player {
+        long nowNanos;
+        long playedNanos;
+        int position;
+        boolean playing = true;
+        int queries;
+
+        @Override
+        public int getCurrentPosition() {
+            queries++;
+            return position;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return playing;
+        }
+
+        void advance(long nanos) {
+            nowNanos += nanos;
+            if (playing) {
+                playedNanos += nanos;
+                position = (int) (playedNanos / MS);
+            }
+        }
+    }
+
+    private FakePlayer mPlayer;
+    private ProgressClock mClock;
+
+    @Before
+    public void setUp() {
+        mPlayer = new FakePlayer();
+        mClock = new ProgressClock(mPlayer);
+    }
+
+    @Test
+    public void framesExtrapolateBetweenQueries() {
+        mPlayer.playedNanos = 5000 * MS;
+        mPlayer.position = 5000;
+        assertEquals(5000, mClock.sync(0));
+        assertEquals(5016, mClock.positionAt(16 * MS));
+        assertEquals(5500, mClock.positionAt(500 * MS));
+        assertEquals(1, mPlayer.queries);
+    }
+
+    @Test
+    public void playerIsAskedOncePerSecond() {
+        mClock.sync(0);
+        // A little over ten seconds.
+        for (int frame = 1; frame <= 610; frame++) {
+            mPlayer.advance(FRAME_NANOS);
+            int position = mClock.positionAt(mPlayer.nowNanos);
+            // Never further out than the rounding of a frame's worth of milliseconds.
+            assertEquals(mPlayer.position, position, 1);
+        }
+        // The first query, then one for each of the ten seconds.
+        assertEquals(11, mPlayer.queries);
+    }
+
+    @Test
+    public void stoppedPlayerIsNoticedAtTheNextQuery() {
+        mClock.sync(0);
+        mPlayer.advance(300 * MS);
+        mPlayer.playing = false;
+        assertEquals(300, mClock.positionAt(mPlayer.nowNanos));
+        mPlayer.advance(700 * MS);
+        assertEquals(-1, mClock.positionAt(mPlayer.nowNanos));
+        assertEquals(300, mClock.getLastPosition());
+    }
+
+    @Test
+    public void setMovesTheAnchorWithoutAQuery() {
+        mClock.sync(0);
+        mClock.set(20000, 100 * MS);
+        assertEquals(20000, mClock.getLastPosition());
+        assertEquals(20050, mClock.positionAt(150 * MS));
+        assertEquals(1, mPlayer.queries);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void framesAllocateNothing() {
+        mClock.sync(0);
+        // Warm up, so that nothing is allocated for running a method the first time.
+        runFrames(600);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        runFrames(6000);
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        assertEquals("allocations in 6000 frames", 0, allocations);
+    }
+
+    private void runFrames(int frames) {
+        for (int frame = 0; frame < frames; frame++) {
+            mPlayer.advance(FRAME_NANOS);
+            mClock.positionAt(mPlayer.nowNanos);
+        }
+    }
+}
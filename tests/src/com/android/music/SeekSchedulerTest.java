@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives {@link SeekScheduler} the way a seek bar drag does, against a fake player that
+ * counts the seeks issued and completes them when told to.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SeekSchedulerTest {
+    /** Records seeks, and fails if one is issued while another is in flight. */
+    private static final class FakePlayer implements SeekScheduler.Seeker {
+        final List<Long> positions = new ArrayList<Long>();
+        final List<Boolean> fast = new ArrayList<Boolean>();
+        boolean inFlight;
+
+        @Override
+        public void seek(long position, boolean fast) {
+            if (inFlight) {
+                fail("seek to " + position + " issued while another is in flight");
+            }
+            inFlight = true;
+            positions.add(position);
+            this.fast.add(fast);
+        }
+
+        int count() {
+            return positions.size();
+        }
+
+        long last() {
+            return positions.get(positions.size() - 1);
+        }
+
+        boolean lastFast() {
+            return fast.get(fast.size() - 1);
+        }
+    }
+
+    private FakePlayer mPlayer;
+    private SeekScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mPlayer = new FakePlayer();
+        mScheduler = new SeekScheduler(mPlayer);
+    }
+
+    private void complete() {
+        assertTrue("no seek in flight", mPlayer.inFlight);
+        mPlayer.inFlight = false;
+        mScheduler.onSeekComplete();
+    }
+
+    @Test
+    public void idleSeekIsIssuedAtOnce() {
+        mScheduler.seekTo(1000, false);
+        assertEquals(1, mPlayer.count());
+        assertEquals(1000, mPlayer.last());
+        assertFalse(mPlayer.lastFast());
+        complete();
+        assertEquals(1, mPlayer.count());
+    }
+
+    @Test
+    public void dragKeepsOneSeekInFlightAndJumpsToLatest() {
+        // 200 progress events, with the player finishing a seek every 20 of them.
+        for (int i = 1; i <= 200; i++) {
+            mScheduler.seekTo(i * 100, true);
+            if (i % 20 == 0) {
+                complete();
+                // The seek issued is the latest target, not the oldest one queued.
+                assertEquals(i * 100, mPlayer.last());
+            }
+        }
+        assertEquals(11, mPlayer.count());
+        assertTrue(mPlayer.fast.indexOf(false) < 0);
+    }
+
+    @Test
+    public void releaseIssuesOnePreciseSeek() {
+        for (int i = 1; i <= 50; i++) {
+            mScheduler.seekTo(i * 10, true);
+        }
+        mScheduler.seekTo(505, false);
+        assertEquals(1, mPlayer.count());
+        complete();
+        assertEquals(2, mPlayer.count());
+        assertEquals(505, mPlayer.last());
+        assertFalse(mPlayer.lastFast());
+        complete();
+        assertEquals(2, mPlayer.count());
+    }
+
+    @Test
+    public void releaseAfterLastSeekCompletedStillSeeksPrecisely() {
+        mScheduler.seekTo(300, true);
+        complete();
+        mScheduler.seekTo(300, false);
+        assertEquals(2, mPlayer.count());
+        assertFalse(mPlayer.lastFast());
+    }
+
+    @Test
+    public void resetDropsPendingSeek() {
+        mScheduler.seekTo(100, true);
+        mScheduler.seekTo(200, true);
+        mScheduler.reset();
+        // The player was reset and will never complete the seek to 100.
+        mPlayer.inFlight = false;
+        mScheduler.seekTo(300, false);
+        assertEquals(2, mPlayer.count());
+        assertEquals(300, mPlayer.last());
+        complete();
+        assertEquals(2, mPlayer.count());
+    }
+}